@@ -0,0 +1,90 @@
+/**
+ * The MIT License
+ * Copyright © 2016 Flemming Harms
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.fharms.camel.entitymanager;
+
+import javax.persistence.EntityManager;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Extension of the {@link EntityManager} with bulk operations. Declare the field with this type and annotate it with
+ * {@link javax.persistence.PersistenceContext} and the Camel entity manager proxy will implement it.
+ * <p>
+ * The persistence context is flushed for every <code>hibernate.jdbc.batch_size</code> entity (default
+ * {@value CamelBulkEntityManagerOperations#DEFAULT_BATCH_SIZE}) and the flushed entities is detached, so the statements
+ * can be batched by the JDBC driver and the persistence context does not grow with the size of the collection.
+ * Entities persisted, and the entities returned by merge, is therefore detached when the call returns, while other
+ * entities of the persistence context stay managed.
+ * </p>
+ * <p>
+ * Operations taking a collection of ids split them into IN-lists of at most
+ * {@value CamelBulkEntityManagerOperations#IN_LIST_SIZE} elements.
+ * </p>
+ */
+public interface CamelBulkEntityManager extends EntityManager {
+
+    /**
+     * Persist all the entities
+     *
+     * @param entities The entities to persist
+     */
+    void persistAll(Collection<?> entities);
+
+    /**
+     * Merge all the entities
+     *
+     * @param entities The entities to merge
+     * @return The merged entities in the same order as the given collection
+     */
+    <T> List<T> mergeAll(Collection<T> entities);
+
+    /**
+     * Remove all entities with the given ids with a JPQL bulk delete. Like any bulk operation it
+     * does not cascade and does not update the persistence context
+     *
+     * @param entityClass The entity class
+     * @param ids The ids of the entities to remove
+     * @return The number of removed entities
+     */
+    int removeAllById(Class<?> entityClass, Collection<?> ids);
+
+    /**
+     * Execute a JPQL bulk update for the ids, e.g. <code>update Dog d set d.race = 'Mix' where d.id in :ids</code>
+     *
+     * @param jpql The update statement
+     * @param idsParameter The name of the IN-list parameter in the statement
+     * @param ids The ids to bind to the parameter
+     * @return The number of updated entities
+     */
+    int bulkUpdate(String jpql, String idsParameter, Collection<?> ids);
+
+    /**
+     * Execute a JPQL bulk delete for the ids, e.g. <code>delete from Dog d where d.id in :ids</code>
+     *
+     * @param jpql The delete statement
+     * @param idsParameter The name of the IN-list parameter in the statement
+     * @param ids The ids to bind to the parameter
+     * @return The number of deleted entities
+     */
+    int bulkDelete(String jpql, String idsParameter, Collection<?> ids);
+}
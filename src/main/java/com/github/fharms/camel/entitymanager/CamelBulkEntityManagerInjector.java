@@ -0,0 +1,111 @@
+/**
+ * The MIT License
+ * Copyright © 2016 Flemming Harms
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.fharms.camel.entitymanager;
+
+import org.springframework.beans.BeansException;
+import org.springframework.beans.PropertyValues;
+import org.springframework.beans.factory.BeanCreationException;
+import org.springframework.beans.factory.BeanFactory;
+import org.springframework.beans.factory.BeanFactoryAware;
+import org.springframework.beans.factory.ListableBeanFactory;
+import org.springframework.beans.factory.config.InstantiationAwareBeanPostProcessorAdapter;
+import org.springframework.beans.factory.support.MergedBeanDefinitionPostProcessor;
+import org.springframework.beans.factory.support.RootBeanDefinition;
+import org.springframework.core.Ordered;
+import org.springframework.core.PriorityOrdered;
+import org.springframework.orm.jpa.EntityManagerFactoryUtils;
+import org.springframework.orm.jpa.SharedEntityManagerCreator;
+import org.springframework.stereotype.Component;
+
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceContext;
+import java.beans.PropertyDescriptor;
+import java.lang.reflect.Field;
+
+/**
+ * Inject fields of type {@link CamelBulkEntityManager} annotated with {@link PersistenceContext}.
+ * <p>
+ * The shared entity manager injected by Spring does not implement {@link CamelBulkEntityManager}, so the fields
+ * are registered as externally managed before Spring process the {@link PersistenceContext} annotation and
+ * injected with a shared entity manager implementing the interface instead. The bulk operations is provided
+ * when the {@link CamelEntityManagerHandler} wrap the field with the Camel entity manager proxy.
+ * </p>
+ */
+@Component
+public class CamelBulkEntityManagerInjector extends InstantiationAwareBeanPostProcessorAdapter
+        implements MergedBeanDefinitionPostProcessor, PriorityOrdered, BeanFactoryAware {
+
+    private ListableBeanFactory beanFactory;
+
+    @Override
+    public void postProcessMergedBeanDefinition(RootBeanDefinition beanDefinition, Class<?> beanType, String beanName) {
+        for (Field field : beanType.getDeclaredFields()) {
+            if (isBulkEntityManagerField(field)) {
+                beanDefinition.registerExternallyManagedConfigMember(field);
+            }
+        }
+    }
+
+    @Override
+    public PropertyValues postProcessPropertyValues(PropertyValues pvs, PropertyDescriptor[] pds, Object bean, String beanName) throws BeansException {
+        for (Field field : bean.getClass().getDeclaredFields()) {
+            if (!isBulkEntityManagerField(field)) {
+                continue;
+            }
+            if (field.isAnnotationPresent(IgnoreCamelEntityManager.class)) {
+                throw new BeanCreationException(beanName, "Field " + field.getName() + " of type "
+                        + CamelBulkEntityManager.class.getSimpleName() + " can't be annotated with @"
+                        + IgnoreCamelEntityManager.class.getSimpleName());
+            }
+            PersistenceContext persistenceContext = field.getAnnotation(PersistenceContext.class);
+            EntityManagerFactory emf = EntityManagerFactoryUtils.findEntityManagerFactory(beanFactory, persistenceContext.unitName());
+            try {
+                boolean currentAccessibleState = field.isAccessible();
+                field.setAccessible(true);
+                field.set(bean, SharedEntityManagerCreator.createSharedEntityManager(emf, null, CamelBulkEntityManager.class));
+                field.setAccessible(currentAccessibleState);
+            } catch (IllegalAccessException e) {
+                throw new BeanCreationException(beanName, "Failed injecting " + field.getName(), e);
+            }
+        }
+        return pvs;
+    }
+
+    private boolean isBulkEntityManagerField(Field field) {
+        return CamelBulkEntityManager.class.isAssignableFrom(field.getType())
+                && field.isAnnotationPresent(PersistenceContext.class);
+    }
+
+    @Override
+    public void setBeanFactory(BeanFactory beanFactory) throws BeansException {
+        this.beanFactory = (ListableBeanFactory) beanFactory;
+    }
+
+    /**
+     * Must run before the {@link org.springframework.orm.jpa.support.PersistenceAnnotationBeanPostProcessor}
+     */
+    @Override
+    public int getOrder() {
+        return Ordered.HIGHEST_PRECEDENCE;
+    }
+}
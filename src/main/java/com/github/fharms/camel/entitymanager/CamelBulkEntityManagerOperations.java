@@ -0,0 +1,140 @@
+/**
+ * The MIT License
+ * Copyright © 2016 Flemming Harms
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.fharms.camel.entitymanager;
+
+import javax.persistence.EntityManager;
+import javax.persistence.metamodel.EntityType;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Implementation of the {@link CamelBulkEntityManager} operations on top of the entity manager
+ * resolved by the Camel entity manager proxy.
+ */
+final class CamelBulkEntityManagerOperations {
+
+    static final int DEFAULT_BATCH_SIZE = 50;
+
+    static final int IN_LIST_SIZE = 500;
+
+    static final String JDBC_BATCH_SIZE = "hibernate.jdbc.batch_size";
+
+    private CamelBulkEntityManagerOperations() {
+    }
+
+    static Object invoke(EntityManager em, Method method, Object[] args) {
+        switch (method.getName()) {
+            case "persistAll":
+                persistAll(em, (Collection<?>) args[0]);
+                return null;
+            case "mergeAll":
+                return mergeAll(em, (Collection<?>) args[0]);
+            case "removeAllById":
+                return removeAllById(em, (Class<?>) args[0], (Collection<?>) args[1]);
+            case "bulkUpdate":
+            case "bulkDelete":
+                return executeUpdate(em, (String) args[0], (String) args[1], (Collection<?>) args[2]);
+            default:
+                throw new UnsupportedOperationException("Unknown bulk operation " + method);
+        }
+    }
+
+    private static void persistAll(EntityManager em, Collection<?> entities) {
+        int batchSize = batchSize(em);
+        List<Object> batch = new ArrayList<>(Math.min(batchSize, entities.size()));
+        for (Object entity : entities) {
+            em.persist(entity);
+            batch.add(entity);
+            if (batch.size() == batchSize) {
+                flushAndDetach(em, batch);
+                batch.clear();
+            }
+        }
+        flushAndDetach(em, batch);
+    }
+
+    private static <T> List<T> mergeAll(EntityManager em, Collection<T> entities) {
+        int batchSize = batchSize(em);
+        List<T> merged = new ArrayList<>(entities.size());
+        int flushed = 0;
+        for (T entity : entities) {
+            merged.add(em.merge(entity));
+            if (merged.size() - flushed == batchSize) {
+                flushAndDetach(em, merged.subList(flushed, merged.size()));
+                flushed = merged.size();
+            }
+        }
+        flushAndDetach(em, merged.subList(flushed, merged.size()));
+        return merged;
+    }
+
+    private static int removeAllById(EntityManager em, Class<?> entityClass, Collection<?> ids) {
+        EntityType<?> entityType = em.getMetamodel().entity(entityClass);
+        String idAttribute = entityType.getId(entityType.getIdType().getJavaType()).getName();
+        String jpql = "delete from " + entityType.getName() + " e where e." + idAttribute + " in :ids";
+        return executeUpdate(em, jpql, "ids", ids);
+    }
+
+    private static int executeUpdate(EntityManager em, String jpql, String idsParameter, Collection<?> ids) {
+        List<?> idList = new ArrayList<>(ids);
+        int updated = 0;
+        for (int from = 0; from < idList.size(); from += IN_LIST_SIZE) {
+            List<?> chunk = idList.subList(from, Math.min(from + IN_LIST_SIZE, idList.size()));
+            updated += em.createQuery(jpql)
+                    .setParameter(idsParameter, chunk)
+                    .executeUpdate();
+        }
+        return updated;
+    }
+
+    /**
+     * Flush and detach the entities of the batch. The batch itself is left unchanged, as the batch of merge is a view of
+     * the returned list. The other entities of the persistence context, as the entities of the route, is left managed
+     */
+    private static void flushAndDetach(EntityManager em, List<?> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        em.flush();
+        batch.forEach(em::detach);
+    }
+
+    /**
+     * Align the flush interval with the JDBC batch size of the persistence unit, so every flush
+     * can be sent as full JDBC batches
+     */
+    private static int batchSize(EntityManager em) {
+        Object batchSize = em.getEntityManagerFactory().getProperties().get(JDBC_BATCH_SIZE);
+        if (batchSize == null) {
+            return DEFAULT_BATCH_SIZE;
+        }
+        try {
+            int size = Integer.parseInt(batchSize.toString().trim());
+            return size > 0 ? size : DEFAULT_BATCH_SIZE;
+        } catch (NumberFormatException e) {
+            throw new IllegalStateException("The " + JDBC_BATCH_SIZE + " of the persistence unit is not a number: " + batchSize, e);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+/**
+ * The MIT License
+ * Copyright © 2016 Flemming Harms
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.fharms.camel.entitymanager;
+
+import org.apache.camel.language.LanguageAnnotation;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+import static java.lang.annotation.ElementType.PARAMETER;
+
+/**
+ *  Add to an {@link javax.persistence.EntityManager} parameter of a bean method invoked by Camel, to have the Camel
+ *  entity manager of the exchange injected by the bean parameter binding of Camel, like
+ *  <code>persist(@Body Dog dog, @CamelEntityManager EntityManager em)</code>. Without a Camel entity manager the entity
+ *  manager of the current transaction is injected. The Camel entity manager joins the current transaction before every
+ *  call. The bean don't need fields annotated with {@link javax.persistence.PersistenceContext}, so it is not proxied
+ *  and the calls is not intercepted.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({PARAMETER})
+@LanguageAnnotation(language = "camelEntityManager", factory = CamelEntityManagerExpressionFactory.class)
+public @interface CamelEntityManager {
+
+    /**
+     * @return Name of the persistence unit used without a Camel entity manager, resolved as for
+     * {@link javax.persistence.PersistenceContext#unitName()}, can be left out if there is only one
+     */
+    String unitName() default "";
+}
@@ -0,0 +1,131 @@
+/**
+ * The MIT License
+ * Copyright © 2016 Flemming Harms
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.fharms.camel.entitymanager;
+
+import org.aopalliance.aop.Advice;
+import org.aopalliance.intercept.MethodInterceptor;
+import org.apache.camel.Exchange;
+import org.apache.camel.Handler;
+import org.springframework.aop.ClassFilter;
+import org.springframework.aop.Pointcut;
+import org.springframework.aop.support.AbstractPointcutAdvisor;
+import org.springframework.aop.support.StaticMethodMatcherPointcut;
+import org.springframework.core.Ordered;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
+/**
+ * Advisor binding the Camel entity manager around the bean methods which can be invoked from a Camel route. The
+ * methods is selected once per class, and is the public methods taking an {@link Exchange}, annotated with
+ * {@link Handler}, {@link CamelStatelessSession}, {@link ReadOnlyCamelEntityManager} or {@link CamelEntityManagerRetry},
+ * or with a parameter annotated with a Camel bean binding annotation like {@link org.apache.camel.Body}. Other methods
+ * is invoked without interception.
+ * <p>
+ * Methods without annotations is also advised when a route invokes them with {@code .bean(bean, "method")}, or all the
+ * public methods of the bean with {@code .bean(bean)}, as registered by the handler when the routes is added to the
+ * Camel context. Until the first routes is added all the public methods is advised, so a method selected before is
+ * not missed. Methods invoked from a {@code bean:} endpoint or a {@code method(bean, "method")} expression still need
+ * one of the annotations, like {@link Handler}.
+ * </p>
+ * <p>
+ * The bulkhead advisor, created by {@link #bulkheadAdvisor(CamelEntityManagerHandler)}, advise the same methods of the
+ * classes limited by a bulkhead, and has the highest precedence so it is placed before the transaction advisor.
+ * </p>
+ */
+class CamelEntityManagerAdvisor extends AbstractPointcutAdvisor {
+
+    private static final String CAMEL_PACKAGE = "org.apache.camel.";
+
+    private final ClassFilter classFilter;
+
+    private final Pointcut pointcut = new StaticMethodMatcherPointcut() {
+
+        @Override
+        public ClassFilter getClassFilter() {
+            return classFilter;
+        }
+
+        @Override
+        public boolean matches(Method method, Class<?> targetClass) {
+            if (!Modifier.isPublic(method.getModifiers()) || method.getDeclaringClass() == Object.class) {
+                return false;
+            }
+            return isCamelMethod(method) || handler.isRouteMethod(method, targetClass);
+        }
+    };
+
+    private final CamelEntityManagerHandler handler;
+
+    private final Advice advice;
+
+    CamelEntityManagerAdvisor(CamelEntityManagerHandler handler) {
+        this(handler, handler::isProxied, (MethodInterceptor) handler::invoke);
+    }
+
+    private CamelEntityManagerAdvisor(CamelEntityManagerHandler handler, ClassFilter classFilter, Advice advice) {
+        this.handler = handler;
+        this.classFilter = classFilter;
+        this.advice = advice;
+    }
+
+    static CamelEntityManagerAdvisor bulkheadAdvisor(CamelEntityManagerHandler handler) {
+        CamelEntityManagerAdvisor advisor = new CamelEntityManagerAdvisor(handler, handler::hasBulkheads,
+                (MethodInterceptor) handler::invokeWithinBulkheads);
+        advisor.setOrder(Ordered.HIGHEST_PRECEDENCE);
+        return advisor;
+    }
+
+    @Override
+    public Pointcut getPointcut() {
+        return pointcut;
+    }
+
+    @Override
+    public Advice getAdvice() {
+        return advice;
+    }
+
+    private static boolean isCamelMethod(Method method) {
+        if (method.isAnnotationPresent(Handler.class) ||
+                method.isAnnotationPresent(CamelStatelessSession.class) ||
+                method.isAnnotationPresent(ReadOnlyCamelEntityManager.class) ||
+                method.isAnnotationPresent(CamelEntityManagerRetry.class)) {
+            return true;
+        }
+        for (Class<?> parameterType : method.getParameterTypes()) {
+            if (Exchange.class.isAssignableFrom(parameterType)) {
+                return true;
+            }
+        }
+        for (Annotation[] annotations : method.getParameterAnnotations()) {
+            for (Annotation annotation : annotations) {
+                if (annotation.annotationType().getName().startsWith(CAMEL_PACKAGE)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,174 @@
+/**
+ * The MIT License
+ * Copyright © 2016 Flemming Harms
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.fharms.camel.entitymanager;
+
+import org.apache.camel.Exchange;
+import org.hibernate.LockOptions;
+import org.hibernate.Session;
+import org.hibernate.engine.spi.EntityEntry;
+import org.hibernate.engine.spi.SessionImplementor;
+
+import javax.persistence.EntityManager;
+import java.sql.Connection;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The binding of one exchange of a polled batch to the entity manager of the JPA consumer, shared by all exchanges of
+ * the poll. The changes of the exchanges is not tracked, a failed exchange rolls back the transaction of the whole poll.
+ * <p>
+ * With a savepoint the changes of the exchange is flushed with the Hibernate session when the exchange is done, and if
+ * the exchange or the flush fails the database is rolled back to the JDBC savepoint set when the exchange was bound.
+ * The persistence context is then cleared, and the entities it contained is reattached and refreshed, so the entities
+ * of the JPA consumer not yet processed stay managed. The operations of the session is used instead of the entity
+ * manager, as a failing operation of the entity manager marks the transaction rollback only.
+ * </p>
+ */
+final class CamelEntityManagerBatch {
+
+    private final EntityManager entityManager;
+
+    private final Exchange previousExchange;
+
+    private final CamelEntityManagerBatch previousBatch;
+
+    private final Thread thread = Thread.currentThread();
+
+    private final String exchangeId;
+
+    private volatile boolean released;
+
+    private Savepoint savepoint;
+
+    CamelEntityManagerBatch(EntityManager entityManager, Exchange exchange, Exchange previousExchange,
+                            CamelEntityManagerBatch previousBatch) {
+        this.entityManager = entityManager;
+        this.previousExchange = previousExchange;
+        this.previousBatch = previousBatch;
+        this.exchangeId = exchange.getExchangeId();
+    }
+
+    EntityManager getEntityManager() {
+        return entityManager;
+    }
+
+    Exchange getPreviousExchange() {
+        return previousExchange;
+    }
+
+    CamelEntityManagerBatch getPreviousBatch() {
+        return previousBatch;
+    }
+
+    Thread getThread() {
+        return thread;
+    }
+
+    String getExchangeId() {
+        return exchangeId;
+    }
+
+    void setReleased() {
+        released = true;
+    }
+
+    boolean isReleased() {
+        return released;
+    }
+
+    /**
+     * Set a savepoint on the connection of the entity manager, before the exchange changes anything
+     */
+    void setSavepoint() {
+        savepoint = getSession().doReturningWork(Connection::setSavepoint);
+    }
+
+    boolean hasSavepoint() {
+        return savepoint != null;
+    }
+
+    /**
+     * Flush the changes of the exchange and release the savepoint
+     *
+     * @return The exception of the flush, or null
+     */
+    RuntimeException flushSavepoint() {
+        Session session = getSession();
+        try {
+            session.flush();
+        } catch (RuntimeException e) {
+            return e;
+        }
+        session.doWork(connection -> connection.releaseSavepoint(savepoint));
+        return null;
+    }
+
+    /**
+     * @return True if the transaction can be committed after a roll back to the savepoint, false if an operation of the
+     * entity manager failed and marked the transaction rollback only
+     */
+    boolean canRollbackToSavepoint() {
+        return !entityManager.getTransaction().getRollbackOnly();
+    }
+
+    /**
+     * Roll the database back to the savepoint, and clear the persistence context of the changes of the exchange. The
+     * entities managed before the exchange is reattached and refreshed, the entities created by the exchange is
+     * refreshed as well and left detached if they does not exist in the database after the roll back
+     */
+    void rollbackToSavepoint() {
+        Session session = getSession();
+        session.doWork(connection -> connection.rollback(savepoint));
+        List<Object> entities = new ArrayList<>();
+        for (Map.Entry<Object, EntityEntry> entry : ((SessionImplementor) session).getPersistenceContext().reentrantSafeEntityEntries()) {
+            entities.add(entry.getKey());
+        }
+        entityManager.clear();
+        for (Object entity : entities) {
+            try {
+                if (!session.contains(entity)) {
+                    session.buildLockRequest(LockOptions.NONE).lock(entity);
+                }
+                session.refresh(entity);
+            } catch (RuntimeException e) {
+                if (session.contains(entity)) {
+                    session.evict(entity);
+                }
+            }
+        }
+    }
+
+    private Session getSession() {
+        return entityManager.unwrap(Session.class);
+    }
+
+    /**
+     * The exchange is bound by this batch if it is the exchange of the batch, or a copy of it processed on the thread
+     * of the batch before the exchange of the batch is released
+     */
+    boolean isBoundBy(Exchange exchange) {
+        return exchangeId.equals(exchange.getExchangeId()) || (!released && thread == Thread.currentThread());
+    }
+}
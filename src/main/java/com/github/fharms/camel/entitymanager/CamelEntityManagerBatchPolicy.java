@@ -0,0 +1,172 @@
+/**
+ * The MIT License
+ * Copyright © 2016 Flemming Harms
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.fharms.camel.entitymanager;
+
+import org.apache.camel.Consumer;
+import org.apache.camel.Exchange;
+import org.apache.camel.Route;
+import org.apache.camel.RollbackExchangeException;
+import org.apache.camel.impl.ScheduledBatchPollingConsumer;
+import org.apache.camel.support.RoutePolicySupport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Route policy for routes consuming from a JPA endpoint, keeping the entity manager created by the JPA consumer bound
+ * for all exchanges of a poll. The beans invoked by the route write to the persistence context of the consumer, which
+ * is flushed once per poll by the last exchange of the poll, instead of once per exchange.
+ * <p>
+ * If an exchange fails, or the failure is handled by an error handler, or the flush fails, the transaction of the
+ * whole poll is rolled back and the entities of the poll is replayed one exchange per poll, each in a transaction of
+ * its own. In the replay the exchanges has the semantics of the JPA consumer without the policy: a failure handled by
+ * an error handler is committed, and an entity failing without being handled is polled again.
+ * </p>
+ * <p>
+ * A policy created with savepoints set a JDBC savepoint on the connection of the consumer before each exchange, and
+ * flush the changes of the exchange when it is done. If the exchange or the flush fails the database is rolled back to
+ * the savepoint and the exception is moved to the property
+ * {@value CamelEntityManagerHandler#CAMEL_ENTITY_MANAGER_ROLLBACK_EXCEPTION}, so the consumer continues with the next
+ * exchange and one commit covers all the good exchanges of the poll. A failure of an operation of the entity manager
+ * itself marks the transaction rollback only, and the poll is replayed as without savepoints.
+ * </p>
+ * <pre>
+ * from("jpa:com.example.MyEntity?maxMessagesPerPoll=100")
+ *     .routePolicy(camelEntityManagerBatchPolicy)
+ *     .bean(myBean, "process");
+ * </pre>
+ */
+@Component
+public class CamelEntityManagerBatchPolicy extends RoutePolicySupport {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CamelEntityManagerBatchPolicy.class);
+
+    private final CamelEntityManagerHandler handler;
+
+    private final ConcurrentMap<Consumer, Replay> replays = new ConcurrentHashMap<>();
+
+    private final boolean savepoints;
+
+    private final AtomicLong replayCount = new AtomicLong();
+
+    private final AtomicLong rollbackCount = new AtomicLong();
+
+    @Autowired
+    public CamelEntityManagerBatchPolicy(CamelEntityManagerHandler handler) {
+        this(handler, false);
+    }
+
+    public CamelEntityManagerBatchPolicy(CamelEntityManagerHandler handler, boolean savepoints) {
+        this.handler = handler;
+        this.savepoints = savepoints;
+    }
+
+    @Override
+    public void onExchangeBegin(Route route, Exchange exchange) {
+        handler.bindBatch(exchange, savepoints);
+    }
+
+    @Override
+    public void onExchangeDone(Route route, Exchange exchange) {
+        if (handler.releaseBatch(exchange)) {
+            rollbackCount.incrementAndGet();
+            return;
+        }
+        Consumer consumer = route.getConsumer();
+        if (!(consumer instanceof ScheduledBatchPollingConsumer)) {
+            return;
+        }
+        Replay replay = replays.get(consumer);
+        if (replay != null) {
+            if (exchange.getProperty(Exchange.BATCH_COMPLETE, false, Boolean.class) && --replay.remaining <= 0) {
+                stopReplay(consumer);
+            }
+            return;
+        }
+        int batchSize = exchange.getProperty(Exchange.BATCH_SIZE, 1, Integer.class);
+        if (batchSize > 1 && CamelEntityManagerHandler.isFailed(exchange)) {
+            if (exchange.getException() == null) {
+                exchange.setException(new RollbackExchangeException("The poll is rolled back and replayed one exchange at a time",
+                        exchange, exchange.getProperty(Exchange.EXCEPTION_CAUGHT, Exception.class)));
+            }
+            ScheduledBatchPollingConsumer batchConsumer = (ScheduledBatchPollingConsumer) consumer;
+            replays.put(consumer, new Replay(batchConsumer.getMaxMessagesPerPoll(), batchSize));
+            batchConsumer.setMaxMessagesPerPoll(1);
+            replayCount.incrementAndGet();
+            LOG.debug("Exchange {} failed, the poll of {} exchanges of route {} is rolled back and replayed",
+                    exchange.getExchangeId(), batchSize, route.getId());
+        }
+    }
+
+    @Override
+    public void onStop(Route route) {
+        stopReplay(route.getConsumer());
+    }
+
+    @Override
+    public void onRemove(Route route) {
+        stopReplay(route.getConsumer());
+    }
+
+    private void stopReplay(Consumer consumer) {
+        Replay replay = consumer != null ? replays.remove(consumer) : null;
+        if (replay != null) {
+            ((ScheduledBatchPollingConsumer) consumer).setMaxMessagesPerPoll(replay.maxMessagesPerPoll);
+        }
+    }
+
+    public boolean isSavepoints() {
+        return savepoints;
+    }
+
+    /**
+     * @return Number of polls rolled back and replayed one exchange at a time
+     */
+    public long getReplayCount() {
+        return replayCount.get();
+    }
+
+    /**
+     * @return Number of exchanges rolled back to their savepoint
+     */
+    public long getRollbackCount() {
+        return rollbackCount.get();
+    }
+
+    private static final class Replay {
+
+        private final int maxMessagesPerPoll;
+
+        private int remaining;
+
+        private Replay(int maxMessagesPerPoll, int remaining) {
+            this.maxMessagesPerPoll = maxMessagesPerPoll;
+            this.remaining = remaining;
+        }
+    }
+}
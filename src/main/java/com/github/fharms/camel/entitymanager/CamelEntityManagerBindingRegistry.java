@@ -0,0 +1,169 @@
+/**
+ * The MIT License
+ * Copyright © 2016 Flemming Harms
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.fharms.camel.entitymanager;
+
+import org.apache.camel.Exchange;
+import org.hibernate.Session;
+
+import javax.persistence.EntityManager;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Registry of the entity managers currently bound to a thread by the {@link CamelEntityManagerHandler}. The bindings
+ * is kept in a concurrent set and the totals in striped counters, so binding and releasing doesn't contend on a
+ * global lock. The bindings is read through {@link CamelEntityManagerBindings}.
+ */
+final class CamelEntityManagerBindingRegistry {
+
+    static final String UNKNOWN_UNIT = "unknown";
+
+    private final Set<ActiveBinding> activeBindings = ConcurrentHashMap.newKeySet();
+
+    private final ConcurrentMap<String, LongAdder> boundTotals = new ConcurrentHashMap<>();
+
+    private final LongAdder boundCount = new LongAdder();
+
+    /**
+     * Register the entity manager bound to the current thread
+     *
+     * @return The binding to pass to {@link #unregister(ActiveBinding)} when it is released
+     */
+    ActiveBinding register(EntityManager em, Exchange exchange, Method beanMethod, String persistenceUnit) {
+        ActiveBinding binding = new ActiveBinding(em, exchange, beanMethod,
+                persistenceUnit != null ? persistenceUnit : UNKNOWN_UNIT);
+        activeBindings.add(binding);
+        boundCount.increment();
+        LongAdder unitTotal = boundTotals.get(binding.persistenceUnit);
+        if (unitTotal == null) {
+            unitTotal = boundTotals.computeIfAbsent(binding.persistenceUnit, unit -> new LongAdder());
+        }
+        unitTotal.increment();
+        return binding;
+    }
+
+    void unregister(ActiveBinding binding) {
+        if (binding != null) {
+            activeBindings.remove(binding);
+        }
+    }
+
+    Collection<ActiveBinding> getActiveBindings() {
+        return new ArrayList<>(activeBindings);
+    }
+
+    /**
+     * @return The bindings held longer than the threshold, or by a thread that is terminated
+     */
+    List<ActiveBinding> getStuckBindings(long thresholdMillis) {
+        List<ActiveBinding> stuck = new ArrayList<>();
+        for (ActiveBinding binding : activeBindings) {
+            if (binding.getAgeMillis() >= thresholdMillis || !binding.thread.isAlive()) {
+                stuck.add(binding);
+            }
+        }
+        return stuck;
+    }
+
+    long getBoundCount() {
+        return boundCount.sum();
+    }
+
+    Map<String, Long> getBoundTotals() {
+        Map<String, Long> totals = new HashMap<>();
+        boundTotals.forEach((unit, total) -> totals.put(unit, total.sum()));
+        return totals;
+    }
+
+    /**
+     * An entity manager bound to a thread
+     */
+    static final class ActiveBinding {
+
+        private final Thread thread = Thread.currentThread();
+
+        private final long boundNanos = System.nanoTime();
+
+        private final EntityManager em;
+
+        private final String exchangeId;
+
+        private final String routeId;
+
+        private final Method beanMethod;
+
+        private final String persistenceUnit;
+
+        private ActiveBinding(EntityManager em, Exchange exchange, Method beanMethod, String persistenceUnit) {
+            this.em = em;
+            this.exchangeId = exchange != null ? exchange.getExchangeId() : null;
+            this.routeId = exchange != null ? CamelEntityManagerEvents.getRouteId(exchange) : null;
+            this.beanMethod = beanMethod;
+            this.persistenceUnit = persistenceUnit;
+        }
+
+        Thread getThread() {
+            return thread;
+        }
+
+        String getPersistenceUnit() {
+            return persistenceUnit;
+        }
+
+        long getAgeMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - boundNanos);
+        }
+
+        /**
+         * The number of entities in the persistence context. It is read from another thread than the one using the
+         * entity manager, so it is only an estimate, and -1 if it can't be read
+         */
+        int getPersistenceContextSize() {
+            try {
+                return em.unwrap(Session.class).getStatistics().getEntityCount();
+            } catch (RuntimeException e) {
+                return -1;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "thread=" + thread.getName() +
+                    ", route=" + routeId +
+                    ", exchange=" + exchangeId +
+                    ", method=" + (beanMethod != null ? beanMethod.getDeclaringClass().getName() + "." + beanMethod.getName() : null) +
+                    ", unit=" + persistenceUnit +
+                    ", age=" + getAgeMillis() + "ms" +
+                    ", entities=" + getPersistenceContextSize();
+        }
+    }
+}
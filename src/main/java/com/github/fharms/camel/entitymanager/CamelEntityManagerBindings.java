@@ -0,0 +1,166 @@
+/**
+ * The MIT License
+ * Copyright © 2016 Flemming Harms
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.fharms.camel.entitymanager;
+
+import com.github.fharms.camel.entitymanager.CamelEntityManagerBindingRegistry.ActiveBinding;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * MBean exposing the entity managers currently bound to threads by the {@link CamelEntityManagerHandler}. It is
+ * registered in the platform MBean server as {@value #OBJECT_NAME}, with an id appended if more than one application
+ * context is running in the JVM.
+ * <p>
+ * A binding is stuck when it is held longer than the stuck threshold, or the thread holding it is terminated without
+ * releasing it.
+ * </p>
+ */
+@Component
+public class CamelEntityManagerBindings implements CamelEntityManagerBindingsMBean, InitializingBean, DisposableBean {
+
+    public static final String OBJECT_NAME = "com.github.fharms.camel.entitymanager:type=Bindings";
+
+    private static final Logger LOG = LoggerFactory.getLogger(CamelEntityManagerBindings.class);
+
+    private static final AtomicInteger INSTANCES = new AtomicInteger();
+
+    private final CamelEntityManagerBindingRegistry registry;
+
+    private volatile long stuckThresholdMillis = 60_000;
+
+    private ObjectName objectName;
+
+    @Autowired
+    public CamelEntityManagerBindings(CamelEntityManagerHandler handler) {
+        this.registry = handler.getBindingRegistry();
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        try {
+            server.registerMBean(this, name);
+        } catch (InstanceAlreadyExistsException e) {
+            name = new ObjectName(OBJECT_NAME + ",id=" + INSTANCES.incrementAndGet());
+            server.registerMBean(this, name);
+        }
+        objectName = name;
+        LOG.debug("Registered Camel entity manager bindings MBean {}", objectName);
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        if (objectName != null) {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            objectName = null;
+        }
+    }
+
+    public ObjectName getObjectName() {
+        return objectName;
+    }
+
+    @Override
+    public int getActiveBindingCount() {
+        return registry.getActiveBindings().size();
+    }
+
+    @Override
+    public long getBoundCount() {
+        return registry.getBoundCount();
+    }
+
+    @Override
+    public long getOldestBindingAgeMillis() {
+        return registry.getActiveBindings().stream()
+                .mapToLong(ActiveBinding::getAgeMillis)
+                .max()
+                .orElse(0);
+    }
+
+    @Override
+    public Map<String, Integer> getActiveBindingsPerUnit() {
+        Map<String, Integer> perUnit = new HashMap<>();
+        registry.getActiveBindings().forEach(binding -> perUnit.merge(binding.getPersistenceUnit(), 1, Integer::sum));
+        return perUnit;
+    }
+
+    @Override
+    public Map<String, Long> getBoundCountPerUnit() {
+        return registry.getBoundTotals();
+    }
+
+    @Override
+    public long getStuckThresholdMillis() {
+        return stuckThresholdMillis;
+    }
+
+    @Override
+    public void setStuckThresholdMillis(long stuckThresholdMillis) {
+        this.stuckThresholdMillis = stuckThresholdMillis;
+    }
+
+    @Override
+    public int getStuckBindingCount() {
+        return registry.getStuckBindings(stuckThresholdMillis).size();
+    }
+
+    @Override
+    public String[] dumpBindings() {
+        return registry.getActiveBindings().stream()
+                .map(ActiveBinding::toString)
+                .toArray(String[]::new);
+    }
+
+    @Override
+    public String[] dumpStuckBindings() {
+        List<ActiveBinding> stuck = registry.getStuckBindings(stuckThresholdMillis);
+        String[] dump = new String[stuck.size()];
+        for (int i = 0; i < dump.length; i++) {
+            ActiveBinding binding = stuck.get(i);
+            StringBuilder builder = new StringBuilder(binding.toString());
+            if (!binding.getThread().isAlive()) {
+                builder.append(System.lineSeparator()).append("\tthread is terminated");
+            }
+            for (StackTraceElement element : binding.getThread().getStackTrace()) {
+                builder.append(System.lineSeparator()).append("\tat ").append(element);
+            }
+            dump[i] = builder.toString();
+        }
+        return dump;
+    }
+}
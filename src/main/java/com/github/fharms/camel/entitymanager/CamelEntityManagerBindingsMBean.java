@@ -0,0 +1,76 @@
+/**
+ * The MIT License
+ * Copyright © 2016 Flemming Harms
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.fharms.camel.entitymanager;
+
+import java.util.Map;
+
+/**
+ * Management interface of {@link CamelEntityManagerBindings}
+ */
+public interface CamelEntityManagerBindingsMBean {
+
+    /**
+     * @return The number of entity managers currently bound to a thread
+     */
+    int getActiveBindingCount();
+
+    /**
+     * @return The number of entity managers bound since the start
+     */
+    long getBoundCount();
+
+    /**
+     * @return The age in milliseconds of the oldest active binding, or 0 if there is no bindings
+     */
+    long getOldestBindingAgeMillis();
+
+    /**
+     * @return The number of active bindings per persistence unit
+     */
+    Map<String, Integer> getActiveBindingsPerUnit();
+
+    /**
+     * @return The number of bindings since the start per persistence unit
+     */
+    Map<String, Long> getBoundCountPerUnit();
+
+    long getStuckThresholdMillis();
+
+    void setStuckThresholdMillis(long stuckThresholdMillis);
+
+    /**
+     * @return The number of bindings held longer than the stuck threshold, or by a terminated thread
+     */
+    int getStuckBindingCount();
+
+    /**
+     * @return A line per active binding with the thread, route, exchange, bean method, persistence unit, age and
+     * size of the persistence context
+     */
+    String[] dumpBindings();
+
+    /**
+     * @return The stuck bindings with the stack trace of the thread holding them
+     */
+    String[] dumpStuckBindings();
+}
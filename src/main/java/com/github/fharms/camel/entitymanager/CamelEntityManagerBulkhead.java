@@ -0,0 +1,149 @@
+/**
+ * The MIT License
+ * Copyright © 2016 Flemming Harms
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.fharms.camel.entitymanager;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bulkhead limiting the number of threads concurrently invoking beans with an entity manager for the persistence
+ * unit. Register it as a bean and the {@link CamelEntityManagerHandler} acquire a permit before invoking a bean
+ * method, and release it when the method returns. Nested bean calls on the same thread reuse the permit.
+ * <p>
+ * Size it to the connection pool of the persistence unit, so threads waits here in a fair queue instead of waiting
+ * for a connection inside the persistence provider. If no permit is available within the wait timeout the call is
+ * rejected according to the {@link RejectionPolicy}. A call proceeding without a permit is remembered for the thread
+ * as well, so its nested calls proceed without waiting again.
+ * </p>
+ */
+public class CamelEntityManagerBulkhead {
+
+    public enum RejectionPolicy {
+        /**
+         * Throw a {@link RejectedExecutionException}
+         */
+        FAIL,
+        /**
+         * Invoke the bean method without a permit
+         */
+        PROCEED
+    }
+
+    private final String unitName;
+
+    private final int maxConcurrentCalls;
+
+    private final long waitTimeoutMillis;
+
+    private final RejectionPolicy rejectionPolicy;
+
+    private final Semaphore semaphore;
+
+    /**
+     * True if the thread holds a permit, false if it proceeds without a permit
+     */
+    private final ThreadLocal<Boolean> permitLocal = new ThreadLocal<>();
+
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    public CamelEntityManagerBulkhead(String unitName, int maxConcurrentCalls) {
+        this(unitName, maxConcurrentCalls, 0, RejectionPolicy.FAIL);
+    }
+
+    public CamelEntityManagerBulkhead(String unitName, int maxConcurrentCalls, long waitTimeoutMillis, RejectionPolicy rejectionPolicy) {
+        this.unitName = unitName;
+        this.maxConcurrentCalls = maxConcurrentCalls;
+        this.waitTimeoutMillis = waitTimeoutMillis;
+        this.rejectionPolicy = rejectionPolicy;
+        this.semaphore = new Semaphore(maxConcurrentCalls, true);
+    }
+
+    /**
+     * Acquire a permit unless the current thread already holds one, or already proceeds without a permit
+     *
+     * @return true if a permit was acquired, or the thread proceeds without a permit, and must be released
+     */
+    boolean acquire() {
+        if (permitLocal.get() != null) {
+            return false;
+        }
+        try {
+            if (semaphore.tryAcquire(waitTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                permitLocal.set(Boolean.TRUE);
+                return true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted waiting for persistence unit [" + unitName + "]", e);
+        }
+
+        rejectedCount.incrementAndGet();
+        if (rejectionPolicy == RejectionPolicy.FAIL) {
+            throw new RejectedExecutionException("No permit for persistence unit [" + unitName + "] within "
+                    + waitTimeoutMillis + " ms, " + getQueueLength() + " threads waiting");
+        }
+        permitLocal.set(Boolean.FALSE);
+        return true;
+    }
+
+    void release() {
+        Boolean permit = permitLocal.get();
+        permitLocal.remove();
+        if (Boolean.TRUE.equals(permit)) {
+            semaphore.release();
+        }
+    }
+
+    public String getUnitName() {
+        return unitName;
+    }
+
+    public int getMaxConcurrentCalls() {
+        return maxConcurrentCalls;
+    }
+
+    public long getWaitTimeoutMillis() {
+        return waitTimeoutMillis;
+    }
+
+    public RejectionPolicy getRejectionPolicy() {
+        return rejectionPolicy;
+    }
+
+    /**
+     * @return The estimated number of threads waiting for a permit
+     */
+    public int getQueueLength() {
+        return semaphore.getQueueLength();
+    }
+
+    public int getAvailablePermits() {
+        return semaphore.availablePermits();
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+}
@@ -0,0 +1,350 @@
+/**
+ * The MIT License
+ * Copyright © 2016 Flemming Harms
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.fharms.camel.entitymanager;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.CamelContextAware;
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.ProducerTemplate;
+import org.hibernate.SessionFactory;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.event.service.spi.EventListenerRegistry;
+import org.hibernate.event.spi.EventType;
+import org.hibernate.event.spi.PostCommitDeleteEventListener;
+import org.hibernate.event.spi.PostCommitInsertEventListener;
+import org.hibernate.event.spi.PostCommitUpdateEventListener;
+import org.hibernate.event.spi.PostDeleteEvent;
+import org.hibernate.event.spi.PostInsertEvent;
+import org.hibernate.event.spi.PostUpdateEvent;
+import org.hibernate.persister.entity.EntityPersister;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.persistence.EntityManagerFactory;
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Invalidate the second level cache of the other nodes, when entities of the persistence unit is changed. The
+ * invalidation register post commit listeners on the session factory, which capture the entities inserted, updated and
+ * deleted by the sessions of the unit, including the updates found by the dirty check of managed entities. The ids of
+ * the entities committed in a Spring transaction is coalesced by entity class into one message, a <code>Map</code> of
+ * the entity name to the ids, and published to the endpoint when the transaction complete. Without a Spring transaction
+ * the entity is published when the session commit.
+ * <p>
+ * Every node consumes the endpoint with the invalidation as processor, and evict the entities from the cache regions
+ * of the persistence unit, and the query regions if <code>evictQueryRegions</code> is set. The messages published by
+ * the node itself is skipped, as the node cache is updated by the commit.
+ * </p>
+ * <pre>
+ *   from("jms:topic:cacheInvalidation").process(orderCacheInvalidation);
+ * </pre>
+ * <p>
+ * By default only the entities with a cache region is published. The bulk update and delete queries and the stateless
+ * session operations is not captured.
+ * </p>
+ */
+public class CamelEntityManagerCacheInvalidation implements Processor, CamelContextAware {
+
+    public static final String CAMEL_ENTITY_MANAGER_CACHE_NODE = "CamelEntityManagerCacheNode";
+
+    private static final Logger LOG = LoggerFactory.getLogger(CamelEntityManagerCacheInvalidation.class);
+
+    private final EntityManagerFactory entityManagerFactory;
+
+    private final String unitName;
+
+    private final String endpointUri;
+
+    private final AtomicLong publishedBatchCount = new AtomicLong();
+
+    private final AtomicLong publishedEntityCount = new AtomicLong();
+
+    private final AtomicLong publishFailureCount = new AtomicLong();
+
+    private final AtomicLong receivedBatchCount = new AtomicLong();
+
+    private final AtomicLong skippedBatchCount = new AtomicLong();
+
+    private final AtomicLong evictedEntityCount = new AtomicLong();
+
+    private String nodeId = UUID.randomUUID().toString();
+
+    private boolean cachedOnly = true;
+
+    private boolean evictQueryRegions = true;
+
+    private CamelContext camelContext;
+
+    private volatile ProducerTemplate producerTemplate;
+
+    public CamelEntityManagerCacheInvalidation(EntityManagerFactory entityManagerFactory, String unitName, String endpointUri) {
+        this.entityManagerFactory = entityManagerFactory;
+        this.unitName = unitName;
+        this.endpointUri = endpointUri;
+        EventListenerRegistry registry = entityManagerFactory.unwrap(SessionFactoryImplementor.class)
+                .getServiceRegistry().getService(EventListenerRegistry.class);
+        CommitListener listener = new CommitListener();
+        registry.appendListeners(EventType.POST_COMMIT_INSERT, listener);
+        registry.appendListeners(EventType.POST_COMMIT_UPDATE, listener);
+        registry.appendListeners(EventType.POST_COMMIT_DELETE, listener);
+    }
+
+    /**
+     * Capture the id of an entity committed by a session of the persistence unit. Within a Spring transaction the ids
+     * is collected by a synchronization and published as one message when the transaction complete, otherwise the
+     * entity is published at once.
+     */
+    private void capture(EntityPersister persister, Serializable id) {
+        if (id == null || !isPublished(persister)) {
+            return;
+        }
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            HashMap<String, HashSet<Serializable>> ids = new HashMap<>();
+            ids.computeIfAbsent(persister.getEntityName(), key -> new HashSet<>()).add(id);
+            publish(ids, 1);
+            return;
+        }
+        PendingInvalidation pending = null;
+        for (TransactionSynchronization synchronization : TransactionSynchronizationManager.getSynchronizations()) {
+            if (synchronization instanceof PendingInvalidation && ((PendingInvalidation) synchronization).isOwnedBy(this)) {
+                pending = (PendingInvalidation) synchronization;
+                break;
+            }
+        }
+        if (pending == null) {
+            pending = new PendingInvalidation();
+            TransactionSynchronizationManager.registerSynchronization(pending);
+        }
+        pending.add(persister.getEntityName(), id);
+    }
+
+    /**
+     * Publish the ids coalesced by entity class as one message
+     */
+    private void publish(HashMap<String, HashSet<Serializable>> ids, int count) {
+        if (ids.isEmpty()) {
+            return;
+        }
+        try {
+            getProducerTemplate().sendBodyAndHeader(endpointUri, ids, CAMEL_ENTITY_MANAGER_CACHE_NODE, nodeId);
+            publishedBatchCount.incrementAndGet();
+            publishedEntityCount.addAndGet(count);
+        } catch (RuntimeException e) {
+            publishFailureCount.incrementAndGet();
+            LOG.warn("Failed publishing the cache invalidation of {} entities to {}", count, endpointUri, e);
+        }
+    }
+
+    /**
+     * Evict the entities of an invalidation message published by another node
+     */
+    @Override
+    public void process(Exchange exchange) throws Exception {
+        receivedBatchCount.incrementAndGet();
+        if (nodeId.equals(exchange.getIn().getHeader(CAMEL_ENTITY_MANAGER_CACHE_NODE, String.class))) {
+            skippedBatchCount.incrementAndGet();
+            return;
+        }
+        Map<?, ?> ids = exchange.getIn().getMandatoryBody(Map.class);
+        for (Map.Entry<?, ?> entry : ids.entrySet()) {
+            Class<?> entityClass = exchange.getContext().getClassResolver().resolveClass(String.valueOf(entry.getKey()));
+            if (entityClass == null) {
+                LOG.debug("Unknown entity {} in cache invalidation is ignored", entry.getKey());
+                continue;
+            }
+            for (Object id : (Collection<?>) entry.getValue()) {
+                entityManagerFactory.getCache().evict(entityClass, id);
+                evictedEntityCount.incrementAndGet();
+            }
+        }
+        if (evictQueryRegions) {
+            entityManagerFactory.unwrap(SessionFactory.class).getCache().evictQueryRegions();
+        }
+    }
+
+    private boolean isPublished(EntityPersister persister) {
+        return !cachedOnly || persister.hasCache();
+    }
+
+    private ProducerTemplate getProducerTemplate() {
+        if (producerTemplate == null) {
+            synchronized (this) {
+                if (producerTemplate == null) {
+                    if (camelContext == null) {
+                        throw new IllegalStateException("No CamelContext to publish the cache invalidation with");
+                    }
+                    producerTemplate = camelContext.createProducerTemplate();
+                }
+            }
+        }
+        return producerTemplate;
+    }
+
+    @Override
+    public CamelContext getCamelContext() {
+        return camelContext;
+    }
+
+    @Override
+    public void setCamelContext(CamelContext camelContext) {
+        this.camelContext = camelContext;
+    }
+
+    public String getUnitName() {
+        return unitName;
+    }
+
+    public String getEndpointUri() {
+        return endpointUri;
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public void setNodeId(String nodeId) {
+        this.nodeId = nodeId;
+    }
+
+    public boolean isCachedOnly() {
+        return cachedOnly;
+    }
+
+    /**
+     * @param cachedOnly Only publish the entities with a cache region, defaults to true
+     */
+    public void setCachedOnly(boolean cachedOnly) {
+        this.cachedOnly = cachedOnly;
+    }
+
+    public boolean isEvictQueryRegions() {
+        return evictQueryRegions;
+    }
+
+    /**
+     * @param evictQueryRegions Evict the query cache regions when entities is evicted, defaults to true
+     */
+    public void setEvictQueryRegions(boolean evictQueryRegions) {
+        this.evictQueryRegions = evictQueryRegions;
+    }
+
+    public long getPublishedBatchCount() {
+        return publishedBatchCount.get();
+    }
+
+    public long getPublishedEntityCount() {
+        return publishedEntityCount.get();
+    }
+
+    public long getPublishFailureCount() {
+        return publishFailureCount.get();
+    }
+
+    public long getReceivedBatchCount() {
+        return receivedBatchCount.get();
+    }
+
+    public long getSkippedBatchCount() {
+        return skippedBatchCount.get();
+    }
+
+    public long getEvictedEntityCount() {
+        return evictedEntityCount.get();
+    }
+
+    /**
+     * The ids committed in the transaction, published when the transaction complete. The listeners is called after
+     * the commit of the session, so the ids is published whatever the status of the Spring transaction.
+     */
+    private class PendingInvalidation extends TransactionSynchronizationAdapter {
+
+        private final HashMap<String, HashSet<Serializable>> ids = new HashMap<>();
+
+        private int count;
+
+        boolean isOwnedBy(CamelEntityManagerCacheInvalidation invalidation) {
+            return invalidation == CamelEntityManagerCacheInvalidation.this;
+        }
+
+        synchronized void add(String entityName, Serializable id) {
+            if (ids.computeIfAbsent(entityName, key -> new HashSet<>()).add(id)) {
+                count++;
+            }
+        }
+
+        @Override
+        public synchronized void afterCompletion(int status) {
+            publish(ids, count);
+        }
+    }
+
+    /**
+     * Capture the entities inserted, updated and deleted when the session commit, including the updates found by the
+     * dirty check
+     */
+    private class CommitListener implements PostCommitInsertEventListener, PostCommitUpdateEventListener,
+            PostCommitDeleteEventListener {
+
+        @Override
+        public void onPostInsert(PostInsertEvent event) {
+            capture(event.getPersister(), event.getId());
+        }
+
+        @Override
+        public void onPostUpdate(PostUpdateEvent event) {
+            capture(event.getPersister(), event.getId());
+        }
+
+        @Override
+        public void onPostDelete(PostDeleteEvent event) {
+            capture(event.getPersister(), event.getId());
+        }
+
+        @Override
+        public void onPostInsertCommitFailed(PostInsertEvent event) {
+        }
+
+        @Override
+        public void onPostUpdateCommitFailed(PostUpdateEvent event) {
+        }
+
+        @Override
+        public void onPostDeleteCommitFailed(PostDeleteEvent event) {
+        }
+
+        @Override
+        public boolean requiresPostCommitHanding(EntityPersister persister) {
+            return isPublished(persister);
+        }
+    }
+}
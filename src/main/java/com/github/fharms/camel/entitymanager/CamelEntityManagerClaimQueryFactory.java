@@ -0,0 +1,200 @@
+/**
+ * The MIT License
+ * Copyright © 2016 Flemming Harms
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.fharms.camel.entitymanager;
+
+import org.apache.camel.component.jpa.QueryFactory;
+import org.hibernate.LockOptions;
+import org.hibernate.Session;
+import org.hibernate.dialect.Dialect;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityTransaction;
+import javax.persistence.LockModeType;
+import javax.persistence.PersistenceException;
+import javax.persistence.Query;
+import javax.persistence.metamodel.EntityType;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Query factory for JPA consumers competing for the rows of the same table on several nodes. Set it as the
+ * <code>consumer.queryFactory</code> of the JPA endpoint, and every poll claims up to max results rows no other
+ * consumer has claimed, so the nodes drain the table in parallel instead of waiting for the locks of each other.
+ * <p>
+ * If the database supports <code>SKIP LOCKED</code> the rows is selected with {@link LockModeType#PESSIMISTIC_WRITE}
+ * skipping the rows locked by other consumers. Otherwise, for example on H2, the rows is claimed by setting the claim
+ * attribute, a Long, to the time the claim expires, each row in a short transaction of its own. The claimed rows is
+ * returned by the query of the consumer, and if the consumer doesn't delete or exclude them before the claim expires
+ * they can be claimed again.
+ * </p>
+ * <p>
+ * The condition is a JPQL expression selecting the rows to consume, where the entity has the alias <code>e</code>.
+ * </p>
+ */
+public class CamelEntityManagerClaimQueryFactory implements QueryFactory {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CamelEntityManagerClaimQueryFactory.class);
+
+    private static final String LOCK_TIMEOUT = "javax.persistence.lock.timeout";
+
+    private static final int CANDIDATES_PER_RESULT = 4;
+
+    private final Class<?> entityClass;
+
+    private final String condition;
+
+    private final int maxResults;
+
+    private final String claimAttribute;
+
+    private final long claimTimeoutMillis;
+
+    private final AtomicLong lastClaim = new AtomicLong();
+
+    private volatile Boolean skipLocked;
+
+    public CamelEntityManagerClaimQueryFactory(Class<?> entityClass, String condition, int maxResults) {
+        this(entityClass, condition, maxResults, null, 0);
+    }
+
+    public CamelEntityManagerClaimQueryFactory(Class<?> entityClass, String condition, int maxResults,
+                                               String claimAttribute, long claimTimeoutMillis) {
+        this.entityClass = entityClass;
+        this.condition = condition;
+        this.maxResults = maxResults;
+        this.claimAttribute = claimAttribute;
+        this.claimTimeoutMillis = claimTimeoutMillis;
+    }
+
+    @Override
+    public Query createQuery(EntityManager em) {
+        EntityType<?> entityType = em.getMetamodel().entity(entityClass);
+        String id = entityType.getId(entityType.getIdType().getJavaType()).getName();
+        String from = " from " + entityType.getName() + " e";
+        if (isSkipLocked(em)) {
+            return em.createQuery("select e" + from + where(condition) + " order by e." + id)
+                    .setLockMode(LockModeType.PESSIMISTIC_WRITE)
+                    .setHint(LOCK_TIMEOUT, LockOptions.SKIP_LOCKED)
+                    .setMaxResults(maxResults);
+        }
+        if (claimAttribute == null) {
+            throw new IllegalStateException("The database doesn't support SKIP LOCKED, and no claim attribute is " +
+                    "configured for " + entityType.getName());
+        }
+
+        long claimedUntil = lastClaim.updateAndGet(last -> Math.max(last + 1, System.currentTimeMillis() + claimTimeoutMillis));
+        List<Object> claimed = claim(em, from, id, claimedUntil);
+        if (claimed.isEmpty()) {
+            return em.createQuery("select e" + from + " where 1 = 0");
+        }
+        return em.createQuery("select e" + from + " where e." + id + " in :ids and e." + claimAttribute +
+                " = :claimedUntil order by e." + id)
+                .setParameter("ids", claimed)
+                .setParameter("claimedUntil", claimedUntil);
+    }
+
+    /**
+     * Claim the rows not claimed or with an expired claim, trying the candidates in random order so the consumers
+     * rarely try to claim the same rows
+     */
+    private List<Object> claim(EntityManager em, String from, String id, long claimedUntil) {
+        String unclaimed = "(e." + claimAttribute + " is null or e." + claimAttribute + " < :now)";
+        EntityManager claimEm = CamelEntityManagerFactories.getNativeEntityManagerFactory(em).createEntityManager();
+        try {
+            long now = System.currentTimeMillis();
+            List<?> candidates = claimEm.createQuery("select e." + id + from + " where " + unclaimed +
+                    (condition == null ? "" : " and (" + condition + ")") + " order by e." + id)
+                    .setParameter("now", now)
+                    .setMaxResults(maxResults * CANDIDATES_PER_RESULT)
+                    .getResultList();
+            List<Object> shuffled = new ArrayList<>(candidates);
+            Collections.shuffle(shuffled);
+
+            Query update = claimEm.createQuery("update" + from + " set e." + claimAttribute + " = :claimedUntil" +
+                    " where e." + id + " = :id and " + unclaimed);
+            List<Object> claimed = new ArrayList<>(maxResults);
+            for (Object candidate : shuffled) {
+                if (claimed.size() == maxResults) {
+                    break;
+                }
+                EntityTransaction transaction = claimEm.getTransaction();
+                try {
+                    transaction.begin();
+                    int updated = update.setParameter("claimedUntil", claimedUntil)
+                            .setParameter("id", candidate)
+                            .setParameter("now", now)
+                            .executeUpdate();
+                    transaction.commit();
+                    if (updated == 1) {
+                        claimed.add(candidate);
+                    }
+                } catch (PersistenceException e) {
+                    if (transaction.isActive()) {
+                        transaction.rollback();
+                    }
+                    LOG.debug("Failed claiming {} {}, it is claimed by another consumer", entityClass.getSimpleName(), candidate, e);
+                }
+            }
+            return claimed;
+        } finally {
+            claimEm.close();
+        }
+    }
+
+    private boolean isSkipLocked(EntityManager em) {
+        if (skipLocked == null) {
+            Dialect dialect = ((SessionFactoryImplementor) em.unwrap(Session.class).getSessionFactory()).getDialect();
+            skipLocked = !dialect.getForUpdateSkipLockedString().equals(dialect.getForUpdateString());
+        }
+        return skipLocked;
+    }
+
+    private static String where(String condition) {
+        return condition == null ? "" : " where " + condition;
+    }
+
+    public Class<?> getEntityClass() {
+        return entityClass;
+    }
+
+    public String getCondition() {
+        return condition;
+    }
+
+    public int getMaxResults() {
+        return maxResults;
+    }
+
+    public String getClaimAttribute() {
+        return claimAttribute;
+    }
+
+    public long getClaimTimeoutMillis() {
+        return claimTimeoutMillis;
+    }
+}
@@ -0,0 +1,136 @@
+/**
+ * The MIT License
+ * Copyright © 2016 Flemming Harms
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.fharms.camel.entitymanager;
+
+import org.apache.camel.Exchange;
+
+import javax.persistence.EntityManager;
+import javax.persistence.LockModeType;
+import javax.persistence.Query;
+import javax.persistence.QueryTimeoutException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static com.github.fharms.camel.entitymanager.CamelEntityManagerHandler.CAMEL_ENTITY_MANAGER_DEADLINE;
+import static com.github.fharms.camel.entitymanager.CamelEntityManagerHandler.CAMEL_ENTITY_MANAGER_TIMEOUT;
+
+/**
+ * Propagate the deadline of the exchange to the queries and locks created through the Camel entity manager proxy.
+ * <p>
+ * The deadline is the header {@value CamelEntityManagerHandler#CAMEL_ENTITY_MANAGER_DEADLINE} in milliseconds since
+ * the epoch, or the header {@value CamelEntityManagerHandler#CAMEL_ENTITY_MANAGER_TIMEOUT} in milliseconds added to
+ * the time the exchange was created.
+ * </p>
+ */
+final class CamelEntityManagerDeadline {
+
+    static final String QUERY_TIMEOUT = "javax.persistence.query.timeout";
+
+    static final String LOCK_TIMEOUT = "javax.persistence.lock.timeout";
+
+    private static final ConcurrentMap<Method, Method> LOCK_METHODS = new ConcurrentHashMap<>();
+
+    private CamelEntityManagerDeadline() {
+    }
+
+    /**
+     * @param exchange The current exchange or null
+     * @return The deadline in milliseconds since the epoch or null if there is no deadline
+     */
+    static Long getDeadline(Exchange exchange) {
+        if (exchange == null) {
+            return null;
+        }
+        Object deadline = exchange.getIn().getHeader(CAMEL_ENTITY_MANAGER_DEADLINE);
+        if (deadline instanceof Date) {
+            return ((Date) deadline).getTime();
+        }
+        if (deadline != null) {
+            return exchange.getContext().getTypeConverter().convertTo(Long.class, exchange, deadline);
+        }
+        Long timeout = exchange.getIn().getHeader(CAMEL_ENTITY_MANAGER_TIMEOUT, Long.class);
+        Date created = exchange.getProperty(Exchange.CREATED_TIMESTAMP, Date.class);
+        if (timeout != null && created != null) {
+            return created.getTime() + timeout;
+        }
+        return null;
+    }
+
+    /**
+     * Fail fast if the deadline has passed
+     *
+     * @return The remaining time in milliseconds
+     */
+    static long remainingMillis(Exchange exchange, long deadline) {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+            throw new QueryTimeoutException("Deadline of exchange " + exchange.getExchangeId() + " exceeded by " + -remaining + " ms");
+        }
+        return remaining;
+    }
+
+    /**
+     * Invoke the method with the lock timeout set to the remaining time if it takes a {@link LockModeType}, and set
+     * the query timeout on created queries. The query timeout is rounded up to whole seconds, as the providers
+     * truncate it to seconds and a timeout of zero means no timeout.
+     */
+    @SuppressWarnings("unchecked")
+    static Object invoke(EntityManager em, Method method, Object[] args, long remainingMillis) throws Exception {
+        Class<?>[] parameterTypes = method.getParameterTypes();
+        int lockModeIndex = Arrays.asList(parameterTypes).indexOf(LockModeType.class);
+        if (lockModeIndex >= 0) {
+            Map<String, Object> properties = new HashMap<>();
+            if (parameterTypes.length > lockModeIndex + 1 && args[lockModeIndex + 1] != null) {
+                properties.putAll((Map<String, Object>) args[lockModeIndex + 1]);
+            }
+            properties.putIfAbsent(LOCK_TIMEOUT, remainingMillis);
+            Object[] lockArgs = Arrays.copyOf(args, lockModeIndex + 2);
+            lockArgs[lockModeIndex + 1] = properties;
+            return getLockMethodWithProperties(method, lockModeIndex).invoke(em, lockArgs);
+        }
+
+        Object result = method.invoke(em, args);
+        if (result instanceof Query) {
+            long timeout = (remainingMillis + 999) / 1000 * 1000;
+            ((Query) result).setHint(QUERY_TIMEOUT, (int) Math.min(timeout, Integer.MAX_VALUE));
+        }
+        return result;
+    }
+
+    private static Method getLockMethodWithProperties(Method method, int lockModeIndex) {
+        return LOCK_METHODS.computeIfAbsent(method, m -> {
+            Class<?>[] parameterTypes = Arrays.copyOf(m.getParameterTypes(), lockModeIndex + 2);
+            parameterTypes[lockModeIndex + 1] = Map.class;
+            try {
+                return EntityManager.class.getMethod(m.getName(), parameterTypes);
+            } catch (NoSuchMethodException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ * The MIT License
+ * Copyright © 2016 Flemming Harms
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.fharms.camel.entitymanager;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.spi.RouteContext;
+import org.apache.camel.spi.UnitOfWork;
+
+import java.lang.reflect.Method;
+
+/**
+ * Emit the Java Flight Recorder events of the Camel entity manager. The events is only created when they are enabled
+ * in a running recording, and nothing is emitted if the JVM has no flight recorder.
+ */
+final class CamelEntityManagerEvents {
+
+    private static final boolean AVAILABLE = isAvailable();
+
+    private CamelEntityManagerEvents() {
+    }
+
+    /**
+     * Emit an event for the entity manager bound to the current thread
+     */
+    static void bind(Exchange exchange, Method beanMethod, String persistenceUnit) {
+        if (AVAILABLE) {
+            CamelEntityManagerFlightRecorder.bind(exchange, beanMethod, persistenceUnit);
+        }
+    }
+
+    /**
+     * Emit an event for the entity manager released from the current thread
+     */
+    static void release(Exchange exchange, Method beanMethod, String persistenceUnit) {
+        if (AVAILABLE) {
+            CamelEntityManagerFlightRecorder.release(exchange, beanMethod, persistenceUnit);
+        }
+    }
+
+    /**
+     * Begin the event timing the entity manager operation
+     *
+     * @param operation The name of the entity manager method
+     * @return The event to pass to {@link #end(Object, Exchange, Method, String)} or null if it is not enabled
+     */
+    static Object begin(String operation) {
+        if (AVAILABLE) {
+            return CamelEntityManagerFlightRecorder.begin(operation);
+        }
+        return null;
+    }
+
+    /**
+     * End the event returned by {@link #begin(String)} and commit it if the duration is above the threshold
+     */
+    static void end(Object event, Exchange exchange, Method beanMethod, String persistenceUnit) {
+        if (event != null) {
+            CamelEntityManagerFlightRecorder.end(event, exchange, beanMethod, persistenceUnit);
+        }
+    }
+
+    /**
+     * @return The id of the route currently processing the exchange, or the id of the route which created the exchange
+     * if it has no route context
+     */
+    static String getRouteId(Exchange exchange) {
+        UnitOfWork unitOfWork = exchange.getUnitOfWork();
+        RouteContext routeContext = unitOfWork != null ? unitOfWork.getRouteContext() : null;
+        if (routeContext != null && routeContext.getRoute() != null) {
+            return routeContext.getRoute().getId();
+        }
+        return exchange.getFromRouteId();
+    }
+
+    private static boolean isAvailable() {
+        try {
+            return CamelEntityManagerFlightRecorder.isAvailable();
+        } catch (LinkageError | RuntimeException e) {
+            return false;
+        }
+    }
+}
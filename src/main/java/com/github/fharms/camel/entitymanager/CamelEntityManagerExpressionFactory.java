@@ -0,0 +1,124 @@
+/**
+ * The MIT License
+ * Copyright © 2016 Flemming Harms
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.fharms.camel.entitymanager;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.Expression;
+import org.apache.camel.component.bean.AnnotationExpressionFactory;
+import org.apache.camel.language.LanguageAnnotation;
+import org.springframework.orm.jpa.EntityManagerFactoryUtils;
+import org.springframework.orm.jpa.SharedEntityManagerCreator;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import java.lang.annotation.Annotation;
+import java.util.Set;
+
+/**
+ * Create the expressions of the parameters annotated with {@link CamelEntityManager}, evaluated by the bean parameter
+ * binding of Camel for every call. The entity manager injected is the first of
+ * <ul>
+ *     <li>the Camel entity manager bound to the thread by the {@link CamelEntityManagerRoutePolicy} or a proxied bean</li>
+ *     <li>the Camel entity manager in the header of the exchange</li>
+ *     <li>the entity manager of the current Spring transaction</li>
+ *     <li>a shared entity manager, as injected by {@link javax.persistence.PersistenceContext}</li>
+ * </ul>
+ * The Camel entity manager joins the current transaction before every call, as the entity manager fields wrapped by the
+ * {@link CamelEntityManagerHandler}. The entity manager factory of the fallbacks is looked up once by the persistence
+ * unit name as for {@link javax.persistence.PersistenceContext}, or by type if it is left out.
+ */
+public class CamelEntityManagerExpressionFactory implements AnnotationExpressionFactory {
+
+    @Override
+    public Expression createExpression(CamelContext camelContext, Annotation annotation,
+                                       LanguageAnnotation languageAnnotation, Class<?> expressionReturnType) {
+        if (!expressionReturnType.isAssignableFrom(EntityManager.class)) {
+            throw new IllegalArgumentException("@CamelEntityManager is only supported on parameters of type EntityManager, not "
+                    + expressionReturnType.getName());
+        }
+        return new EntityManagerExpression(camelContext, ((CamelEntityManager) annotation).unitName());
+    }
+
+    private static final class EntityManagerExpression implements Expression {
+
+        private final CamelContext camelContext;
+
+        private final String unitName;
+
+        private volatile CamelEntityManagerHandler handler;
+
+        private volatile EntityManagerFactory entityManagerFactory;
+
+        private volatile EntityManager sharedEntityManager;
+
+        private EntityManagerExpression(CamelContext camelContext, String unitName) {
+            this.camelContext = camelContext;
+            this.unitName = unitName;
+        }
+
+        @Override
+        public <T> T evaluate(Exchange exchange, Class<T> type) {
+            EntityManager em = getHandler().getBoundEntityManager();
+            if (em == null) {
+                em = exchange.getIn().getHeader(CamelEntityManagerHandler.CAMEL_ENTITY_MANAGER, EntityManager.class);
+            }
+            if (em != null) {
+                em = getHandler().createJoiningEntityManager(em, exchange, unitName);
+            } else {
+                EntityManagerFactory emf = getEntityManagerFactory();
+                em = EntityManagerFactoryUtils.getTransactionalEntityManager(emf);
+                if (em == null) {
+                    if (sharedEntityManager == null) {
+                        sharedEntityManager = SharedEntityManagerCreator.createSharedEntityManager(emf);
+                    }
+                    em = sharedEntityManager;
+                }
+            }
+            return type.cast(em);
+        }
+
+        private CamelEntityManagerHandler getHandler() {
+            if (handler == null) {
+                Set<CamelEntityManagerHandler> handlers = camelContext.getRegistry().findByType(CamelEntityManagerHandler.class);
+                if (handlers.size() != 1) {
+                    throw new IllegalStateException("Expected one CamelEntityManagerHandler in the registry, found " + handlers.size());
+                }
+                handler = handlers.iterator().next();
+            }
+            return handler;
+        }
+
+        private EntityManagerFactory getEntityManagerFactory() {
+            if (entityManagerFactory == null) {
+                entityManagerFactory = getHandler().findEntityManagerFactory(unitName);
+            }
+            return entityManagerFactory;
+        }
+
+        @Override
+        public String toString() {
+            return "camelEntityManager(" + unitName + ")";
+        }
+    }
+}
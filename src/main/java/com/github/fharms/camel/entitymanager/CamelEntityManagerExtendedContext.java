@@ -0,0 +1,317 @@
+/**
+ * The MIT License
+ * Copyright © 2016 Flemming Harms
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.fharms.camel.entitymanager;
+
+import org.hibernate.Session;
+import org.hibernate.engine.spi.EntityKey;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The extended persistence contexts of a field annotated with {@link CamelExtendedPersistenceContext}, one per
+ * thread. The entities returned by find, getReference and queries is tracked in least recently used order with the
+ * time they was loaded, so the oldest can be detached when there is more than max entities, and the expired reloaded.
+ * <p>
+ * The commits of the persistence unit, and the bulk statements through the Camel entity manager proxies, is published
+ * to the extended persistence contexts by the {@link CamelEntityManagerExtendedContextRegistry} of the handler. A
+ * persistence context containing an entity of a written type is cleared the next time it is used. The persistence contexts is closed when the handler is destroyed,
+ * or when their thread is terminated.
+ * </p>
+ */
+final class CamelEntityManagerExtendedContext {
+
+    private static final Set<String> READ_METHODS = new HashSet<>(Arrays.asList("find", "getReference", "contains",
+            "createQuery", "createNamedQuery", "getCriteriaBuilder", "getMetamodel"));
+
+    private final EntityManagerFactory entityManagerFactory;
+
+    private final int maxEntities;
+
+    private final long maxAgeMillis;
+
+    private final ThreadLocal<Context> contextLocal = new ThreadLocal<>();
+
+    private final Set<Context> contexts = ConcurrentHashMap.newKeySet();
+
+    CamelEntityManagerExtendedContext(EntityManagerFactory entityManagerFactory, CamelExtendedPersistenceContext config) {
+        this.entityManagerFactory = entityManagerFactory;
+        this.maxEntities = config.maxEntities();
+        this.maxAgeMillis = config.maxAgeMillis();
+    }
+
+    /**
+     * Returns true if the method only reads, and can use the extended persistence context
+     */
+    static boolean supports(Method method, Object[] args) {
+        return READ_METHODS.contains(method.getName()) && !isBulkStatement(args);
+    }
+
+    /**
+     * Invoke the method on the extended persistence context of the current thread
+     */
+    Object invoke(Method method, Object[] args) throws Exception {
+        Context context = contextLocal.get();
+        if (context == null || !context.em.isOpen()) {
+            context = new Context();
+            contexts.add(context);
+            contextLocal.set(context);
+        }
+        return context.invoke(method, args);
+    }
+
+    /**
+     * Mark the written types in every persistence context of the field, and close the contexts of terminated threads
+     */
+    void invalidate(Set<Class<?>> classes) {
+        for (Context context : contexts) {
+            if (!context.thread.isAlive()) {
+                contexts.remove(context);
+                context.em.close();
+                continue;
+            }
+            context.invalidated.addAll(classes);
+            context.dirty = true;
+        }
+    }
+
+    /**
+     * Close the persistence contexts of all threads
+     */
+    void close() {
+        for (Context context : contexts) {
+            contexts.remove(context);
+            if (context.em.isOpen()) {
+                context.em.close();
+            }
+        }
+    }
+
+    static boolean isBulkStatement(Object[] args) {
+        if (args == null || args.length == 0 || !(args[0] instanceof String)) {
+            return false;
+        }
+        String statement = ((String) args[0]).trim();
+        return statement.regionMatches(true, 0, "update", 0, 6) || statement.regionMatches(true, 0, "delete", 0, 6) ||
+                statement.regionMatches(true, 0, "insert", 0, 6);
+    }
+
+    /**
+     * The extended persistence context of a thread
+     */
+    private final class Context {
+
+        private final Thread thread = Thread.currentThread();
+
+        private final EntityManager em = entityManagerFactory.createEntityManager();
+
+        private final Session session = em.unwrap(Session.class);
+
+        private final LinkedHashMap<EntityReference, Long> entities = new LinkedHashMap<>(16, 0.75f, true);
+
+        private final Map<String, Class<?>> mappedClasses = new HashMap<>();
+
+        private final Set<Class<?>> invalidated = ConcurrentHashMap.newKeySet();
+
+        private volatile boolean dirty;
+
+        private long nextExpiry = Long.MAX_VALUE;
+
+        private Object invoke(Method method, Object[] args) throws Exception {
+            beforeAccess();
+            Object result = method.invoke(em, args);
+            switch (method.getName()) {
+                case "find":
+                    if (result != null && isExpired(result)) {
+                        em.detach(result);
+                        result = method.invoke(em, args);
+                    }
+                    record(result);
+                    break;
+                case "getReference":
+                    record(result);
+                    break;
+                case "createQuery":
+                case "createNamedQuery":
+                    result = createQueryProxy(method.getReturnType(), result);
+                    break;
+            }
+            evict();
+            return result;
+        }
+
+        /**
+         * Wrap the query so the entities it returns is tracked
+         */
+        private Object createQueryProxy(Class<?> queryType, Object query) {
+            return Proxy.newProxyInstance(queryType.getClassLoader(), new Class[]{queryType}, (proxy, method, args) -> {
+                boolean execute = "getResultList".equals(method.getName()) || "getSingleResult".equals(method.getName());
+                if (execute) {
+                    beforeAccess();
+                }
+                Object result = method.invoke(query, args);
+                if (execute) {
+                    recordResult(result);
+                    evict();
+                }
+                return result == query ? proxy : result;
+            });
+        }
+
+        /**
+         * Clear the persistence context if it contains a type written since last access, and detach the expired
+         * entities
+         */
+        private void beforeAccess() {
+            if (dirty) {
+                dirty = false;
+                List<Class<?>> written = new ArrayList<>(invalidated);
+                invalidated.removeAll(written);
+                if (containsAny(written)) {
+                    clear();
+                }
+            }
+            long now = System.currentTimeMillis();
+            if (now >= nextExpiry) {
+                nextExpiry = Long.MAX_VALUE;
+                Iterator<Map.Entry<EntityReference, Long>> iterator = entities.entrySet().iterator();
+                while (iterator.hasNext()) {
+                    Map.Entry<EntityReference, Long> entry = iterator.next();
+                    if (entry.getValue() + maxAgeMillis <= now) {
+                        iterator.remove();
+                        detach(entry.getKey().entity);
+                    } else {
+                        nextExpiry = Math.min(nextExpiry, entry.getValue() + maxAgeMillis);
+                    }
+                }
+            }
+        }
+
+        private boolean containsAny(List<Class<?>> written) {
+            SessionFactoryImplementor sessionFactory = (SessionFactoryImplementor) session.getSessionFactory();
+            for (Object key : session.getStatistics().getEntityKeys()) {
+                String entityName = ((EntityKey) key).getEntityName();
+                Class<?> mappedClass = mappedClasses.computeIfAbsent(entityName,
+                        name -> sessionFactory.getEntityPersister(name).getMappedClass());
+                for (Class<?> writtenClass : written) {
+                    if (writtenClass.isAssignableFrom(mappedClass)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        private void recordResult(Object result) {
+            if (result instanceof Collection) {
+                ((Collection<?>) result).forEach(this::recordResult);
+            } else if (result instanceof Object[]) {
+                Arrays.stream((Object[]) result).forEach(this::recordResult);
+            } else if (result != null && session.contains(result)) {
+                record(result);
+            }
+        }
+
+        private void record(Object entity) {
+            EntityReference reference = new EntityReference(entity);
+            if (entities.get(reference) == null) {
+                long loaded = System.currentTimeMillis();
+                entities.put(reference, loaded);
+                nextExpiry = Math.min(nextExpiry, loaded + maxAgeMillis);
+            }
+        }
+
+        private boolean isExpired(Object entity) {
+            Long loaded = entities.get(new EntityReference(entity));
+            if (loaded == null || loaded + maxAgeMillis > System.currentTimeMillis()) {
+                return false;
+            }
+            entities.remove(new EntityReference(entity));
+            return true;
+        }
+
+        /**
+         * Detach the least recently used entities above max entities, and clear the persistence context if the
+         * entities loaded through associations makes it grow beyond twice the max
+         */
+        private void evict() {
+            Iterator<EntityReference> iterator = entities.keySet().iterator();
+            while (entities.size() > maxEntities) {
+                EntityReference eldest = iterator.next();
+                iterator.remove();
+                detach(eldest.entity);
+            }
+            if (session.getStatistics().getEntityCount() > maxEntities * 2) {
+                clear();
+            }
+        }
+
+        private void detach(Object entity) {
+            if (session.contains(entity)) {
+                em.detach(entity);
+            }
+        }
+
+        private void clear() {
+            em.clear();
+            entities.clear();
+            nextExpiry = Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Identity of a tracked entity
+     */
+    private static final class EntityReference {
+
+        private final Object entity;
+
+        private EntityReference(Object entity) {
+            this.entity = entity;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof EntityReference && ((EntityReference) other).entity == entity;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(entity);
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/**
+ * The MIT License
+ * Copyright © 2016 Flemming Harms
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.fharms.camel.entitymanager;
+
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.event.service.spi.EventListenerRegistry;
+import org.hibernate.event.spi.EventType;
+import org.hibernate.event.spi.PostCommitDeleteEventListener;
+import org.hibernate.event.spi.PostCommitInsertEventListener;
+import org.hibernate.event.spi.PostCommitUpdateEventListener;
+import org.hibernate.event.spi.PostDeleteEvent;
+import org.hibernate.event.spi.PostInsertEvent;
+import org.hibernate.event.spi.PostUpdateEvent;
+import org.hibernate.persister.entity.EntityPersister;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.persistence.EntityManagerFactory;
+import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Registry of the extended persistence contexts of the fields wrapped by the {@link CamelEntityManagerHandler}.
+ * <p>
+ * The entities inserted, updated and deleted is captured by post commit listeners on the session factories of the
+ * extended persistence contexts, so every commit of the persistence unit in the JVM is seen, whatever entity manager
+ * it is made with, including the updates found by the dirty check of managed entities. The bulk statements is not
+ * seen by the listeners, they is recorded with {@link #recordWrite(Method, Object[])} when executed through the Camel
+ * entity manager proxies of the handler, and published when the transaction commits. A bulk statement executed with
+ * another entity manager is only seen by the extended persistence contexts when the entities expire.
+ * </p>
+ * The persistence contexts is closed by {@link #close()} when the handler is destroyed.
+ */
+final class CamelEntityManagerExtendedContextRegistry {
+
+    private final Collection<CamelEntityManagerExtendedContext> extendedContexts = new CopyOnWriteArrayList<>();
+
+    private final Map<SessionFactoryImplementor, Boolean> sessionFactories = new IdentityHashMap<>();
+
+    private final CommitListener commitListener = new CommitListener();
+
+    CamelEntityManagerExtendedContext register(EntityManagerFactory entityManagerFactory, CamelExtendedPersistenceContext config) {
+        CamelEntityManagerExtendedContext extendedContext = new CamelEntityManagerExtendedContext(entityManagerFactory, config);
+        extendedContexts.add(extendedContext);
+        SessionFactoryImplementor sessionFactory = entityManagerFactory.unwrap(SessionFactoryImplementor.class);
+        synchronized (sessionFactories) {
+            if (sessionFactories.put(sessionFactory, Boolean.TRUE) == null) {
+                EventListenerRegistry registry = sessionFactory.getServiceRegistry().getService(EventListenerRegistry.class);
+                registry.appendListeners(EventType.POST_COMMIT_INSERT, commitListener);
+                registry.appendListeners(EventType.POST_COMMIT_UPDATE, commitListener);
+                registry.appendListeners(EventType.POST_COMMIT_DELETE, commitListener);
+            }
+        }
+        return extendedContext;
+    }
+
+    /**
+     * Record the bulk statements executed by the method, so all types is invalidated in the extended persistence
+     * contexts when the transaction commits, or immediately if there is no transaction
+     */
+    void recordWrite(Method method, Object[] args) {
+        if (extendedContexts.isEmpty()) {
+            return;
+        }
+        switch (method.getName()) {
+            case "removeAllById":
+                written(Collections.singleton((Class<?>) args[0]));
+                break;
+            case "bulkUpdate":
+            case "bulkDelete":
+                written(Collections.singleton(Object.class));
+                break;
+            case "createQuery":
+            case "createNativeQuery":
+                if (CamelEntityManagerExtendedContext.isBulkStatement(args)) {
+                    written(Collections.singleton(Object.class));
+                }
+                break;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void written(Set<Class<?>> classes) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            publish(classes);
+            return;
+        }
+        Set<Class<?>> pending = (Set<Class<?>>) TransactionSynchronizationManager.getResource(this);
+        if (pending == null) {
+            Set<Class<?>> transactionWrites = new HashSet<>();
+            TransactionSynchronizationManager.bindResource(this, transactionWrites);
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCompletion(int status) {
+                    TransactionSynchronizationManager.unbindResourceIfPossible(CamelEntityManagerExtendedContextRegistry.this);
+                    if (status == TransactionSynchronization.STATUS_COMMITTED) {
+                        publish(transactionWrites);
+                    }
+                }
+            });
+            pending = transactionWrites;
+        }
+        pending.addAll(classes);
+    }
+
+    private void publish(Set<Class<?>> classes) {
+        extendedContexts.forEach(extendedContext -> extendedContext.invalidate(classes));
+    }
+
+    /**
+     * Close the persistence contexts of all threads
+     */
+    void close() {
+        extendedContexts.forEach(CamelEntityManagerExtendedContext::close);
+    }
+
+    /**
+     * Invalidate the type of the entities inserted, updated and deleted when the session commit
+     */
+    private class CommitListener implements PostCommitInsertEventListener, PostCommitUpdateEventListener,
+            PostCommitDeleteEventListener {
+
+        @Override
+        public void onPostInsert(PostInsertEvent event) {
+            publish(Collections.singleton(event.getPersister().getMappedClass()));
+        }
+
+        @Override
+        public void onPostUpdate(PostUpdateEvent event) {
+            publish(Collections.singleton(event.getPersister().getMappedClass()));
+        }
+
+        @Override
+        public void onPostDelete(PostDeleteEvent event) {
+            publish(Collections.singleton(event.getPersister().getMappedClass()));
+        }
+
+        @Override
+        public void onPostInsertCommitFailed(PostInsertEvent event) {
+        }
+
+        @Override
+        public void onPostUpdateCommitFailed(PostUpdateEvent event) {
+        }
+
+        @Override
+        public void onPostDeleteCommitFailed(PostDeleteEvent event) {
+        }
+
+        @Override
+        public boolean requiresPostCommitHanding(EntityPersister persister) {
+            return true;
+        }
+    }
+}
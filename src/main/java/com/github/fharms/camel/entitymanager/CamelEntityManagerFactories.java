@@ -0,0 +1,55 @@
+/**
+ * The MIT License
+ * Copyright © 2016 Flemming Harms
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.fharms.camel.entitymanager;
+
+import org.springframework.orm.jpa.EntityManagerFactoryInfo;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+/**
+ * Resolve the native entity manager factory behind the proxies of Spring, so entity managers of the same persistence
+ * unit can be created and compared whether they is created by the Spring proxy or the native factory.
+ */
+final class CamelEntityManagerFactories {
+
+    private CamelEntityManagerFactories() {
+    }
+
+    /**
+     * @return The native entity manager factory of the entity manager
+     */
+    static EntityManagerFactory getNativeEntityManagerFactory(EntityManager em) {
+        return getNativeEntityManagerFactory(em.getEntityManagerFactory());
+    }
+
+    /**
+     * @return The native entity manager factory, or the factory itself if it is not a Spring proxy
+     */
+    static EntityManagerFactory getNativeEntityManagerFactory(EntityManagerFactory emf) {
+        if (emf instanceof EntityManagerFactoryInfo) {
+            return ((EntityManagerFactoryInfo) emf).getNativeEntityManagerFactory();
+        }
+        return emf;
+    }
+}
@@ -0,0 +1,178 @@
+/**
+ * The MIT License
+ * Copyright © 2016 Flemming Harms
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.fharms.camel.entitymanager;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import org.apache.camel.Exchange;
+
+import java.lang.reflect.Method;
+
+/**
+ * The Java Flight Recorder events of the Camel entity manager. It is only loaded by {@link CamelEntityManagerEvents}
+ * when the jdk.jfr module is available. The enabled state of the event types is checked before an event is created,
+ * so no event is allocated when there is no recording.
+ */
+final class CamelEntityManagerFlightRecorder {
+
+    private static final String PREFIX = "com.github.fharms.camel.entitymanager.";
+
+    private static final EventType BIND = EventType.getEventType(BindEvent.class);
+
+    private static final EventType JOIN = EventType.getEventType(JoinEvent.class);
+
+    private static final EventType OPERATION = EventType.getEventType(OperationEvent.class);
+
+    private static final EventType FLUSH = EventType.getEventType(FlushEvent.class);
+
+    private static final EventType RELEASE = EventType.getEventType(ReleaseEvent.class);
+
+    private CamelEntityManagerFlightRecorder() {
+    }
+
+    static boolean isAvailable() {
+        return FlightRecorder.isAvailable();
+    }
+
+    static void bind(Exchange exchange, Method beanMethod, String persistenceUnit) {
+        if (BIND.isEnabled()) {
+            commit(new BindEvent(), exchange, beanMethod, persistenceUnit);
+        }
+    }
+
+    static void release(Exchange exchange, Method beanMethod, String persistenceUnit) {
+        if (RELEASE.isEnabled()) {
+            commit(new ReleaseEvent(), exchange, beanMethod, persistenceUnit);
+        }
+    }
+
+    static Object begin(String operation) {
+        EntityManagerEvent event;
+        if ("joinTransaction".equals(operation)) {
+            if (!JOIN.isEnabled()) {
+                return null;
+            }
+            event = new JoinEvent();
+        } else if ("flush".equals(operation)) {
+            if (!FLUSH.isEnabled()) {
+                return null;
+            }
+            event = new FlushEvent();
+        } else {
+            if (!OPERATION.isEnabled()) {
+                return null;
+            }
+            OperationEvent operationEvent = new OperationEvent();
+            operationEvent.operation = operation;
+            event = operationEvent;
+        }
+        event.begin();
+        return event;
+    }
+
+    static void end(Object event, Exchange exchange, Method beanMethod, String persistenceUnit) {
+        EntityManagerEvent entityManagerEvent = (EntityManagerEvent) event;
+        entityManagerEvent.end();
+        if (entityManagerEvent.shouldCommit()) {
+            commit(entityManagerEvent, exchange, beanMethod, persistenceUnit);
+        }
+    }
+
+    private static void commit(EntityManagerEvent event, Exchange exchange, Method beanMethod, String persistenceUnit) {
+        if (exchange != null) {
+            event.routeId = CamelEntityManagerEvents.getRouteId(exchange);
+            event.exchangeId = exchange.getExchangeId();
+        }
+        if (beanMethod != null) {
+            event.beanMethod = beanMethod.getDeclaringClass().getName() + "." + beanMethod.getName();
+        }
+        event.persistenceUnit = persistenceUnit;
+        event.commit();
+    }
+
+    @Category({"Camel", "Entity Manager"})
+    @StackTrace(false)
+    abstract static class EntityManagerEvent extends Event {
+
+        @Label("Route Id")
+        String routeId;
+
+        @Label("Exchange Id")
+        String exchangeId;
+
+        @Label("Bean Method")
+        String beanMethod;
+
+        @Label("Persistence Unit")
+        String persistenceUnit;
+    }
+
+    @Name(PREFIX + "Bind")
+    @Label("Entity Manager Bind")
+    @Description("The Camel entity manager is bound to the thread")
+    @Category({"Camel", "Entity Manager"})
+    @StackTrace(false)
+    static class BindEvent extends EntityManagerEvent {
+    }
+
+    @Name(PREFIX + "Join")
+    @Label("Entity Manager Join")
+    @Description("The entity manager joins the transaction")
+    @Category({"Camel", "Entity Manager"})
+    @StackTrace(false)
+    static class JoinEvent extends EntityManagerEvent {
+    }
+
+    @Name(PREFIX + "Operation")
+    @Label("Entity Manager Operation")
+    @Description("A method invoked on the entity manager")
+    @Category({"Camel", "Entity Manager"})
+    @StackTrace(false)
+    static class OperationEvent extends EntityManagerEvent {
+
+        @Label("Operation")
+        String operation;
+    }
+
+    @Name(PREFIX + "Flush")
+    @Label("Entity Manager Flush")
+    @Description("The entity manager is flushed")
+    @Category({"Camel", "Entity Manager"})
+    @StackTrace(false)
+    static class FlushEvent extends EntityManagerEvent {
+    }
+
+    @Name(PREFIX + "Release")
+    @Label("Entity Manager Release")
+    @Description("The Camel entity manager is released from the thread")
+    @Category({"Camel", "Entity Manager"})
+    @StackTrace(false)
+    static class ReleaseEvent extends EntityManagerEvent {
+    }
+}
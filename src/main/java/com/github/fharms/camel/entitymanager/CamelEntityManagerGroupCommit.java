@@ -0,0 +1,307 @@
+/**
+ * The MIT License
+ * Copyright © 2016 Flemming Harms
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.fharms.camel.entitymanager;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.ProducerTemplate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.UnexpectedRollbackException;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Experimental processor committing the work of concurrent exchanges in one transaction, for routes where the commit
+ * of the many small transactions dominates. The exchanges arriving within the window of a group, up to the max group
+ * size, is sent to the work endpoint one at a time in the transaction of the group, with a shared entity manager bound
+ * as Camel entity manager, so the beans invoked by the work route is unaware of the group. The transaction is
+ * committed once when the window is over, or the group is full.
+ * <p>
+ * The first exchange of a group leads it, and its thread runs the transaction and the work of all the exchanges of the
+ * group while the other threads wait for the outcome of the group. If the work of an exchange fails the group is
+ * rolled back and closed, the remaining exchanges of the group is not sent and exchanges arriving later is starting a
+ * new group. The failed exchange keeps its exception and the other exchanges of the group fail with an
+ * {@link UnexpectedRollbackException}, also if the commit fails.
+ * </p>
+ * <p>
+ * The work route must not be transacted itself, as the group is its transaction.
+ * </p>
+ * <pre>
+ * from("jms:orders?concurrentConsumers=20")
+ *     .process(orderGroupCommit);
+ * from("direct:storeOrder")
+ *     .bean(orderBean, "store");
+ * </pre>
+ */
+public class CamelEntityManagerGroupCommit implements Processor {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CamelEntityManagerGroupCommit.class);
+
+    private final CamelEntityManagerHandler handler;
+
+    private final EntityManagerFactory entityManagerFactory;
+
+    private final TransactionTemplate transactionTemplate;
+
+    private final String workUri;
+
+    private final int maxGroupSize;
+
+    private final long windowMillis;
+
+    private final AtomicLong groupCount = new AtomicLong();
+
+    private final AtomicLong exchangeCount = new AtomicLong();
+
+    private final AtomicLong rollbackCount = new AtomicLong();
+
+    private Group current;
+
+    private volatile ProducerTemplate template;
+
+    public CamelEntityManagerGroupCommit(CamelEntityManagerHandler handler, EntityManagerFactory entityManagerFactory,
+                                         PlatformTransactionManager transactionManager, String workUri,
+                                         int maxGroupSize, long windowMillis) {
+        this.handler = handler;
+        this.entityManagerFactory = entityManagerFactory;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.workUri = workUri;
+        this.maxGroupSize = maxGroupSize;
+        this.windowMillis = windowMillis;
+    }
+
+    @Override
+    public void process(Exchange exchange) throws Exception {
+        Participant participant = new Participant(exchange);
+        Group group;
+        boolean leader = false;
+        synchronized (this) {
+            if (current == null) {
+                current = new Group();
+                leader = true;
+            }
+            group = current;
+            group.participants.add(participant);
+            group.pending.add(participant);
+            if (group.participants.size() >= maxGroupSize) {
+                close(group);
+            }
+        }
+        exchangeCount.incrementAndGet();
+        if (leader) {
+            group.lead(getTemplate(exchange));
+        } else {
+            participant.done.await();
+        }
+    }
+
+    private synchronized void close(Group group) {
+        group.closed = true;
+        if (current == group) {
+            current = null;
+        }
+    }
+
+    private synchronized boolean isClosed(Group group) {
+        return group.closed;
+    }
+
+    private ProducerTemplate getTemplate(Exchange exchange) {
+        if (template == null) {
+            synchronized (this) {
+                if (template == null) {
+                    template = exchange.getContext().createProducerTemplate();
+                }
+            }
+        }
+        return template;
+    }
+
+    /**
+     * The exchanges committed in one transaction
+     */
+    private class Group {
+
+        private final List<Participant> participants = new ArrayList<>();
+
+        private final BlockingQueue<Participant> pending = new LinkedBlockingQueue<>();
+
+        private boolean closed;
+
+        private Exception failure;
+
+        /**
+         * Send the exchanges of the group to the work endpoint as they arrive until the group is closed, and commit
+         * them in one transaction
+         */
+        private void lead(ProducerTemplate template) {
+            groupCount.incrementAndGet();
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(windowMillis);
+            EntityManager em = entityManagerFactory.createEntityManager();
+            try {
+                transactionTemplate.execute(status -> {
+                    em.joinTransaction();
+                    try {
+                        while (true) {
+                            long remaining = deadline - System.nanoTime();
+                            Participant participant = remaining > 0 && !isClosed(this)
+                                    ? pending.poll(remaining, TimeUnit.NANOSECONDS) : pending.poll();
+                            if (participant != null) {
+                                send(template, em, participant.exchange);
+                            } else if (!isClosed(this)) {
+                                close(this);
+                            } else {
+                                break;
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        close(this);
+                        pending.clear();
+                        fail(e);
+                    }
+                    if (failure != null) {
+                        status.setRollbackOnly();
+                    }
+                    return null;
+                });
+            } catch (RuntimeException e) {
+                fail(e);
+            } finally {
+                em.close();
+                complete();
+            }
+        }
+
+        private void send(ProducerTemplate template, EntityManager em, Exchange exchange) {
+            if (failure != null) {
+                return;
+            }
+            Object previous = exchange.getIn().getHeader(CamelEntityManagerHandler.CAMEL_ENTITY_MANAGER);
+            exchange.getIn().setHeader(CamelEntityManagerHandler.CAMEL_ENTITY_MANAGER, em);
+            handler.bind(exchange);
+            try {
+                template.send(workUri, exchange);
+            } finally {
+                handler.release(exchange);
+                if (previous == null) {
+                    exchange.getIn().removeHeader(CamelEntityManagerHandler.CAMEL_ENTITY_MANAGER);
+                } else {
+                    exchange.getIn().setHeader(CamelEntityManagerHandler.CAMEL_ENTITY_MANAGER, previous);
+                }
+            }
+            if (exchange.getException() != null) {
+                fail(exchange.getException());
+            } else if (exchange.isRollbackOnly()) {
+                fail(new UnexpectedRollbackException("Exchange " + exchange.getExchangeId() + " is marked rollback only"));
+            }
+        }
+
+        /**
+         * Mark the group for rollback and close it, so exchanges arriving later is starting a new group
+         */
+        private void fail(Exception e) {
+            if (failure == null) {
+                failure = e;
+            }
+            close(this);
+        }
+
+        /**
+         * Complete the exchanges of the group with the outcome of the transaction
+         */
+        private void complete() {
+            if (failure != null) {
+                rollbackCount.incrementAndGet();
+                LOG.debug("Group of {} exchanges is rolled back", participants.size(), failure);
+            }
+            for (Participant participant : participants) {
+                if (failure != null && participant.exchange.getException() == null) {
+                    participant.exchange.setException(new UnexpectedRollbackException("The exchange is rolled back " +
+                            "with the group of " + participants.size() + " exchanges", failure));
+                }
+                participant.done.countDown();
+            }
+        }
+    }
+
+    /**
+     * An exchange waiting for the outcome of its group
+     */
+    private static class Participant {
+
+        private final Exchange exchange;
+
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        private Participant(Exchange exchange) {
+            this.exchange = exchange;
+        }
+    }
+
+    public String getWorkUri() {
+        return workUri;
+    }
+
+    public int getMaxGroupSize() {
+        return maxGroupSize;
+    }
+
+    public long getWindowMillis() {
+        return windowMillis;
+    }
+
+    public long getGroupCount() {
+        return groupCount.get();
+    }
+
+    public long getExchangeCount() {
+        return exchangeCount.get();
+    }
+
+    /**
+     * @return Number of groups rolled back
+     */
+    public long getRollbackCount() {
+        return rollbackCount.get();
+    }
+
+    /**
+     * @return Exchanges per group
+     */
+    public double getAverageGroupSize() {
+        long groups = groupCount.get();
+        return groups == 0 ? 0 : (double) exchangeCount.get() / groups;
+    }
+}
@@ -22,37 +22,119 @@
  */
 package com.github.fharms.camel.entitymanager;
 
-import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.apache.camel.CamelContext;
 import org.apache.camel.Exchange;
-import org.springframework.aop.framework.ProxyFactory;
+import org.apache.camel.Navigate;
+import org.apache.camel.Processor;
+import org.apache.camel.Route;
+import org.apache.camel.component.bean.BeanProcessor;
+import org.apache.camel.support.LifecycleStrategySupport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.aop.ProxyMethodInvocation;
+import org.springframework.aop.support.AopUtils;
+import org.springframework.beans.BeansException;
 import org.springframework.beans.factory.BeanCreationException;
+import org.springframework.beans.factory.BeanFactory;
+import org.springframework.beans.factory.BeanFactoryAware;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.ListableBeanFactory;
+import org.springframework.orm.jpa.EntityManagerFactoryUtils;
 import org.springframework.stereotype.Component;
 import org.springframework.transaction.support.TransactionSynchronizationAdapter;
 import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
 import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceException;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
 
 /**
  * Scan for fields type {@link EntityManager} and annotated with {@link PersistenceContext}
  * and wrap the current entity manager proxy with a new proxy to control the flow. If
  * Camel has created a EntityManager we by pass the injected and use this in favour, unless
- * the field or method is annotated with {@link IgnoreCamelEntityManager}
+ * the field or method is annotated with {@link IgnoreCamelEntityManager}. Fields of type
+ * {@link CamelBulkEntityManager} is wrapped with a proxy implementing the bulk operations, and fields annotated
+ * with {@link CamelEntityManagerShard} use the entity manager of the shard selected by the exchange. Fields
+ * annotated with {@link CamelEntityManagerReplica} route reads to the replica, and fields annotated with
+ * {@link CamelExtendedPersistenceContext} keep an extended persistence context per thread for reads without a
+ * transaction. The remaining time until the deadline of the exchange is applied as query and lock timeout.
+ * <p>
+ * If a {@link CamelEntityManagerBulkhead} is registered for the persistence unit of a field, the calls to the bean
+ * is limited by the bulkhead. Methods annotated with {@link CamelEntityManagerRetry} is retried on conflicts.
+ * </p>
+ * <p>
+ * The binding, join, operations, flush and release of the entity managers is emitted as Java Flight Recorder events
+ * by {@link CamelEntityManagerEvents}, and the active bindings is kept in a registry exposed by
+ * {@link CamelEntityManagerBindings}. The operations slower than their threshold is recorded in a ring buffer exposed
+ * by {@link CamelEntityManagerSlowOperations}, and the statements of a bean method is tagged with the route and the bean
+ * method when the {@link CamelEntityManagerStatementTagger} is registered.
+ * </p>
  */
 @Component
-public class CamelEntityManagerHandler {
+public class CamelEntityManagerHandler implements BeanFactoryAware, DisposableBean {
 
     public static final String CAMEL_ENTITY_MANAGER = "CamelEntityManager";
 
+    public static final String CAMEL_ENTITY_MANAGER_DEADLINE = "CamelEntityManagerDeadline";
+
+    public static final String CAMEL_ENTITY_MANAGER_TIMEOUT = "CamelEntityManagerTimeout";
+
+    public static final String CAMEL_ENTITY_MANAGER_ROLLBACK_EXCEPTION = "CamelEntityManagerRollbackException";
+
+    private static final String CAMEL_ENTITY_MANAGER_BINDING = "CamelEntityManagerBinding";
+
+    private static final String CAMEL_ENTITY_MANAGER_BATCH = "CamelEntityManagerBatch";
+
+    private static final String ANY_ROUTE_METHOD = "*";
+
+    private static final Logger LOG = LoggerFactory.getLogger(CamelEntityManagerHandler.class);
+
     private final ThreadLocal<EntityManager> entityManagerLocal = new ThreadLocal<>();
 
+    private final ThreadLocal<Boolean> statelessSessionLocal = new ThreadLocal<>();
+
+    private final ThreadLocal<Boolean> readOnlyLocal = new ThreadLocal<>();
+
+    private final ThreadLocal<Exchange> exchangeLocal = new ThreadLocal<>();
+
+    private final ThreadLocal<Binding> bindingLocal = new ThreadLocal<>();
+
+    private final ThreadLocal<CamelEntityManagerBatch> batchLocal = new ThreadLocal<>();
+
+    private final ThreadLocal<Method> beanMethodLocal = new ThreadLocal<>();
+
+    private BeanFactory beanFactory;
+
+    private volatile Map<String, CamelEntityManagerBulkhead> bulkheads;
+
+    private final Map<Class<?>, ProxiedClass> proxiedClasses = new ConcurrentHashMap<>();
+
+    private final Map<Class<?>, Set<String>> routeMethods = new ConcurrentHashMap<>();
+
+    private volatile boolean routesAdded;
+
+    private final CamelEntityManagerBindingRegistry bindingRegistry = new CamelEntityManagerBindingRegistry();
+
+    private final CamelEntityManagerExtendedContextRegistry extendedContextRegistry = new CamelEntityManagerExtendedContextRegistry();
+
+    private final CamelEntityManagerSlowOperationLog slowOperationLog = new CamelEntityManagerSlowOperationLog(256);
+
     public Object registerProxyHandler(Object bean) {
         List<Field> annotatedFields;
 
@@ -70,7 +152,7 @@ public class CamelEntityManagerHandler {
             try {
                 boolean currentAccessibleState = field.isAccessible();
                 field.setAccessible(true);
-                Object entityManagerProxy = createEntityManagerProxy(EntityManager.class,field.get(bean));
+                Object entityManagerProxy = createEntityManagerProxy(field, field.get(bean));
                 field.set(bean, entityManagerProxy);
                 field.setAccessible(currentAccessibleState);
 
@@ -78,10 +160,17 @@ public class CamelEntityManagerHandler {
                 throw new RuntimeException(e);
             }
         });
-        return createBeanProxy(bean);
+        proxiedClasses.put(bean.getClass(), new ProxiedClass(getBulkheads(annotatedFields), getPersistenceUnits(annotatedFields)));
+        return bean;
     }
 
-    private <T> T createEntityManagerProxy(Class<T> interfaceClass, Object emProxy) {
+    private Object createEntityManagerProxy(Field field, Object emProxy) {
+        Class<?> interfaceClass = field.getType();
+        boolean statelessField = field.isAnnotationPresent(CamelStatelessSession.class);
+        CamelEntityManagerShardRegistry shardRegistry = getShardRegistry(field);
+        CamelEntityManagerReplicaRouter replicaRouter = getReplicaRouter(field);
+        CamelEntityManagerExtendedContext extendedContext = getExtendedContext(field, (EntityManager) emProxy);
+        String persistenceUnit = field.getAnnotation(PersistenceContext.class).unitName();
         InvocationHandler handler = (proxy, method, args) -> {
 
             EntityManager em = entityManagerLocal.get() !=null ? entityManagerLocal.get() : (EntityManager) emProxy;
@@ -94,44 +183,562 @@ public class CamelEntityManagerHandler {
                     return "Camel EntityManager proxy ["+em.toString()+"]";
             }
 
-            if (!em.isJoinedToTransaction()) {
+            Exchange exchange = exchangeLocal.get();
+            long remainingMillis = -1;
+            Long deadline = CamelEntityManagerDeadline.getDeadline(exchange);
+            if (deadline != null) {
+                remainingMillis = CamelEntityManagerDeadline.remainingMillis(exchange, deadline);
+            }
+
+            if (shardRegistry != null && exchange != null) {
+                em = shardRegistry.getTransactionalEntityManager(exchange);
+            }
+
+            boolean bulkMethod = method.getDeclaringClass() == CamelBulkEntityManager.class;
+            Object event = CamelEntityManagerEvents.begin(method.getName());
+            long start = System.nanoTime();
+            try {
+                if (extendedContext != null && em == emProxy && !TransactionSynchronizationManager.isActualTransactionActive()
+                        && CamelEntityManagerExtendedContext.supports(method, args)) {
+                    return extendedContext.invoke(method, args);
+                }
+                if (replicaRouter != null && !bulkMethod && replicaRouter.isReadOnly(readOnlyLocal.get() != null)) {
+                    EntityManager replicaEm = replicaRouter.getEntityManager();
+                    if (replicaEm != null) {
+                        EntityManager primaryEm = em;
+                        long primaryRemainingMillis = remainingMillis;
+                        try {
+                            Object result = replicaRouter.fallbackOnExecution(
+                                    invokeEntityManager(replicaEm, method, args, remainingMillis), method, () -> {
+                                        joinTransaction(primaryEm, exchange, persistenceUnit);
+                                        return invokeEntityManager(primaryEm, method, args, primaryRemainingMillis);
+                                    });
+                            return slowOperationLog.timeQuery(result, method, exchange, beanMethodLocal.get());
+                        } catch (InvocationTargetException e) {
+                            if (!CamelEntityManagerReplicaRouter.isConnectionFailure(e.getCause())) {
+                                throw e;
+                            }
+                            replicaRouter.markUnavailable(e.getCause());
+                        }
+                    }
+                }
+
+                extendedContextRegistry.recordWrite(method, args);
+                joinTransaction(em, exchange, persistenceUnit);
+                if (bulkMethod) {
+                    return CamelBulkEntityManagerOperations.invoke(em, method, args);
+                }
+                boolean stateless = statelessField || statelessSessionLocal.get() != null;
+                if (stateless && CamelStatelessSessionOperations.supports(method)) {
+                    return CamelStatelessSessionOperations.invoke(em, method, args);
+                }
+                if (stateless && CamelStatelessSessionOperations.isQuery(method)) {
+                    CamelStatelessSessionOperations.executeBatch(em);
+                }
+                return slowOperationLog.timeQuery(invokeEntityManager(em, method, args, remainingMillis),
+                        method, exchange, beanMethodLocal.get());
+            } finally {
+                CamelEntityManagerEvents.end(event, exchange, beanMethodLocal.get(), persistenceUnit);
+                slowOperationLog.record(start, method.getName(), args != null && args.length > 0 ? args[0] : null,
+                        exchange, beanMethodLocal.get());
+            }
+        };
+        return Proxy.newProxyInstance(interfaceClass.getClassLoader(), new Class[]{interfaceClass}, handler);
+    }
+
+
+    private void joinTransaction(EntityManager em, Exchange exchange, String persistenceUnit) {
+        if (!em.isJoinedToTransaction()) {
+            Object joinEvent = CamelEntityManagerEvents.begin("joinTransaction");
+            try {
                 em.joinTransaction();
+            } finally {
+                CamelEntityManagerEvents.end(joinEvent, exchange, beanMethodLocal.get(), persistenceUnit);
             }
+        }
+    }
+
+    /**
+     * Invoke the method on the entity manager, and propagate the remaining time of the exchange deadline to queries
+     * and locks if there is a deadline
+     */
+    private Object invokeEntityManager(EntityManager em, Method method, Object[] args, long remainingMillis) throws Exception {
+        if (remainingMillis < 0) {
             return method.invoke(em, args);
+        }
+        return CamelEntityManagerDeadline.invoke(em, method, args, remainingMillis);
+    }
+
+    /**
+     * Returns true if the entity manager fields of the class is wrapped, and the methods invoked from Camel should be
+     * advised by {@link CamelEntityManagerAdvisor}
+     */
+    boolean isProxied(Class<?> beanClass) {
+        return proxiedClasses.containsKey(beanClass);
+    }
+
+    /**
+     * Register the bean methods invoked by the routes of the Camel context when the routes is added, so the methods
+     * is advised by {@link CamelEntityManagerAdvisor} without Camel annotations
+     */
+    void registerCamelContext(CamelContext camelContext) {
+        camelContext.addLifecycleStrategy(new LifecycleStrategySupport() {
+            @Override
+            public void onRoutesAdd(Collection<Route> routes) {
+                routes.forEach(route -> addRouteMethods(route.navigate()));
+                routesAdded = true;
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private void addRouteMethods(Navigate<Processor> navigate) {
+        if (navigate == null || !navigate.hasNext()) {
+            return;
+        }
+        for (Processor processor : navigate.next()) {
+            if (processor instanceof BeanProcessor) {
+                BeanProcessor beanProcessor = (BeanProcessor) processor;
+                String method = beanProcessor.getMethod();
+                routeMethods.computeIfAbsent(AopUtils.getTargetClass(beanProcessor.getBean()),
+                        beanClass -> ConcurrentHashMap.newKeySet()).add(method != null ? method : ANY_ROUTE_METHOD);
+            }
+            if (processor instanceof Navigate) {
+                addRouteMethods((Navigate<Processor>) processor);
+            }
+        }
+    }
+
+    /**
+     * Returns true if a route invokes the method of the class by name, or invokes the bean without a method name. Until
+     * the first routes is added every method is considered invoked by a route
+     */
+    boolean isRouteMethod(Method method, Class<?> beanClass) {
+        if (!routesAdded) {
+            return true;
+        }
+        Set<String> methods = routeMethods.get(beanClass);
+        return methods != null && (methods.contains(method.getName()) || methods.contains(ANY_ROUTE_METHOD));
+    }
+
+    /**
+     * @return The registry of the entity managers currently bound to a thread
+     */
+    CamelEntityManagerBindingRegistry getBindingRegistry() {
+        return bindingRegistry;
+    }
+
+    /**
+     * @return The ring buffer of the entity manager operations slower than their threshold
+     */
+    CamelEntityManagerSlowOperationLog getSlowOperationLog() {
+        return slowOperationLog;
+    }
+
+    /**
+     * @return The Camel entity manager bound to the current thread, or null
+     */
+    EntityManager getBoundEntityManager() {
+        return entityManagerLocal.get();
+    }
+
+    /**
+     * Wrap a Camel entity manager injected as bean parameter, so it joins the current transaction before every call as
+     * the entity manager fields wrapped by the handler. Without a transaction the calls is passed on as is
+     */
+    EntityManager createJoiningEntityManager(EntityManager em, Exchange exchange, String persistenceUnit) {
+        InvocationHandler handler = (proxy, method, args) -> {
+            if (method.getDeclaringClass() != Object.class && TransactionSynchronizationManager.isActualTransactionActive()) {
+                joinTransaction(em, exchange, persistenceUnit);
+            }
+            try {
+                return method.invoke(em, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
         };
-        return (T) Proxy.newProxyInstance(interfaceClass.getClassLoader(), new Class[]{interfaceClass}, handler);
+        return (EntityManager) Proxy.newProxyInstance(EntityManager.class.getClassLoader(), new Class[]{EntityManager.class}, handler);
     }
 
+    /**
+     * @return The entity manager factory of the persistence unit, found as for {@link PersistenceContext#unitName()}
+     */
+    EntityManagerFactory findEntityManagerFactory(String unitName) {
+        return EntityManagerFactoryUtils.findEntityManagerFactory((ListableBeanFactory) beanFactory, unitName);
+    }
 
-    private Object createBeanProxy(Object bean) {
-        MethodInterceptor handler = invocation -> {
-            Method method = invocation.getMethod();
-            switch (method.getName()) {
-                case "hashCode":
-                    return hashCode();
-                case "equals":
-                    return (invocation.getThis() == invocation.getArguments()[0]);
-                case "toString":
-                    return toString();
+    /**
+     * Returns true if calls to the class is limited by a {@link CamelEntityManagerBulkhead}, and the methods invoked
+     * from Camel should be advised by the bulkhead advisor of {@link CamelEntityManagerPostProcessor}
+     */
+    boolean hasBulkheads(Class<?> beanClass) {
+        ProxiedClass proxiedClass = proxiedClasses.get(beanClass);
+        return proxiedClass != null && !proxiedClass.bulkheads.isEmpty();
+    }
+
+    /**
+     * Invoke the advised bean method within the bulkheads of the persistence units. The bulkhead advisor is placed
+     * before the transaction interceptor, so a call waiting for a permit hasn't begun a transaction or checked out a
+     * connection
+     */
+    Object invokeWithinBulkheads(MethodInvocation invocation) throws Throwable {
+        ProxiedClass proxiedClass = proxiedClasses.get(AopUtils.getTargetClass(invocation.getThis()));
+        if (proxiedClass == null || proxiedClass.bulkheads.isEmpty()) {
+            return invocation.proceed();
+        }
+        List<CamelEntityManagerBulkhead> acquired = new ArrayList<>(proxiedClass.bulkheads.size());
+        try {
+            for (CamelEntityManagerBulkhead bulkhead : proxiedClass.bulkheads) {
+                if (bulkhead.acquire()) {
+                    acquired.add(bulkhead);
+                }
             }
+            return invocation.proceed();
+        } finally {
+            acquired.forEach(CamelEntityManagerBulkhead::release);
+        }
+    }
+
+    /**
+     * Invoke the advised bean method with the Camel entity manager bound to the current thread
+     */
+    Object invoke(MethodInvocation invocation) throws Throwable {
+        return invokeBean(invocation, proxiedClasses.get(AopUtils.getTargetClass(invocation.getThis())));
+    }
+
+    private Object invokeBean(MethodInvocation invocation, ProxiedClass proxiedClass) throws Throwable {
+        Method method = invocation.getMethod();
 
-            if (entityManagerLocal.get() == null && !method.isAnnotationPresent(IgnoreCamelEntityManager.class)) {
-                Arrays.stream(invocation.getArguments())
-                        .filter(f -> f instanceof Exchange)
-                        .findFirst()
-                        .map(Exchange.class::cast)
-                        .map(o -> o.getIn().getHeader(CAMEL_ENTITY_MANAGER, EntityManager.class))
-                        .ifPresent(em -> addThreadLocalEntityManager(em));
+        CamelEntityManagerRetry retry = method.getAnnotation(CamelEntityManagerRetry.class);
+        Exchange exchange = findExchange(invocation.getArguments());
+        if (exchange != null && retry == null && entityManagerLocal.get() == null && !method.isAnnotationPresent(IgnoreCamelEntityManager.class)) {
+            EntityManager em = exchange.getIn().getHeader(CAMEL_ENTITY_MANAGER, EntityManager.class);
+            if (em != null) {
+                addThreadLocalEntityManager(em, exchange, method,
+                        proxiedClass != null ? proxiedClass.persistenceUnits : null);
+            }
+        }
+
+        Exchange previousExchange = exchangeLocal.get();
+        Method previousBeanMethod = beanMethodLocal.get();
+        Boolean previousStatelessSession = statelessSessionLocal.get();
+        Boolean previousReadOnly = readOnlyLocal.get();
+        if (exchange != null) {
+            exchangeLocal.set(exchange);
+        }
+        beanMethodLocal.set(method);
+        if (method.isAnnotationPresent(CamelStatelessSession.class)) {
+            statelessSessionLocal.set(Boolean.TRUE);
+        }
+        if (method.isAnnotationPresent(ReadOnlyCamelEntityManager.class)) {
+            readOnlyLocal.set(Boolean.TRUE);
+        }
+        Object previousTag = null;
+        boolean tagged = CamelEntityManagerStatementTagger.isRegistered();
+        if (tagged) {
+            previousTag = CamelEntityManagerStatementTagger.enter(method, exchangeLocal.get(),
+                    proxiedClass != null ? proxiedClass.persistenceUnits : null);
+        }
+        try {
+            if (retry != null) {
+                return invokeWithRetry(invocation, retry);
             }
             return invocation.proceed();
-        };
+        } finally {
+            if (tagged) {
+                CamelEntityManagerStatementTagger.exit(previousTag);
+            }
+            restore(exchangeLocal, previousExchange);
+            restore(beanMethodLocal, previousBeanMethod);
+            restore(statelessSessionLocal, previousStatelessSession);
+            restore(readOnlyLocal, previousReadOnly);
+        }
+    }
 
-        ProxyFactory factory = new ProxyFactory(bean);
-        factory.addAdvice(handler);
 
-        return factory.getProxy();
+    /**
+     * Invoke the bean method with the retry policy. The Camel entity manager is unbound during the attempts, so every
+     * attempt use a fresh entity manager in the new transaction, and the binding is restored afterwards
+     */
+    private Object invokeWithRetry(MethodInvocation invocation, CamelEntityManagerRetry retry) throws Throwable {
+        CamelEntityManagerRetryPolicy policy = beanFactory.getBean(retry.value(), CamelEntityManagerRetryPolicy.class);
+        EntityManager boundEm = entityManagerLocal.get();
+        entityManagerLocal.remove();
+        try {
+            if (invocation instanceof ProxyMethodInvocation) {
+                return policy.invoke(() -> ((ProxyMethodInvocation) invocation).invocableClone().proceed());
+            }
+            return policy.invoke(invocation::proceed);
+        } finally {
+            restore(entityManagerLocal, boundEm);
+        }
+    }
+
+    /**
+     * Bind the Camel entity manager of the exchange, and the exchange, to the current thread until
+     * {@link #release(Exchange)} is called with the exchange. If the exchange is already bound it is ignored.
+     * <p>
+     * Copies of a bound exchange, as the sub-exchanges of a multicast, splitter or recipient list, is processed with
+     * the binding of the parent when they run on the thread of the parent, and is only bound on their own when they
+     * run on another thread
+     * </p>
+     */
+    void bind(Exchange exchange) {
+        Object property = exchange.getProperty(CAMEL_ENTITY_MANAGER_BINDING);
+        if (property instanceof Binding && isBoundBy((Binding) property, exchange)) {
+            return;
+        }
+        clearReleasedBindings();
+        Binding binding = new Binding(exchange, entityManagerLocal.get(), exchangeLocal.get(), bindingLocal.get());
+        exchange.setProperty(CAMEL_ENTITY_MANAGER_BINDING, binding);
+        EntityManager em = exchange.getIn().getHeader(CAMEL_ENTITY_MANAGER, EntityManager.class);
+        if (em != null) {
+            entityManagerLocal.set(em);
+            binding.activeBinding = bindingRegistry.register(em, exchange, null, null);
+            CamelEntityManagerEvents.bind(exchange, null, null);
+        }
+        exchangeLocal.set(exchange);
+        bindingLocal.set(binding);
+    }
+
+    /**
+     * Restore the thread to the state before the exchange was bound. An exchange released from another thread than
+     * the thread it is bound to is marked as released, and the binding is cleared when the bound thread binds or
+     * releases its next exchange
+     */
+    void release(Exchange exchange) {
+        Object property = exchange.removeProperty(CAMEL_ENTITY_MANAGER_BINDING);
+        if (!(property instanceof Binding)) {
+            return;
+        }
+        Binding binding = (Binding) property;
+        if (!binding.exchangeId.equals(exchange.getExchangeId())) {
+            return;
+        }
+        binding.released = true;
+        if (binding.thread != Thread.currentThread()) {
+            LOG.debug("Exchange {} bound to thread {} is released from thread {}, the binding is cleared by the bound thread",
+                    exchange.getExchangeId(), binding.thread.getName(), Thread.currentThread().getName());
+            return;
+        }
+        clearReleasedBindings();
+    }
+
+    /**
+     * Restore the thread to the state before the released bindings of the thread, from the latest binding until a
+     * binding not released yet
+     */
+    private void clearReleasedBindings() {
+        for (Binding binding = bindingLocal.get(); binding != null && binding.released; binding = bindingLocal.get()) {
+            if (binding.activeBinding != null) {
+                bindingRegistry.unregister(binding.activeBinding);
+                CamelEntityManagerEvents.release(binding.exchange, null, null);
+            }
+            restore(entityManagerLocal, binding.previousEntityManager);
+            restore(exchangeLocal, binding.previousExchange);
+            restore(bindingLocal, binding.previousBinding);
+        }
+    }
+
+    private static boolean isBoundBy(Binding binding, Exchange exchange) {
+        return binding.exchangeId.equals(exchange.getExchangeId())
+                || (!binding.released && binding.thread == Thread.currentThread());
+    }
+
+    /**
+     * Bind the Camel entity manager of the exchange for the remaining of the transaction of the JPA consumer, so all
+     * exchanges of a poll share the entity manager, until {@link #releaseBatch(Exchange)} is called. Without a
+     * transaction the exchange is bound as {@link #bind(Exchange)}
+     */
+    void bindBatch(Exchange exchange) {
+        bindBatch(exchange, false);
+    }
+
+    /**
+     * Bind the exchange as {@link #bindBatch(Exchange)}, and if savepoint is true set a savepoint the changes of the
+     * exchange is rolled back to if it fails
+     */
+    void bindBatch(Exchange exchange, boolean savepoint) {
+        Object property = exchange.getProperty(CAMEL_ENTITY_MANAGER_BATCH);
+        if (property instanceof CamelEntityManagerBatch && ((CamelEntityManagerBatch) property).isBoundBy(exchange)) {
+            return;
+        }
+        clearReleasedBatches();
+        EntityManager em = exchange.getIn().getHeader(CAMEL_ENTITY_MANAGER, EntityManager.class);
+        if (em == null || !TransactionSynchronizationManager.isSynchronizationActive()) {
+            bind(exchange);
+            return;
+        }
+        if (entityManagerLocal.get() != em) {
+            addThreadLocalEntityManager(em, exchange, null, null);
+        }
+        CamelEntityManagerBatch batch = new CamelEntityManagerBatch(em, exchange, exchangeLocal.get(), batchLocal.get());
+        if (savepoint) {
+            batch.setSavepoint();
+        }
+        exchange.setProperty(CAMEL_ENTITY_MANAGER_BATCH, batch);
+        exchangeLocal.set(exchange);
+        batchLocal.set(batch);
+    }
+
+    /**
+     * Restore the thread to the state before the exchange was bound. The last exchange of a poll, see
+     * {@link Exchange#BATCH_COMPLETE}, flushes the changes of the poll, so a failing flush fails the exchange and rolls
+     * back the poll instead of failing the commit of the JPA consumer. As {@link #release(Exchange)} an exchange
+     * released from another thread is cleared by the bound thread.
+     * <p>
+     * An exchange with a savepoint flushes its changes. If the exchange or the flush failed, the exchange is rolled
+     * back to its savepoint and the exception is moved to the property {@value #CAMEL_ENTITY_MANAGER_ROLLBACK_EXCEPTION},
+     * so the JPA consumer continues with the next exchange. If an operation of the entity manager failed the
+     * transaction is rollback only, and the exchange fails as without a savepoint.
+     * </p>
+     *
+     * @return True if the exchange was rolled back to its savepoint
+     */
+    boolean releaseBatch(Exchange exchange) {
+        Object property = exchange.removeProperty(CAMEL_ENTITY_MANAGER_BATCH);
+        if (!(property instanceof CamelEntityManagerBatch)) {
+            release(exchange);
+            return false;
+        }
+        CamelEntityManagerBatch batch = (CamelEntityManagerBatch) property;
+        if (!batch.getExchangeId().equals(exchange.getExchangeId())) {
+            return false;
+        }
+        batch.setReleased();
+        if (batch.getThread() != Thread.currentThread()) {
+            LOG.debug("Exchange {} bound to thread {} is released from thread {}, the binding is cleared by the bound thread",
+                    exchange.getExchangeId(), batch.getThread().getName(), Thread.currentThread().getName());
+            return false;
+        }
+        try {
+            if (batch.hasSavepoint()) {
+                return releaseSavepoint(exchange, batch);
+            }
+            if (!isFailed(exchange) && exchange.getProperty(Exchange.BATCH_COMPLETE, false, Boolean.class)) {
+                try {
+                    batch.getEntityManager().flush();
+                } catch (PersistenceException e) {
+                    exchange.setException(e);
+                }
+            }
+            return false;
+        } finally {
+            clearReleasedBatches();
+        }
+    }
+
+    private boolean releaseSavepoint(Exchange exchange, CamelEntityManagerBatch batch) {
+        boolean failed = isFailed(exchange);
+        RuntimeException flushException = failed ? null : batch.flushSavepoint();
+        if (!failed && flushException == null) {
+            return false;
+        }
+        Exception exception = flushException != null ? flushException : exchange.getException() != null
+                ? exchange.getException() : exchange.getProperty(Exchange.EXCEPTION_CAUGHT, Exception.class);
+        if (!batch.canRollbackToSavepoint()) {
+            LOG.debug("Exchange {} failed an operation of the entity manager and can not be rolled back to its savepoint",
+                    exchange.getExchangeId());
+            if (flushException != null) {
+                exchange.setException(flushException);
+            }
+            return false;
+        }
+        batch.rollbackToSavepoint();
+        LOG.debug("Exchange {} is rolled back to its savepoint", exchange.getExchangeId(), exception);
+        exchange.setProperty(CAMEL_ENTITY_MANAGER_ROLLBACK_EXCEPTION, exception);
+        exchange.setException(null);
+        return true;
+    }
+
+    private void clearReleasedBatches() {
+        for (CamelEntityManagerBatch batch = batchLocal.get(); batch != null && batch.isReleased(); batch = batchLocal.get()) {
+            restore(exchangeLocal, batch.getPreviousExchange());
+            restore(batchLocal, batch.getPreviousBatch());
+        }
+    }
+
+    /**
+     * The exchange failed, or the failure was handled by an error handler
+     */
+    static boolean isFailed(Exchange exchange) {
+        return exchange.isFailed() || exchange.getProperty(Exchange.FAILURE_HANDLED, false, Boolean.class)
+                || exchange.getProperty(Exchange.ERRORHANDLER_HANDLED, false, Boolean.class);
+    }
+
+    private Exchange findExchange(Object[] arguments) {
+        for (Object argument : arguments) {
+            if (argument instanceof Exchange) {
+                return (Exchange) argument;
+            }
+        }
+        return null;
+    }
+
+    private static <T> void restore(ThreadLocal<T> threadLocal, T previous) {
+        if (previous == null) {
+            threadLocal.remove();
+        } else {
+            threadLocal.set(previous);
+        }
+    }
+
+    private CamelEntityManagerShardRegistry getShardRegistry(Field field) {
+        CamelEntityManagerShard shard = field.getAnnotation(CamelEntityManagerShard.class);
+        if (shard == null) {
+            return null;
+        }
+        return beanFactory.getBean(shard.value(), CamelEntityManagerShardRegistry.class);
+    }
+
+    /**
+     * Get the bulkheads for the persistence units of the fields, ordered by unit name so they are always acquired in
+     * the same order
+     */
+    private List<CamelEntityManagerBulkhead> getBulkheads(List<Field> annotatedFields) {
+        if (bulkheads == null) {
+            Map<String, CamelEntityManagerBulkhead> unitBulkheads = new HashMap<>();
+            ((ListableBeanFactory) beanFactory).getBeansOfType(CamelEntityManagerBulkhead.class).values()
+                    .forEach(bulkhead -> unitBulkheads.put(bulkhead.getUnitName(), bulkhead));
+            bulkheads = unitBulkheads;
+        }
+        return annotatedFields.stream()
+                .map(field -> field.getAnnotation(PersistenceContext.class).unitName())
+                .distinct()
+                .sorted()
+                .map(bulkheads::get)
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Get the distinct persistence unit names of the fields separated by comma, as they is reported in the events
+     */
+    private String getPersistenceUnits(List<Field> annotatedFields) {
+        return annotatedFields.stream()
+                .map(field -> field.getAnnotation(PersistenceContext.class).unitName())
+                .distinct()
+                .sorted()
+                .collect(Collectors.joining(","));
     }
 
+    private CamelEntityManagerExtendedContext getExtendedContext(Field field, EntityManager emProxy) {
+        CamelExtendedPersistenceContext extended = field.getAnnotation(CamelExtendedPersistenceContext.class);
+        if (extended == null) {
+            return null;
+        }
+        return extendedContextRegistry.register(
+                CamelEntityManagerFactories.getNativeEntityManagerFactory(emProxy), extended);
+    }
+
+    private CamelEntityManagerReplicaRouter getReplicaRouter(Field field) {
+        CamelEntityManagerReplica replica = field.getAnnotation(CamelEntityManagerReplica.class);
+        if (replica == null) {
+            return null;
+        }
+        return new CamelEntityManagerReplicaRouter(beanFactory.getBean(replica.value(), EntityManagerFactory.class),
+                replica.fallbackOnExecution());
+    }
 
     /**
      * Scan all fields for the {@link PersistenceContext} annotation and verify the type and return
@@ -165,23 +772,103 @@ public class CamelEntityManagerHandler {
         return annotatedFields;
     }
 
-    private EntityManager addThreadLocalEntityManager(EntityManager em) {
+    @Override
+    public void setBeanFactory(BeanFactory beanFactory) throws BeansException {
+        this.beanFactory = beanFactory;
+    }
+
+    /**
+     * Close the extended persistence contexts of the wrapped fields
+     */
+    @Override
+    public void destroy() throws Exception {
+        extendedContextRegistry.close();
+    }
+
+    private EntityManager addThreadLocalEntityManager(EntityManager em, Exchange exchange, Method beanMethod,
+                                                      String persistenceUnit) {
         TransactionSynchronizationManager.registerSynchronization(
-                new SessionCloseSynchronizationManager()
+                new SessionCloseSynchronizationManager(exchange, beanMethod, persistenceUnit,
+                        bindingRegistry.register(em, exchange, beanMethod, persistenceUnit))
         );
         entityManagerLocal.set(em);
+        CamelEntityManagerEvents.bind(exchange, beanMethod, persistenceUnit);
         return em;
     }
 
+    /**
+     * The bulkheads and the persistence units of a class with wrapped entity manager fields
+     */
+    private static class ProxiedClass {
+
+        private final List<CamelEntityManagerBulkhead> bulkheads;
+
+        private final String persistenceUnits;
+
+        private ProxiedClass(List<CamelEntityManagerBulkhead> bulkheads, String persistenceUnits) {
+            this.bulkheads = bulkheads;
+            this.persistenceUnits = persistenceUnits;
+        }
+    }
+
+    /**
+     * The exchange, the thread and the values replaced when an exchange is bound by {@link #bind(Exchange)}
+     */
+    private static class Binding {
+
+        private final Thread thread = Thread.currentThread();
+
+        private final Exchange exchange;
+
+        private final String exchangeId;
+
+        private final EntityManager previousEntityManager;
+
+        private final Exchange previousExchange;
+
+        private final Binding previousBinding;
+
+        private CamelEntityManagerBindingRegistry.ActiveBinding activeBinding;
+
+        private volatile boolean released;
+
+        private Binding(Exchange exchange, EntityManager previousEntityManager, Exchange previousExchange,
+                        Binding previousBinding) {
+            this.exchange = exchange;
+            this.exchangeId = exchange.getExchangeId();
+            this.previousEntityManager = previousEntityManager;
+            this.previousExchange = previousExchange;
+            this.previousBinding = previousBinding;
+        }
+    }
+
     /**
      * The {@link EntityManager}s is removed from the internal ThreadLocal when the transaction is complete regardless
      * if it commit or rollback. The cached entity manager is removed as it finally step.
      */
     private class SessionCloseSynchronizationManager extends TransactionSynchronizationAdapter {
 
+        private final Exchange exchange;
+
+        private final Method beanMethod;
+
+        private final String persistenceUnit;
+
+        private final CamelEntityManagerBindingRegistry.ActiveBinding activeBinding;
+
+        private SessionCloseSynchronizationManager(Exchange exchange, Method beanMethod, String persistenceUnit,
+                                                   CamelEntityManagerBindingRegistry.ActiveBinding activeBinding) {
+            this.exchange = exchange;
+            this.beanMethod = beanMethod;
+            this.persistenceUnit = persistenceUnit;
+            this.activeBinding = activeBinding;
+        }
+
         @Override
         public void afterCompletion(int status) {
             entityManagerLocal.remove();
+            bindingRegistry.unregister(activeBinding);
+            CamelEntityManagerEvents.release(exchange, beanMethod, persistenceUnit);
         }
     }
 }
@@ -0,0 +1,497 @@
+/**
+ * The MIT License
+ * Copyright © 2016 Flemming Harms
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.fharms.camel.entitymanager;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.processor.idempotent.jpa.MessageProcessed;
+import org.apache.camel.spi.ExchangeIdempotentRepository;
+import org.apache.camel.support.ServiceSupport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.orm.jpa.EntityManagerFactoryUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Function;
+
+/**
+ * Idempotent repository storing the message ids in the {@link MessageProcessed} table of the Camel JPA
+ * idempotent repository, with a Bloom filter and a LRU cache of the recently added ids in front of the table. Most
+ * lookups of new ids is answered by the Bloom filter, and most lookups of recent duplicates by the cache, so the table
+ * is only queried when the id may have been added before.
+ * <p>
+ * The ids is stored with the Camel entity manager of the exchange, or the entity manager bound to the thread by the
+ * {@link CamelEntityManagerRoutePolicy}, joined with the transaction of the route. Without a Camel entity manager the
+ * transactional entity manager of the route transaction is used, and without a transaction the ids is stored in a
+ * transaction of its own. The cache is only updated when the transaction commits.
+ * </p>
+ * <p>
+ * The Bloom filter and the cache is rebuilt from the table when the repository is started. Ids can't be removed from
+ * the Bloom filter, so removed ids is answered by the table. Until the repository is started every lookup query the
+ * table. The false positive rate of the Bloom filter and the share of the lookups not querying the table is counted
+ * per repository.
+ * </p>
+ * <p>
+ * The Bloom filter only knows the ids in the table at startup and the ids added by this repository, so it assumes
+ * the repository is the single writer of the processor name in the table. If several nodes or repositories add ids
+ * with the same processor name, set <code>singleWriter</code> to false, and the Bloom filter is not used to answer
+ * lookups, only the cache and the table.
+ * </p>
+ */
+public class CamelEntityManagerIdempotentRepository extends ServiceSupport implements ExchangeIdempotentRepository<String> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CamelEntityManagerIdempotentRepository.class);
+
+    private static final String FROM = " from " + MessageProcessed.class.getName() + " m where m.processorName = :processorName";
+
+    private static final int REBUILD_PAGE_SIZE = 1000;
+
+    private final CamelEntityManagerHandler handler;
+
+    private final EntityManagerFactory entityManagerFactory;
+
+    private final TransactionTemplate transactionTemplate;
+
+    private final String processorName;
+
+    private int expectedKeys = 100_000;
+
+    private double falsePositiveProbability = 0.01;
+
+    private int recentKeys = 1000;
+
+    private boolean singleWriter = true;
+
+    private volatile BloomFilter filter;
+
+    private final Map<String, Boolean> recent = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > recentKeys;
+        }
+    };
+
+    private final AtomicLong lookupCount = new AtomicLong();
+
+    private final AtomicLong filterMissCount = new AtomicLong();
+
+    private final AtomicLong recentHitCount = new AtomicLong();
+
+    private final AtomicLong databaseLookupCount = new AtomicLong();
+
+    private final AtomicLong falsePositiveCount = new AtomicLong();
+
+    public CamelEntityManagerIdempotentRepository(CamelEntityManagerHandler handler, EntityManagerFactory entityManagerFactory,
+                                                  PlatformTransactionManager transactionManager, String processorName) {
+        this.handler = handler;
+        this.entityManagerFactory = entityManagerFactory;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.processorName = processorName;
+    }
+
+    @Override
+    public boolean add(String key) {
+        return add((Exchange) null, key);
+    }
+
+    @Override
+    public boolean add(Exchange exchange, String key) {
+        return execute(exchange, em -> {
+            if (lookup(em, key)) {
+                return false;
+            }
+            MessageProcessed processed = new MessageProcessed();
+            processed.setProcessorName(processorName);
+            processed.setMessageId(key);
+            processed.setCreatedAt(new Date());
+            em.persist(processed);
+            BloomFilter current = filter;
+            if (current != null) {
+                current.add(key);
+            }
+            if (TransactionSynchronizationManager.isSynchronizationActive()) {
+                TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                    @Override
+                    public void afterCommit() {
+                        addRecent(key);
+                    }
+                });
+            } else {
+                addRecent(key);
+            }
+            return true;
+        });
+    }
+
+    @Override
+    public boolean contains(String key) {
+        return contains((Exchange) null, key);
+    }
+
+    @Override
+    public boolean contains(Exchange exchange, String key) {
+        return execute(exchange, em -> lookup(em, key));
+    }
+
+    @Override
+    public boolean remove(String key) {
+        return remove((Exchange) null, key);
+    }
+
+    @Override
+    public boolean remove(Exchange exchange, String key) {
+        synchronized (recent) {
+            recent.remove(key);
+        }
+        return execute(exchange, em -> {
+            List<?> processed = em.createQuery("select m" + FROM + " and m.messageId = :messageId")
+                    .setParameter("processorName", processorName)
+                    .setParameter("messageId", key)
+                    .getResultList();
+            processed.forEach(em::remove);
+            return !processed.isEmpty();
+        });
+    }
+
+    @Override
+    public boolean confirm(String key) {
+        return true;
+    }
+
+    @Override
+    public boolean confirm(Exchange exchange, String key) {
+        return true;
+    }
+
+    @Override
+    public void clear() {
+        execute(null, em -> {
+            em.createQuery("delete" + FROM).setParameter("processorName", processorName).executeUpdate();
+            return true;
+        });
+        filter = new BloomFilter(expectedKeys, falsePositiveProbability);
+        synchronized (recent) {
+            recent.clear();
+        }
+    }
+
+    /**
+     * Rebuild the Bloom filter and the cache from the ids in the table. The Bloom filter is sized for the expected
+     * number of keys, or twice the number of ids in the table if it is larger
+     */
+    @Override
+    protected void doStart() throws Exception {
+        EntityManager em = entityManagerFactory.createEntityManager();
+        try {
+            long count = em.createQuery("select count(m)" + FROM, Long.class)
+                    .setParameter("processorName", processorName)
+                    .getSingleResult();
+            BloomFilter rebuilt = new BloomFilter((int) Math.min(Integer.MAX_VALUE, Math.max(expectedKeys, count * 2)),
+                    falsePositiveProbability);
+            long after = Long.MIN_VALUE;
+            List<Object[]> page;
+            do {
+                page = em.createQuery("select m.id, m.messageId" + FROM + " and m.id > :after order by m.id", Object[].class)
+                        .setParameter("processorName", processorName)
+                        .setParameter("after", after)
+                        .setMaxResults(REBUILD_PAGE_SIZE)
+                        .getResultList();
+                for (Object[] row : page) {
+                    after = (Long) row[0];
+                    rebuilt.add((String) row[1]);
+                    addRecent((String) row[1]);
+                }
+                em.clear();
+            } while (page.size() == REBUILD_PAGE_SIZE);
+            filter = rebuilt;
+            LOG.debug("Idempotent repository {} rebuilt from {} ids", processorName, count);
+        } finally {
+            em.close();
+        }
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        // noop
+    }
+
+    private boolean lookup(EntityManager em, String key) {
+        lookupCount.incrementAndGet();
+        synchronized (recent) {
+            if (recent.get(key) != null) {
+                recentHitCount.incrementAndGet();
+                return true;
+            }
+        }
+        BloomFilter current = filter;
+        if (singleWriter && current != null && !current.mightContain(key)) {
+            filterMissCount.incrementAndGet();
+            return false;
+        }
+        databaseLookupCount.incrementAndGet();
+        boolean found = em.createQuery("select count(m)" + FROM + " and m.messageId = :messageId", Long.class)
+                .setParameter("processorName", processorName)
+                .setParameter("messageId", key)
+                .getSingleResult() > 0;
+        if (!found) {
+            falsePositiveCount.incrementAndGet();
+        }
+        return found;
+    }
+
+    private void addRecent(String key) {
+        synchronized (recent) {
+            recent.put(key, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * Execute the operation with the Camel entity manager joined with the route transaction, the transactional entity
+     * manager of the transaction, or in a transaction of its own
+     */
+    private <T> T execute(Exchange exchange, Function<EntityManager, T> operation) {
+        if (TransactionSynchronizationManager.isActualTransactionActive()) {
+            EntityManager em = getCamelEntityManager(exchange);
+            if (em != null) {
+                em.joinTransaction();
+                return operation.apply(em);
+            }
+            em = EntityManagerFactoryUtils.getTransactionalEntityManager(entityManagerFactory);
+            if (em != null) {
+                return operation.apply(em);
+            }
+        }
+        return transactionTemplate.execute(status -> {
+            EntityManager em = EntityManagerFactoryUtils.getTransactionalEntityManager(entityManagerFactory);
+            if (em != null) {
+                return operation.apply(em);
+            }
+            em = entityManagerFactory.createEntityManager();
+            try {
+                em.joinTransaction();
+                T result = operation.apply(em);
+                em.flush();
+                return result;
+            } finally {
+                em.close();
+            }
+        });
+    }
+
+    /**
+     * @return The Camel entity manager of the exchange or the thread, if it is created by the entity manager factory
+     * of the repository
+     */
+    private EntityManager getCamelEntityManager(Exchange exchange) {
+        EntityManager em = exchange != null ? exchange.getIn().getHeader(CamelEntityManagerHandler.CAMEL_ENTITY_MANAGER,
+                EntityManager.class) : null;
+        if (em == null) {
+            em = handler.getBoundEntityManager();
+        }
+        if (em == null || !em.isOpen() || CamelEntityManagerFactories.getNativeEntityManagerFactory(entityManagerFactory)
+                != CamelEntityManagerFactories.getNativeEntityManagerFactory(em)) {
+            return null;
+        }
+        return em;
+    }
+
+    public String getProcessorName() {
+        return processorName;
+    }
+
+    public int getExpectedKeys() {
+        return expectedKeys;
+    }
+
+    /**
+     * @param expectedKeys The number of ids the Bloom filter is sized for
+     */
+    public void setExpectedKeys(int expectedKeys) {
+        this.expectedKeys = expectedKeys;
+    }
+
+    public double getFalsePositiveProbability() {
+        return falsePositiveProbability;
+    }
+
+    /**
+     * @param falsePositiveProbability The false positive probability of the Bloom filter with the expected number of ids
+     */
+    public void setFalsePositiveProbability(double falsePositiveProbability) {
+        this.falsePositiveProbability = falsePositiveProbability;
+    }
+
+    public boolean isSingleWriter() {
+        return singleWriter;
+    }
+
+    /**
+     * @param singleWriter Answer the lookups of ids not in the Bloom filter without querying the table, as the
+     *                     repository is the only one adding ids with the processor name, defaults to true
+     */
+    public void setSingleWriter(boolean singleWriter) {
+        this.singleWriter = singleWriter;
+    }
+
+    public int getRecentKeys() {
+        return recentKeys;
+    }
+
+    /**
+     * @param recentKeys The number of recently added ids cached
+     */
+    public void setRecentKeys(int recentKeys) {
+        this.recentKeys = recentKeys;
+    }
+
+    public long getLookupCount() {
+        return lookupCount.get();
+    }
+
+    /**
+     * @return Number of lookups answered by the cache of recent ids
+     */
+    public long getRecentHitCount() {
+        return recentHitCount.get();
+    }
+
+    /**
+     * @return Number of lookups answered by the Bloom filter
+     */
+    public long getFilterMissCount() {
+        return filterMissCount.get();
+    }
+
+    public long getDatabaseLookupCount() {
+        return databaseLookupCount.get();
+    }
+
+    /**
+     * @return Number of lookups querying the table for an id not in the table
+     */
+    public long getFalsePositiveCount() {
+        return falsePositiveCount.get();
+    }
+
+    /**
+     * @return False positives per lookup of an id not in the table
+     */
+    public double getFalsePositiveRate() {
+        long negatives = filterMissCount.get() + falsePositiveCount.get();
+        return negatives == 0 ? 0 : (double) falsePositiveCount.get() / negatives;
+    }
+
+    /**
+     * @return The false positive probability of the Bloom filter with the ids added until now
+     */
+    public double getExpectedFalsePositiveRate() {
+        BloomFilter current = filter;
+        return current == null ? 0 : current.getFalsePositiveProbability();
+    }
+
+    /**
+     * @return Share of the lookups not querying the table
+     */
+    public double getLookupSavings() {
+        long lookups = lookupCount.get();
+        return lookups == 0 ? 0 : 1 - (double) databaseLookupCount.get() / lookups;
+    }
+
+    /**
+     * Bloom filter of the ids, setting the bits with compare and set so it can be used without locking. The bits is
+     * selected by double hashing of a 64 bit FNV-1a hash of the id
+     */
+    static final class BloomFilter {
+
+        private final AtomicLongArray bits;
+
+        private final long bitCount;
+
+        private final int hashCount;
+
+        private final AtomicLong keyCount = new AtomicLong();
+
+        BloomFilter(int expectedKeys, double falsePositiveProbability) {
+            long n = Math.max(1, expectedKeys);
+            long m = Math.max(64, (long) Math.ceil(-n * Math.log(falsePositiveProbability) / (Math.log(2) * Math.log(2))));
+            this.bits = new AtomicLongArray((int) Math.min(Integer.MAX_VALUE, (m + 63) / 64));
+            this.bitCount = bits.length() * 64L;
+            this.hashCount = Math.max(1, (int) Math.round((double) bitCount / n * Math.log(2)));
+        }
+
+        void add(String key) {
+            long hash = hash(key);
+            long hash1 = hash >>> 32;
+            long hash2 = hash & 0xffffffffL;
+            for (int i = 0; i < hashCount; i++) {
+                long bit = Math.floorMod(hash1 + i * hash2, bitCount);
+                int index = (int) (bit >>> 6);
+                long mask = 1L << bit;
+                long word = bits.get(index);
+                while ((word & mask) == 0 && !bits.compareAndSet(index, word, word | mask)) {
+                    word = bits.get(index);
+                }
+            }
+            keyCount.incrementAndGet();
+        }
+
+        boolean mightContain(String key) {
+            long hash = hash(key);
+            long hash1 = hash >>> 32;
+            long hash2 = hash & 0xffffffffL;
+            for (int i = 0; i < hashCount; i++) {
+                long bit = Math.floorMod(hash1 + i * hash2, bitCount);
+                if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        double getFalsePositiveProbability() {
+            return Math.pow(1 - Math.exp(-hashCount * (double) keyCount.get() / bitCount), hashCount);
+        }
+
+        private static long hash(String key) {
+            long hash = 0xcbf29ce484222325L;
+            for (int i = 0; i < key.length(); i++) {
+                hash ^= key.charAt(i);
+                hash *= 0x100000001b3L;
+            }
+            hash ^= hash >>> 33;
+            hash *= 0xff51afd7ed558ccdL;
+            hash ^= hash >>> 33;
+            return hash;
+        }
+    }
+}
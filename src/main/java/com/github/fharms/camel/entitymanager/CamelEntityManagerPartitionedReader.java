@@ -0,0 +1,393 @@
+/**
+ * The MIT License
+ * Copyright © 2016 Flemming Harms
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.fharms.camel.entitymanager;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.util.ExchangeHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.metamodel.EntityType;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Processor reading the entities of a table in parallel, for exporting large tables. The key range of the entities
+ * is split into partitions by the min and max value of the key, a numeric attribute defaulting to the id, and every
+ * partition is read on its own thread and entity manager with keyset pagination, <code>fetchSize</code> entities at a
+ * time. Every page is sent as a chunk, a List of the entities, to the chunk endpoint.
+ * <p>
+ * The chunk exchanges has the entity manager of the partition bound as Camel entity manager, so the beans processing
+ * the chunk use the entity manager the entities is managed by, and every chunk is read and processed in a transaction
+ * of its own. The persistence context is cleared after each chunk.
+ * </p>
+ * <p>
+ * Unordered the partitions send the chunks as they are read. Ordered the chunks is sent in key order, the partitions
+ * reading up to <code>maxBufferedChunks</code> chunks ahead while waiting for the partitions before them. If a chunk
+ * fails the remaining partitions is stopped and the exception is set on the exchange, otherwise the number of
+ * entities read is set in the header {@value #CAMEL_ENTITY_MANAGER_READ_COUNT}.
+ * </p>
+ * <p>
+ * The condition is a JPQL expression selecting the entities to read, where the entity has the alias <code>e</code>.
+ * </p>
+ */
+public class CamelEntityManagerPartitionedReader implements Processor {
+
+    public static final String CAMEL_ENTITY_MANAGER_PARTITION = "CamelEntityManagerPartition";
+
+    public static final String CAMEL_ENTITY_MANAGER_CHUNK = "CamelEntityManagerChunk";
+
+    public static final String CAMEL_ENTITY_MANAGER_READ_COUNT = "CamelEntityManagerReadCount";
+
+    private static final Logger LOG = LoggerFactory.getLogger(CamelEntityManagerPartitionedReader.class);
+
+    private static final String FETCH_SIZE = "org.hibernate.fetchSize";
+
+    private final CamelEntityManagerHandler handler;
+
+    private final EntityManagerFactory entityManagerFactory;
+
+    private final TransactionTemplate transactionTemplate;
+
+    private final Class<?> entityClass;
+
+    private final int partitions;
+
+    private final String chunkUri;
+
+    private String keyAttribute;
+
+    private String condition;
+
+    private int fetchSize = 500;
+
+    private boolean ordered;
+
+    private int maxBufferedChunks = 2;
+
+    public CamelEntityManagerPartitionedReader(CamelEntityManagerHandler handler, EntityManagerFactory entityManagerFactory,
+                                               PlatformTransactionManager transactionManager, Class<?> entityClass,
+                                               int partitions, String chunkUri) {
+        this.handler = handler;
+        this.entityManagerFactory = entityManagerFactory;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.entityClass = entityClass;
+        this.partitions = partitions;
+        this.chunkUri = chunkUri;
+    }
+
+    @Override
+    public void process(Exchange exchange) throws Exception {
+        EntityType<?> entityType = entityManagerFactory.getMetamodel().entity(entityClass);
+        String key = keyAttribute != null ? keyAttribute : entityType.getId(entityType.getIdType().getJavaType()).getName();
+        Class<?> keyType = entityType.getAttribute(key).getJavaType();
+        String from = " from " + entityType.getName() + " e";
+        String where = condition == null ? " where " : " where (" + condition + ") and ";
+
+        Object[] range = transactionTemplate.execute(status -> {
+            EntityManager em = entityManagerFactory.createEntityManager();
+            try {
+                return (Object[]) em.createQuery("select min(e." + key + "), max(e." + key + ")" + from +
+                        (condition == null ? "" : " where " + condition)).getSingleResult();
+            } finally {
+                em.close();
+            }
+        });
+        if (range[0] == null) {
+            exchange.getIn().setHeader(CAMEL_ENTITY_MANAGER_READ_COUNT, 0L);
+            return;
+        }
+
+        String pageQuery = "select e." + key + ", e" + from + where + "e." + key + " > :after and e." + key +
+                " <= :to order by e." + key;
+        List<Partition> partitionList = split(((Number) range[0]).longValue(), ((Number) range[1]).longValue(),
+                pageQuery, keyType);
+        ProducerTemplate template = exchange.getContext().createProducerTemplate();
+        ExecutorService executor = exchange.getContext().getExecutorServiceManager()
+                .newFixedThreadPool(this, "CamelEntityManagerPartitionedReader", partitionList.size());
+        AtomicBoolean failed = new AtomicBoolean();
+        try {
+            List<Future<Long>> futures = new ArrayList<>(partitionList.size());
+            for (Partition partition : partitionList) {
+                futures.add(executor.submit(() -> partition.read(exchange, template, failed)));
+            }
+            long count = 0;
+            Exception failure = null;
+            for (Future<Long> future : futures) {
+                try {
+                    count += future.get();
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                    }
+                }
+            }
+            if (failure != null) {
+                exchange.setException(failure);
+            } else {
+                exchange.getIn().setHeader(CAMEL_ENTITY_MANAGER_READ_COUNT, count);
+            }
+        } finally {
+            exchange.getContext().getExecutorServiceManager().shutdownNow(executor);
+            template.stop();
+        }
+    }
+
+    /**
+     * Split the key range into partitions of equal size, and chain the turns of the partitions so they send the
+     * chunks in key order when ordered
+     */
+    private List<Partition> split(long min, long max, String pageQuery, Class<?> keyType) {
+        long span = max - min + 1;
+        int count = (int) Math.max(1, Math.min(partitions, span));
+        long size = (span + count - 1) / count;
+        List<Partition> partitionList = new ArrayList<>(count);
+        CountDownLatch turn = new CountDownLatch(0);
+        for (int i = 0; i < count; i++) {
+            long lower = min + i * size;
+            CountDownLatch next = new CountDownLatch(1);
+            partitionList.add(new Partition(i, lower - 1, Math.min(max, lower + size - 1), pageQuery, keyType, turn, next));
+            turn = next;
+        }
+        return partitionList;
+    }
+
+    private static Object toKeyType(long value, Class<?> keyType) {
+        if (keyType == Integer.class || keyType == int.class) {
+            return (int) value;
+        }
+        if (keyType == Short.class || keyType == short.class) {
+            return (short) value;
+        }
+        if (keyType == Long.class || keyType == long.class) {
+            return value;
+        }
+        throw new IllegalArgumentException("The partition key must be a Long, Integer or Short and not " + keyType.getName());
+    }
+
+    /**
+     * A key range read on its own entity manager
+     */
+    private class Partition {
+
+        private final int index;
+
+        private final String pageQuery;
+
+        private final Class<?> keyType;
+
+        private final CountDownLatch turn;
+
+        private final CountDownLatch next;
+
+        private final Deque<List<Object>> buffered = new ArrayDeque<>();
+
+        private final long to;
+
+        private long after;
+
+        private int chunk;
+
+        private Partition(int index, long after, long to, String pageQuery, Class<?> keyType, CountDownLatch turn,
+                          CountDownLatch next) {
+            this.index = index;
+            this.after = after;
+            this.to = to;
+            this.pageQuery = pageQuery;
+            this.keyType = keyType;
+            this.turn = turn;
+            this.next = next;
+        }
+
+        private long read(Exchange exchange, ProducerTemplate template, AtomicBoolean failed) throws Exception {
+            EntityManager em = entityManagerFactory.createEntityManager();
+            long count = 0;
+            boolean exhausted = false;
+            try {
+                while (!failed.get()) {
+                    if (!exhausted && (buffered.isEmpty() || (!isTurn() && buffered.size() < maxBufferedChunks))) {
+                        exhausted = !readPage(em);
+                        continue;
+                    }
+                    if (buffered.isEmpty() || !awaitTurn(failed)) {
+                        break;
+                    }
+                    List<Object> entities = buffered.poll();
+                    sendChunk(exchange, template, em, entities);
+                    count += entities.size();
+                    if (buffered.isEmpty()) {
+                        em.clear();
+                    }
+                }
+                return count;
+            } catch (Exception e) {
+                failed.set(true);
+                throw e;
+            } finally {
+                em.close();
+                next.countDown();
+                LOG.debug("Partition {} of {} read {} entities", index, entityClass.getSimpleName(), count);
+            }
+        }
+
+        /**
+         * Read the next page of the partition into the buffer
+         *
+         * @return false if it is the last page
+         */
+        private boolean readPage(EntityManager em) {
+            List<?> rows = transactionTemplate.execute(status -> {
+                em.joinTransaction();
+                return em.createQuery(pageQuery)
+                        .setParameter("after", toKeyType(after, keyType))
+                        .setParameter("to", toKeyType(to, keyType))
+                        .setHint(FETCH_SIZE, fetchSize)
+                        .setMaxResults(fetchSize)
+                        .getResultList();
+            });
+            if (!rows.isEmpty()) {
+                List<Object> entities = new ArrayList<>(rows.size());
+                for (Object row : rows) {
+                    entities.add(((Object[]) row)[1]);
+                }
+                after = ((Number) ((Object[]) rows.get(rows.size() - 1))[0]).longValue();
+                buffered.add(entities);
+            }
+            return rows.size() == fetchSize;
+        }
+
+        private void sendChunk(Exchange exchange, ProducerTemplate template, EntityManager em, List<Object> entities) throws Exception {
+            Exchange chunkExchange = ExchangeHelper.createCorrelatedCopy(exchange, false);
+            chunkExchange.getIn().setBody(entities);
+            chunkExchange.getIn().setHeader(CAMEL_ENTITY_MANAGER_PARTITION, index);
+            chunkExchange.getIn().setHeader(CAMEL_ENTITY_MANAGER_CHUNK, chunk++);
+            chunkExchange.getIn().setHeader(CamelEntityManagerHandler.CAMEL_ENTITY_MANAGER, em);
+            Exception failure = transactionTemplate.execute(status -> {
+                em.joinTransaction();
+                handler.bind(chunkExchange);
+                try {
+                    template.send(chunkUri, chunkExchange);
+                } finally {
+                    handler.release(chunkExchange);
+                }
+                if (chunkExchange.getException() != null) {
+                    status.setRollbackOnly();
+                }
+                return chunkExchange.getException();
+            });
+            if (failure != null) {
+                throw failure;
+            }
+        }
+
+        private boolean isTurn() {
+            return !ordered || turn.getCount() == 0;
+        }
+
+        /**
+         * Wait until the partitions before this is done when ordered
+         *
+         * @return false if another partition failed while waiting
+         */
+        private boolean awaitTurn(AtomicBoolean failed) throws InterruptedException {
+            while (!isTurn()) {
+                if (turn.await(100, TimeUnit.MILLISECONDS)) {
+                    break;
+                }
+                if (failed.get()) {
+                    return false;
+                }
+            }
+            return !failed.get();
+        }
+    }
+
+    public Class<?> getEntityClass() {
+        return entityClass;
+    }
+
+    public int getPartitions() {
+        return partitions;
+    }
+
+    public String getChunkUri() {
+        return chunkUri;
+    }
+
+    public String getKeyAttribute() {
+        return keyAttribute;
+    }
+
+    /**
+     * @param keyAttribute The numeric attribute to partition and order by, the id if not set
+     */
+    public void setKeyAttribute(String keyAttribute) {
+        this.keyAttribute = keyAttribute;
+    }
+
+    public String getCondition() {
+        return condition;
+    }
+
+    public void setCondition(String condition) {
+        this.condition = condition;
+    }
+
+    public int getFetchSize() {
+        return fetchSize;
+    }
+
+    public void setFetchSize(int fetchSize) {
+        this.fetchSize = fetchSize;
+    }
+
+    public boolean isOrdered() {
+        return ordered;
+    }
+
+    public void setOrdered(boolean ordered) {
+        this.ordered = ordered;
+    }
+
+    public int getMaxBufferedChunks() {
+        return maxBufferedChunks;
+    }
+
+    public void setMaxBufferedChunks(int maxBufferedChunks) {
+        this.maxBufferedChunks = maxBufferedChunks;
+    }
+}
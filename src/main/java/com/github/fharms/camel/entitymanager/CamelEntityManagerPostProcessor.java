@@ -22,10 +22,12 @@
  */
 package com.github.fharms.camel.entitymanager;
 
+import org.apache.camel.CamelContext;
+import org.springframework.aop.framework.AbstractAdvisingBeanPostProcessor;
+import org.springframework.aop.framework.Advised;
+import org.springframework.aop.support.AopUtils;
 import org.springframework.beans.BeansException;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.beans.factory.config.BeanPostProcessor;
-import org.springframework.context.annotation.EnableAspectJAutoProxy;
 import org.springframework.stereotype.Component;
 
 import javax.persistence.EntityManager;
@@ -38,14 +40,31 @@ import javax.persistence.EntityManager;
  * The requirement for annotated field is it a type of {@link EntityManager} otherwise it
  * will throw an {@link IllegalStateException}.
  * </p>
+ * <p>
+ * The methods which can be invoked from Camel is advised by {@link CamelEntityManagerAdvisor}. If the bean is
+ * already proxied, for example by the transaction advisor, the advisor is added to the existing proxy after the
+ * transaction interceptor, otherwise a class based proxy is created. For classes limited by a
+ * {@link CamelEntityManagerBulkhead} the bulkhead advisor is added before all other advisors, so the permit is acquired
+ * before the transaction begins and a connection is checked out.
+ * </p>
+ * <p>
+ * The Camel context is registered with the handler, so the bean methods invoked by its routes is advised.
+ * </p>
  */
 @Component
-@EnableAspectJAutoProxy(proxyTargetClass = true)
-public class CamelEntityManagerPostProcessor implements BeanPostProcessor {
+public class CamelEntityManagerPostProcessor extends AbstractAdvisingBeanPostProcessor {
 
-    @Autowired
-    private CamelEntityManagerHandler handler;
+    private final CamelEntityManagerHandler handler;
+
+    private final CamelEntityManagerAdvisor bulkheadAdvisor;
 
+    @Autowired
+    public CamelEntityManagerPostProcessor(CamelEntityManagerHandler handler) {
+        this.handler = handler;
+        this.advisor = new CamelEntityManagerAdvisor(handler);
+        this.bulkheadAdvisor = CamelEntityManagerAdvisor.bulkheadAdvisor(handler);
+        setProxyTargetClass(true);
+    }
 
     @Override
     public Object postProcessBeforeInitialization(Object bean, String beanName) throws BeansException {
@@ -53,8 +72,15 @@ public class CamelEntityManagerPostProcessor implements BeanPostProcessor {
     }
 
     @Override
-    public Object postProcessAfterInitialization(Object bean, String beanName) throws BeansException {
-        return bean;
+    public Object postProcessAfterInitialization(Object bean, String beanName) {
+        if (bean instanceof CamelContext) {
+            handler.registerCamelContext((CamelContext) bean);
+        }
+        Object proxy = super.postProcessAfterInitialization(bean, beanName);
+        if (proxy instanceof Advised && !((Advised) proxy).isFrozen() && handler.hasBulkheads(AopUtils.getTargetClass(proxy))) {
+            ((Advised) proxy).addAdvisor(0, bulkheadAdvisor);
+        }
+        return proxy;
     }
 
 }
@@ -0,0 +1,176 @@
+/**
+ * The MIT License
+ * Copyright © 2016 Flemming Harms
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.fharms.camel.entitymanager;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Expression;
+import org.apache.camel.util.ObjectHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.orm.jpa.EntityManagerFactoryUtils;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.metamodel.EntityType;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Expression for the splitter loading the entities of the ids to split into the persistence context before the
+ * split, so the beans finding the entity of every sub-exchange, like <code>em.find(Dog.class, id)</code>, is served
+ * from the first level cache instead of a select per id. The ids is read by the wrapped expression and loaded with an
+ * IN-list query of <code>batchSize</code> ids at a time, and the ids is returned for the splitter to split.
+ * <pre>
+ *   from("direct:dogs")
+ *      .routePolicy(camelEntityManagerRoutePolicy)
+ *      .split(new CamelEntityManagerPrefetch(handler, emf, Dog.class, body(), 100))
+ *      .bean(dogBean, "findDog");
+ * </pre>
+ * <p>
+ * The entities is loaded into the Camel entity manager bound to the thread or set in the header of the exchange, and
+ * else into the entity manager of the current Spring transaction, so the sub-exchanges must be processed with the
+ * same entity manager, on the thread of the exchange. Without an entity manager the ids is split without prefetch.
+ * The last batch is padded with its last id, so all batches use the same statement.
+ * </p>
+ */
+public class CamelEntityManagerPrefetch implements Expression {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CamelEntityManagerPrefetch.class);
+
+    private final CamelEntityManagerHandler handler;
+
+    private final EntityManagerFactory entityManagerFactory;
+
+    private final Class<?> entityClass;
+
+    private final Expression ids;
+
+    private final int batchSize;
+
+    private final AtomicLong prefetchCount = new AtomicLong();
+
+    private final AtomicLong batchCount = new AtomicLong();
+
+    private volatile String query;
+
+    private volatile Class<?> idType;
+
+    public CamelEntityManagerPrefetch(CamelEntityManagerHandler handler, EntityManagerFactory entityManagerFactory,
+                                      Class<?> entityClass, Expression ids, int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("The batch size must be positive");
+        }
+        this.handler = handler;
+        this.entityManagerFactory = entityManagerFactory;
+        this.entityClass = entityClass;
+        this.ids = ids;
+        this.batchSize = batchSize;
+    }
+
+    @Override
+    public <T> T evaluate(Exchange exchange, Class<T> type) {
+        init();
+        List<Object> idList = new ArrayList<>();
+        Iterator<?> iterator = ObjectHelper.createIterator(ids.evaluate(exchange, Object.class));
+        while (iterator.hasNext()) {
+            idList.add(exchange.getContext().getTypeConverter().convertTo(idType, exchange, iterator.next()));
+        }
+
+        EntityManager em = getEntityManager(exchange);
+        if (em == null) {
+            LOG.debug("No entity manager for exchange {}, the {} ids is split without prefetch",
+                    exchange.getExchangeId(), idList.size());
+        } else {
+            prefetch(em, idList);
+        }
+        return exchange.getContext().getTypeConverter().convertTo(type, exchange, idList);
+    }
+
+    private void prefetch(EntityManager em, List<Object> idList) {
+        Set<Object> distinct = new LinkedHashSet<>(idList);
+        distinct.remove(null);
+        List<Object> batch = new ArrayList<>(batchSize);
+        Iterator<Object> iterator = distinct.iterator();
+        while (iterator.hasNext()) {
+            batch.add(iterator.next());
+            if (batch.size() == batchSize || !iterator.hasNext()) {
+                Object last = batch.get(batch.size() - 1);
+                int loaded = batch.size();
+                while (batch.size() < batchSize) {
+                    batch.add(last);
+                }
+                em.createQuery(query).setParameter("ids", batch).getResultList();
+                prefetchCount.addAndGet(loaded);
+                batchCount.incrementAndGet();
+                batch.clear();
+            }
+        }
+    }
+
+    private EntityManager getEntityManager(Exchange exchange) {
+        EntityManager em = handler.getBoundEntityManager();
+        if (em == null) {
+            em = exchange.getIn().getHeader(CamelEntityManagerHandler.CAMEL_ENTITY_MANAGER, EntityManager.class);
+        }
+        if (em == null) {
+            em = EntityManagerFactoryUtils.getTransactionalEntityManager(entityManagerFactory);
+        }
+        return em;
+    }
+
+    private void init() {
+        if (query == null) {
+            EntityType<?> entityType = entityManagerFactory.getMetamodel().entity(entityClass);
+            idType = entityType.getIdType().getJavaType();
+            query = "select e from " + entityType.getName() + " e where e." +
+                    entityType.getId(idType).getName() + " in :ids";
+        }
+    }
+
+    /**
+     * @return The number of distinct ids prefetched
+     */
+    public long getPrefetchCount() {
+        return prefetchCount.get();
+    }
+
+    /**
+     * @return The number of IN-list queries executed
+     */
+    public long getBatchCount() {
+        return batchCount.get();
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    @Override
+    public String toString() {
+        return "prefetch(" + entityClass.getSimpleName() + ", " + ids + ")";
+    }
+}
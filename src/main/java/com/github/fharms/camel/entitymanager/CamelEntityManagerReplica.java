@@ -0,0 +1,52 @@
+/**
+ * The MIT License
+ * Copyright © 2016 Flemming Harms
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.fharms.camel.entitymanager;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+import static java.lang.annotation.ElementType.FIELD;
+
+/**
+ *  Add to the EntityManager field to route reads to a replica. The replica is used in a read-only transaction, or
+ *  when the bean method is annotated with {@link ReadOnlyCamelEntityManager} and there is no transaction. Writes and
+ *  anything in a read-write transaction stays on the injected or Camel entity manager. If the replica is unavailable
+ *  the primary is used.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({FIELD})
+public @interface CamelEntityManagerReplica {
+
+    /**
+     * @return Name of the replica {@link javax.persistence.EntityManagerFactory} bean
+     */
+    String value();
+
+    /**
+     * @return True if a query failing with a connection error when executed on the replica should be executed again on
+     * the primary, false by default. The queries of the replica is then wrapped in a proxy of the query interface,
+     * which cannot be cast to the query class of the provider, only unwrapped
+     */
+    boolean fallbackOnExecution() default false;
+}
@@ -0,0 +1,212 @@
+/**
+ * The MIT License
+ * Copyright © 2016 Flemming Harms
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.fharms.camel.entitymanager;
+
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.orm.jpa.EntityManagerFactoryUtils;
+import org.springframework.orm.jpa.SharedEntityManagerCreator;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceException;
+import javax.persistence.Query;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLTransientConnectionException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Provide the entity manager of the replica for fields annotated with {@link CamelEntityManagerReplica}.
+ * <p>
+ * The connection of the replica is validated the first time it is used in a transaction. If the validation, an
+ * operation or, with fallback on execution, the execution of a query fails with a connection error the replica is
+ * marked as unavailable and the primary is used until {@value #RETRY_INTERVAL_SECONDS} seconds has passed.
+ * </p>
+ */
+class CamelEntityManagerReplicaRouter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CamelEntityManagerReplicaRouter.class);
+
+    static final int RETRY_INTERVAL_SECONDS = 30;
+
+    private static final int VALIDATION_TIMEOUT_SECONDS = 2;
+
+    private final EntityManagerFactory emf;
+
+    private final EntityManager sharedEntityManager;
+
+    private final boolean fallbackOnExecution;
+
+    private volatile long unavailableUntil;
+
+    CamelEntityManagerReplicaRouter(EntityManagerFactory emf, boolean fallbackOnExecution) {
+        this.emf = emf;
+        this.sharedEntityManager = SharedEntityManagerCreator.createSharedEntityManager(emf);
+        this.fallbackOnExecution = fallbackOnExecution;
+    }
+
+    /**
+     * Reads is routed to the replica in a read-only transaction, or when the method is marked read-only
+     * and there is no transaction. Anything in a read-write transaction stays on the primary.
+     *
+     * @param readOnlyMethod true if the current bean method is annotated with {@link ReadOnlyCamelEntityManager}
+     * @return true if the replica should be used
+     */
+    boolean isReadOnly(boolean readOnlyMethod) {
+        if (TransactionSynchronizationManager.isActualTransactionActive()) {
+            return TransactionSynchronizationManager.isCurrentTransactionReadOnly();
+        }
+        return readOnlyMethod;
+    }
+
+    /**
+     * @return The entity manager of the replica, or null if the replica is unavailable
+     */
+    EntityManager getEntityManager() {
+        if (unavailableUntil != 0 && System.nanoTime() - unavailableUntil < 0) {
+            return null;
+        }
+        if (!emf.isOpen()) {
+            markUnavailable(null);
+            return null;
+        }
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            return sharedEntityManager;
+        }
+
+        boolean bound = TransactionSynchronizationManager.hasResource(emf);
+        EntityManager em = EntityManagerFactoryUtils.getTransactionalEntityManager(emf);
+        if (!bound && !isValid(em)) {
+            return null;
+        }
+        return em;
+    }
+
+    void markUnavailable(Throwable cause) {
+        LOG.warn("Replica is unavailable, using the primary for the next {} seconds", RETRY_INTERVAL_SECONDS, cause);
+        unavailableUntil = System.nanoTime() + TimeUnit.SECONDS.toNanos(RETRY_INTERVAL_SECONDS);
+    }
+
+    /**
+     * Wrap the query created on the replica when fallback on execution is enabled, so the query is created again on
+     * the primary and executed there if the execution fails with a connection error. The parameters, hints and limits
+     * set on the query is replayed on the query of the primary. Unwrap is passed on to the current query, so the query
+     * of the provider is returned.
+     */
+    Object fallbackOnExecution(Object result, Method method, Callable<Object> primaryQuery) {
+        if (!fallbackOnExecution || !(result instanceof Query) || !method.getReturnType().isInstance(result)
+                || !method.getReturnType().isInterface()) {
+            return result;
+        }
+        InvocationHandler handler = new InvocationHandler() {
+
+            private final List<Method> setters = new ArrayList<>();
+
+            private final List<Object[]> setterArgs = new ArrayList<>();
+
+            private Object query = result;
+
+            private boolean primary;
+
+            @Override
+            public Object invoke(Object proxy, Method queryMethod, Object[] args) throws Throwable {
+                try {
+                    Object queryResult = queryMethod.invoke(query, args);
+                    if (!primary && queryMethod.getName().startsWith("set")) {
+                        setters.add(queryMethod);
+                        setterArgs.add(args);
+                    }
+                    return queryResult == query && !"unwrap".equals(queryMethod.getName()) ? proxy : queryResult;
+                } catch (InvocationTargetException e) {
+                    if (primary || !isExecution(queryMethod) || !isConnectionFailure(e.getCause())) {
+                        throw e.getCause();
+                    }
+                    markUnavailable(e.getCause());
+                }
+                try {
+                    query = primaryQuery.call();
+                    primary = true;
+                    for (int i = 0; i < setters.size(); i++) {
+                        setters.get(i).invoke(query, setterArgs.get(i));
+                    }
+                    return queryMethod.invoke(query, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+            }
+        };
+        return Proxy.newProxyInstance(method.getReturnType().getClassLoader(), new Class[]{method.getReturnType()}, handler);
+    }
+
+    private static boolean isExecution(Method queryMethod) {
+        switch (queryMethod.getName()) {
+            case "getResultList":
+            case "getSingleResult":
+            case "execute":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private boolean isValid(EntityManager em) {
+        try {
+            if (em.unwrap(Session.class).doReturningWork(connection -> connection.isValid(VALIDATION_TIMEOUT_SECONDS))) {
+                return true;
+            }
+            markUnavailable(null);
+        } catch (HibernateException | PersistenceException e) {
+            markUnavailable(e);
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the exception is caused by a failing connection to the database
+     */
+    static boolean isConnectionFailure(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SQLTransientConnectionException || cause instanceof SQLNonTransientConnectionException) {
+                return true;
+            }
+            if (cause instanceof SQLException) {
+                String sqlState = ((SQLException) cause).getSQLState();
+                if (sqlState != null && sqlState.startsWith("08")) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
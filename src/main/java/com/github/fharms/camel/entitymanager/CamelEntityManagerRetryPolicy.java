@@ -0,0 +1,224 @@
+/**
+ * The MIT License
+ * Copyright © 2016 Flemming Harms
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.fharms.camel.entitymanager;
+
+import org.hibernate.StaleStateException;
+import org.hibernate.exception.LockAcquisitionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.ConcurrencyFailureException;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.persistence.OptimisticLockException;
+import javax.persistence.PessimisticLockException;
+import java.sql.SQLException;
+import java.sql.SQLTransactionRollbackException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Retry policy for bean methods annotated with {@link CamelEntityManagerRetry}. Register it as a bean and the
+ * {@link CamelEntityManagerHandler} runs every attempt of the method in a new transaction. The Camel entity manager is
+ * not bound during the attempts, so each attempt use a fresh transactional entity manager instead of a persistence
+ * context left stale by the failed attempt.
+ * <p>
+ * An attempt failing on an optimistic lock conflict or a deadlock is retried up to the max attempts, waiting the
+ * backoff doubled for each retry with a random jitter of up to half the backoff. The conflict and retry rates is
+ * counted per policy.
+ * </p>
+ */
+public class CamelEntityManagerRetryPolicy {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CamelEntityManagerRetryPolicy.class);
+
+    private static final String SERIALIZATION_FAILURE = "40001";
+
+    private static final String DEADLOCK_DETECTED = "40P01";
+
+    private final TransactionTemplate transactionTemplate;
+
+    private final int maxAttempts;
+
+    private final long backoffMillis;
+
+    private final ThreadLocal<Boolean> retryLocal = new ThreadLocal<>();
+
+    private final AtomicLong invocationCount = new AtomicLong();
+
+    private final AtomicLong conflictCount = new AtomicLong();
+
+    private final AtomicLong retryCount = new AtomicLong();
+
+    private final AtomicLong exhaustedCount = new AtomicLong();
+
+    public CamelEntityManagerRetryPolicy(PlatformTransactionManager transactionManager, int maxAttempts, long backoffMillis) {
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.transactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        this.maxAttempts = maxAttempts;
+        this.backoffMillis = backoffMillis;
+    }
+
+    /**
+     * Invoke the attempt in a new transaction until it succeeds, fails on something else than a conflict or the
+     * attempts is exhausted. Nested invocations on the same thread is part of the current attempt
+     */
+    Object invoke(Attempt attempt) throws Throwable {
+        if (retryLocal.get() != null) {
+            return attempt.proceed();
+        }
+        invocationCount.incrementAndGet();
+        retryLocal.set(Boolean.TRUE);
+        try {
+            for (int attemptNumber = 1; ; attemptNumber++) {
+                try {
+                    return invokeInTransaction(attempt);
+                } catch (Throwable e) {
+                    if (!isConflict(e)) {
+                        throw e;
+                    }
+                    conflictCount.incrementAndGet();
+                    if (attemptNumber >= maxAttempts) {
+                        exhaustedCount.incrementAndGet();
+                        throw e;
+                    }
+                    retryCount.incrementAndGet();
+                    long delay = backoff(attemptNumber);
+                    LOG.debug("Attempt {} of {} failed on a conflict, retrying in {} ms", attemptNumber, maxAttempts, delay, e);
+                    Thread.sleep(delay);
+                }
+            }
+        } finally {
+            retryLocal.remove();
+        }
+    }
+
+    private Object invokeInTransaction(Attempt attempt) throws Throwable {
+        try {
+            return transactionTemplate.execute(status -> {
+                try {
+                    return attempt.proceed();
+                } catch (RuntimeException | Error e) {
+                    throw e;
+                } catch (Throwable e) {
+                    throw new AttemptException(e);
+                }
+            });
+        } catch (AttemptException e) {
+            throw e.getCause();
+        }
+    }
+
+    private long backoff(int attemptNumber) {
+        long delay = backoffMillis << (attemptNumber - 1);
+        return delay - ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    /**
+     * @return true if the exception or one of the causes is an optimistic lock conflict or a deadlock
+     */
+    static boolean isConflict(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof OptimisticLockException ||
+                    cause instanceof PessimisticLockException ||
+                    cause instanceof StaleStateException ||
+                    cause instanceof LockAcquisitionException ||
+                    cause instanceof ConcurrencyFailureException ||
+                    cause instanceof SQLTransactionRollbackException) {
+                return true;
+            }
+            if (cause instanceof SQLException) {
+                String sqlState = ((SQLException) cause).getSQLState();
+                if (SERIALIZATION_FAILURE.equals(sqlState) || DEADLOCK_DETECTED.equals(sqlState)) {
+                    return true;
+                }
+            }
+            if (cause.getCause() == cause) {
+                break;
+            }
+        }
+        return false;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public long getBackoffMillis() {
+        return backoffMillis;
+    }
+
+    public long getInvocationCount() {
+        return invocationCount.get();
+    }
+
+    /**
+     * @return Number of attempts failed on a conflict
+     */
+    public long getConflictCount() {
+        return conflictCount.get();
+    }
+
+    public long getRetryCount() {
+        return retryCount.get();
+    }
+
+    /**
+     * @return Number of invocations failed on a conflict after the max attempts
+     */
+    public long getExhaustedCount() {
+        return exhaustedCount.get();
+    }
+
+    /**
+     * @return Conflicts per invocation
+     */
+    public double getConflictRate() {
+        long invocations = invocationCount.get();
+        return invocations == 0 ? 0 : (double) conflictCount.get() / invocations;
+    }
+
+    /**
+     * @return Retries per invocation
+     */
+    public double getRetryRate() {
+        long invocations = invocationCount.get();
+        return invocations == 0 ? 0 : (double) retryCount.get() / invocations;
+    }
+
+    /**
+     * A single attempt of the bean method
+     */
+    @FunctionalInterface
+    interface Attempt {
+        Object proceed() throws Throwable;
+    }
+
+    private static class AttemptException extends RuntimeException {
+
+        AttemptException(Throwable cause) {
+            super(cause);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+/**
+ * The MIT License
+ * Copyright © 2016 Flemming Harms
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.fharms.camel.entitymanager;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Route;
+import org.apache.camel.support.RoutePolicySupport;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Route policy binding the Camel entity manager of the exchange to the thread when the exchange enters the route,
+ * and releasing it when the exchange is done. Beans invoked by the route use the Camel entity manager even if the
+ * method doesn't take the {@link Exchange} as argument, like <code>persist(@Body MyEntity entity)</code>.
+ * <p>
+ * Select it per route with <code>routePolicy(camelEntityManagerRoutePolicy)</code>. The routes without the policy
+ * bind the entity manager per bean method as before. The binding is made once per exchange, so routes called from a
+ * route with the policy reuse the binding, and is intended for routes processing the exchange on the same thread.
+ * </p>
+ */
+@Component
+public class CamelEntityManagerRoutePolicy extends RoutePolicySupport {
+
+    private final CamelEntityManagerHandler handler;
+
+    @Autowired
+    public CamelEntityManagerRoutePolicy(CamelEntityManagerHandler handler) {
+        this.handler = handler;
+    }
+
+    @Override
+    public void onExchangeBegin(Route route, Exchange exchange) {
+        handler.bind(exchange);
+    }
+
+    @Override
+    public void onExchangeDone(Route route, Exchange exchange) {
+        handler.release(exchange);
+    }
+}
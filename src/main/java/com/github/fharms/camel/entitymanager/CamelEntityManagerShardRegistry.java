@@ -0,0 +1,133 @@
+/**
+ * The MIT License
+ * Copyright © 2016 Flemming Harms
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.fharms.camel.entitymanager;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Expression;
+import org.apache.camel.builder.ExpressionBuilder;
+import org.springframework.orm.jpa.EntityManagerFactoryUtils;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Registry of {@link EntityManagerFactory}s by shard key, used by fields annotated with {@link CamelEntityManagerShard}.
+ * The shard key is evaluated on the exchange passed to the bean, by default the header
+ * {@value #CAMEL_ENTITY_MANAGER_SHARD_KEY}.
+ * <p>
+ * The entity manager for a shard is synchronized with the current Spring transaction. If the shard is not the one
+ * managed by the transaction manager, a resource local transaction is started on it and committed after the Spring
+ * transaction commit, or rolled back if it rolls back. This is a best effort commit, there is no two phase commit
+ * between the shards.
+ * </p>
+ */
+public class CamelEntityManagerShardRegistry {
+
+    public static final String CAMEL_ENTITY_MANAGER_SHARD_KEY = "CamelEntityManagerShardKey";
+
+    private final Map<Object, EntityManagerFactory> entityManagerFactories;
+
+    private final Expression shardKeyExpression;
+
+    public CamelEntityManagerShardRegistry(Map<?, EntityManagerFactory> entityManagerFactories) {
+        this(entityManagerFactories, ExpressionBuilder.headerExpression(CAMEL_ENTITY_MANAGER_SHARD_KEY));
+    }
+
+    public CamelEntityManagerShardRegistry(Map<?, EntityManagerFactory> entityManagerFactories, Expression shardKeyExpression) {
+        this.entityManagerFactories = Collections.unmodifiableMap(new HashMap<>(entityManagerFactories));
+        this.shardKeyExpression = shardKeyExpression;
+    }
+
+    public Object getShardKey(Exchange exchange) {
+        return shardKeyExpression.evaluate(exchange, Object.class);
+    }
+
+    public EntityManagerFactory getEntityManagerFactory(Object shardKey) {
+        EntityManagerFactory emf = entityManagerFactories.get(shardKey);
+        if (emf == null) {
+            throw new IllegalArgumentException("No EntityManagerFactory registered for shard [" + shardKey + "]");
+        }
+        return emf;
+    }
+
+    /**
+     * Get the transaction synchronized entity manager for the shard selected by the exchange
+     *
+     * @param exchange The exchange to evaluate the shard key on
+     * @return The entity manager for the shard
+     */
+    EntityManager getTransactionalEntityManager(Exchange exchange) {
+        Object shardKey = getShardKey(exchange);
+        if (shardKey == null) {
+            throw new IllegalStateException("No shard key on exchange " + exchange.getExchangeId());
+        }
+        EntityManagerFactory emf = getEntityManagerFactory(shardKey);
+        EntityManager em = EntityManagerFactoryUtils.getTransactionalEntityManager(emf);
+        if (em == null) {
+            throw new IllegalStateException("Transaction synchronization is not active");
+        }
+
+        EntityTransaction transaction = em.getTransaction();
+        if (!transaction.isActive()) {
+            transaction.begin();
+            TransactionSynchronizationManager.registerSynchronization(new ShardTransactionSynchronization(transaction));
+        }
+        return em;
+    }
+
+    /**
+     * Complete the resource local transaction of the shard with the outcome of the Spring transaction. It must run
+     * before the synchronization closing the entity manager
+     */
+    private static class ShardTransactionSynchronization extends TransactionSynchronizationAdapter {
+
+        private final EntityTransaction transaction;
+
+        ShardTransactionSynchronization(EntityTransaction transaction) {
+            this.transaction = transaction;
+        }
+
+        @Override
+        public int getOrder() {
+            return EntityManagerFactoryUtils.ENTITY_MANAGER_SYNCHRONIZATION_ORDER - 1;
+        }
+
+        @Override
+        public void afterCommit() {
+            transaction.commit();
+        }
+
+        @Override
+        public void afterCompletion(int status) {
+            if (transaction.isActive()) {
+                transaction.rollback();
+            }
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/**
+ * The MIT License
+ * Copyright © 2016 Flemming Harms
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.fharms.camel.entitymanager;
+
+import org.apache.camel.Exchange;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An entity manager operation slower than its threshold, recorded by the {@link CamelEntityManagerHandler} and read
+ * through {@link CamelEntityManagerSlowOperations}
+ */
+public final class CamelEntityManagerSlowOperation {
+
+    private final long sequence;
+
+    private final long timestamp = System.currentTimeMillis();
+
+    private final String operation;
+
+    private final String statement;
+
+    private final long durationNanos;
+
+    private final String routeId;
+
+    private final String exchangeId;
+
+    private final String beanMethod;
+
+    private final String threadName = Thread.currentThread().getName();
+
+    private final StackTraceElement[] stack;
+
+    CamelEntityManagerSlowOperation(long sequence, String operation, String statement, long durationNanos,
+                                    Exchange exchange, Method beanMethod, StackTraceElement[] stack) {
+        this.sequence = sequence;
+        this.operation = operation;
+        this.statement = statement;
+        this.durationNanos = durationNanos;
+        this.routeId = exchange != null ? CamelEntityManagerEvents.getRouteId(exchange) : null;
+        this.exchangeId = exchange != null ? exchange.getExchangeId() : null;
+        this.beanMethod = beanMethod != null ? beanMethod.getDeclaringClass().getName() + "." + beanMethod.getName() : null;
+        this.stack = stack;
+    }
+
+    long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return The time the operation completed in milliseconds since the epoch
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return The name of the entity manager or query method
+     */
+    public String getOperation() {
+        return operation;
+    }
+
+    /**
+     * @return The JPQL, SQL or name of the query, or the name of the entity class, truncated to 1000 characters
+     */
+    public String getStatement() {
+        return statement;
+    }
+
+    public long getDurationMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(durationNanos);
+    }
+
+    public long getDurationNanos() {
+        return durationNanos;
+    }
+
+    public String getRouteId() {
+        return routeId;
+    }
+
+    public String getExchangeId() {
+        return exchangeId;
+    }
+
+    public String getBeanMethod() {
+        return beanMethod;
+    }
+
+    public String getThreadName() {
+        return threadName;
+    }
+
+    /**
+     * @return The truncated stack of the caller, or null if the stack depth is 0
+     */
+    public StackTraceElement[] getStack() {
+        return stack != null ? stack.clone() : null;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("operation=").append(operation)
+                .append(", duration=").append(getDurationMillis()).append("ms")
+                .append(", statement=").append(statement)
+                .append(", route=").append(routeId)
+                .append(", exchange=").append(exchangeId)
+                .append(", method=").append(beanMethod)
+                .append(", thread=").append(threadName);
+        if (stack != null) {
+            for (StackTraceElement element : stack) {
+                builder.append(System.lineSeparator()).append("\tat ").append(element);
+            }
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,340 @@
+/**
+ * The MIT License
+ * Copyright © 2016 Flemming Harms
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.fharms.camel.entitymanager;
+
+import org.apache.camel.Exchange;
+
+import javax.persistence.Query;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Ring buffer of the entity manager operations slower than their threshold. The threshold of an operation is the
+ * threshold of the bean method invoking it, the threshold of the route of the exchange, or the default threshold.
+ * The operations is appended to a fixed number of slots by an atomic sequence without locking, overwriting the oldest
+ * operations, and read through {@link CamelEntityManagerSlowOperations}.
+ * <p>
+ * Timing an operation faster than the lowest threshold doesn't allocate, so only the slow operations is allocated.
+ * The execution of queries is only timed when enabled with {@link #setTimeQueries(boolean)}, as the queries created by
+ * the entity manager is then wrapped in a proxy of the query interface, which cannot be cast to the query class of the
+ * provider, only unwrapped.
+ * </p>
+ */
+final class CamelEntityManagerSlowOperationLog {
+
+    private static final Long NO_THRESHOLD = -1L;
+
+    private static final String PACKAGE = CamelEntityManagerSlowOperationLog.class.getPackage().getName() + ".";
+
+    private static final int MAX_STATEMENT_LENGTH = 1000;
+
+    private final AtomicReferenceArray<CamelEntityManagerSlowOperation> slots;
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final ConcurrentMap<String, Long> routeThresholds = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<String, Long> methodThresholds = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<Method, Long> beanMethodThresholds = new ConcurrentHashMap<>();
+
+    private volatile long thresholdNanos = TimeUnit.SECONDS.toNanos(1);
+
+    private volatile long minThresholdNanos = thresholdNanos;
+
+    private volatile int stackDepth;
+
+    private volatile boolean timeQueries;
+
+    CamelEntityManagerSlowOperationLog(int capacity) {
+        this.slots = new AtomicReferenceArray<>(capacity);
+    }
+
+    /**
+     * Record the operation started at startNanos if it is slower than its threshold
+     *
+     * @param statement The statement, query, entity or entity class of the operation
+     */
+    void record(long startNanos, String operation, Object statement, Exchange exchange, Method beanMethod) {
+        long durationNanos = System.nanoTime() - startNanos;
+        if (durationNanos < minThresholdNanos || durationNanos < getThresholdNanos(exchange, beanMethod)) {
+            return;
+        }
+        long next = sequence.getAndIncrement();
+        slots.set((int) (next % slots.length()), new CamelEntityManagerSlowOperation(next, operation, describe(statement),
+                durationNanos, exchange, beanMethod, captureStack()));
+    }
+
+    /**
+     * Wrap the query returned by the entity manager, so the execution of the query is timed. Unwrap is passed on to the
+     * query, so the query of the provider is returned
+     */
+    Object timeQuery(Object result, Method method, Exchange exchange, Method beanMethod) {
+        if (!timeQueries || !(result instanceof Query) || !method.getReturnType().isInstance(result)
+                || !method.getReturnType().isInterface()) {
+            return result;
+        }
+        Query query = (Query) result;
+        InvocationHandler handler = new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method queryMethod, Object[] args) throws Throwable {
+                long start = System.nanoTime();
+                try {
+                    Object queryResult = queryMethod.invoke(query, args);
+                    return queryResult == query && !"unwrap".equals(queryMethod.getName()) ? proxy : queryResult;
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                } finally {
+                    if (isExecution(queryMethod)) {
+                        record(start, queryMethod.getName(), query, exchange, beanMethod);
+                    }
+                }
+            }
+        };
+        return Proxy.newProxyInstance(method.getReturnType().getClassLoader(), new Class[]{method.getReturnType()}, handler);
+    }
+
+    private static boolean isExecution(Method queryMethod) {
+        switch (queryMethod.getName()) {
+            case "getResultList":
+            case "getSingleResult":
+            case "executeUpdate":
+            case "execute":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private long getThresholdNanos(Exchange exchange, Method beanMethod) {
+        if (beanMethod != null && !methodThresholds.isEmpty()) {
+            Long threshold = beanMethodThresholds.get(beanMethod);
+            if (threshold == null) {
+                threshold = beanMethodThresholds.computeIfAbsent(beanMethod, this::findMethodThreshold);
+            }
+            if (threshold >= 0) {
+                return threshold;
+            }
+        }
+        if (exchange != null && !routeThresholds.isEmpty()) {
+            String routeId = CamelEntityManagerEvents.getRouteId(exchange);
+            Long threshold = routeId != null ? routeThresholds.get(routeId) : null;
+            if (threshold != null) {
+                return threshold;
+            }
+        }
+        return thresholdNanos;
+    }
+
+    private Long findMethodThreshold(Method beanMethod) {
+        Long threshold = methodThresholds.get(beanMethod.getDeclaringClass().getName() + "." + beanMethod.getName());
+        if (threshold == null) {
+            threshold = methodThresholds.get(beanMethod.getDeclaringClass().getSimpleName() + "." + beanMethod.getName());
+        }
+        return threshold != null ? threshold : NO_THRESHOLD;
+    }
+
+    private static String describe(Object statement) {
+        String description;
+        if (statement == null) {
+            return null;
+        } else if (statement instanceof String) {
+            description = (String) statement;
+        } else if (statement instanceof Class) {
+            description = ((Class<?>) statement).getName();
+        } else if (statement instanceof Query) {
+            description = getQueryString((Query) statement);
+        } else {
+            description = statement.getClass().getName();
+        }
+        return description.length() > MAX_STATEMENT_LENGTH ? description.substring(0, MAX_STATEMENT_LENGTH) + "..." : description;
+    }
+
+    private static String getQueryString(Query query) {
+        try {
+            return query.unwrap(org.hibernate.Query.class).getQueryString();
+        } catch (RuntimeException e) {
+            return query.getClass().getName();
+        }
+    }
+
+    /**
+     * @return The stack of the caller of the entity manager, without the frames of the proxies, up to the stack depth
+     */
+    private StackTraceElement[] captureStack() {
+        int depth = stackDepth;
+        if (depth <= 0) {
+            return null;
+        }
+        StackTraceElement[] stack = new Throwable().getStackTrace();
+        List<StackTraceElement> frames = new ArrayList<>(depth);
+        for (StackTraceElement element : stack) {
+            String className = element.getClassName();
+            if (frames.isEmpty() && (className.startsWith(PACKAGE) || isProxyClass(className) || isReflection(className))) {
+                continue;
+            }
+            frames.add(element);
+            if (frames.size() == depth) {
+                break;
+            }
+        }
+        return frames.toArray(new StackTraceElement[frames.size()]);
+    }
+
+    /**
+     * The JDK proxy classes is named $Proxy followed by a number, in the package com.sun.proxy, jdk.proxyN from JDK 16,
+     * or the package of a non public interface
+     */
+    private static boolean isProxyClass(String className) {
+        return className.startsWith("$Proxy", className.lastIndexOf('.') + 1);
+    }
+
+    /**
+     * The frames of reflective calls, sun.reflect on JDK 8 and jdk.internal.reflect from JDK 9, and the method
+     * handles used by reflection from JDK 18
+     */
+    private static boolean isReflection(String className) {
+        return className.startsWith("java.lang.reflect.") || className.startsWith("sun.reflect.")
+                || className.startsWith("jdk.internal.reflect.") || className.startsWith("java.lang.invoke.");
+    }
+
+    /**
+     * @return The slow operations in the buffer, the oldest first
+     */
+    List<CamelEntityManagerSlowOperation> getSlowOperations() {
+        List<CamelEntityManagerSlowOperation> operations = new ArrayList<>(slots.length());
+        for (int i = 0; i < slots.length(); i++) {
+            CamelEntityManagerSlowOperation operation = slots.get(i);
+            if (operation != null) {
+                operations.add(operation);
+            }
+        }
+        operations.sort(Comparator.comparingLong(CamelEntityManagerSlowOperation::getSequence));
+        return operations;
+    }
+
+    void clear() {
+        for (int i = 0; i < slots.length(); i++) {
+            slots.set(i, null);
+        }
+    }
+
+    int getCapacity() {
+        return slots.length();
+    }
+
+    /**
+     * @return The number of slow operations recorded since the start, including the overwritten
+     */
+    long getRecordedCount() {
+        return sequence.get();
+    }
+
+    long getThresholdMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(thresholdNanos);
+    }
+
+    void setThresholdMillis(long thresholdMillis) {
+        thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+        updateMinThreshold();
+    }
+
+    /**
+     * Set the threshold of a route, or remove it if the threshold is negative
+     */
+    void setRouteThresholdMillis(String routeId, long thresholdMillis) {
+        setThreshold(routeThresholds, routeId, thresholdMillis);
+    }
+
+    /**
+     * Set the threshold of a bean method, named by the class name, simple or fully qualified, and the method name
+     * separated by a dot, or remove it if the threshold is negative
+     */
+    void setMethodThresholdMillis(String method, long thresholdMillis) {
+        setThreshold(methodThresholds, method, thresholdMillis);
+        beanMethodThresholds.clear();
+    }
+
+    Map<String, Long> getRouteThresholdsMillis() {
+        return toMillis(routeThresholds);
+    }
+
+    Map<String, Long> getMethodThresholdsMillis() {
+        return toMillis(methodThresholds);
+    }
+
+    int getStackDepth() {
+        return stackDepth;
+    }
+
+    void setStackDepth(int stackDepth) {
+        this.stackDepth = stackDepth;
+    }
+
+    boolean isTimeQueries() {
+        return timeQueries;
+    }
+
+    void setTimeQueries(boolean timeQueries) {
+        this.timeQueries = timeQueries;
+    }
+
+    private void setThreshold(ConcurrentMap<String, Long> thresholds, String key, long thresholdMillis) {
+        if (thresholdMillis < 0) {
+            thresholds.remove(key);
+        } else {
+            thresholds.put(key, TimeUnit.MILLISECONDS.toNanos(thresholdMillis));
+        }
+        updateMinThreshold();
+    }
+
+    private synchronized void updateMinThreshold() {
+        long min = thresholdNanos;
+        for (Long threshold : routeThresholds.values()) {
+            min = Math.min(min, threshold);
+        }
+        for (Long threshold : methodThresholds.values()) {
+            min = Math.min(min, threshold);
+        }
+        minThresholdNanos = min;
+    }
+
+    private static Map<String, Long> toMillis(Map<String, Long> thresholds) {
+        Map<String, Long> millis = new TreeMap<>();
+        thresholds.forEach((key, nanos) -> millis.put(key, TimeUnit.NANOSECONDS.toMillis(nanos)));
+        return Collections.unmodifiableMap(millis);
+    }
+}
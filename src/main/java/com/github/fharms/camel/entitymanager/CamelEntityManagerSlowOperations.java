@@ -0,0 +1,171 @@
+/**
+ * The MIT License
+ * Copyright © 2016 Flemming Harms
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.fharms.camel.entitymanager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * MBean exposing the entity manager operations slower than their threshold, kept in a ring buffer by the
+ * {@link CamelEntityManagerHandler}. It is registered in the platform MBean server as {@value #OBJECT_NAME}, with an
+ * id appended if more than one application context is running in the JVM.
+ * <p>
+ * The threshold of an operation is the threshold of the bean method invoking it, the threshold of the route of the
+ * exchange, or the default threshold of 1 second.
+ * </p>
+ */
+@Component
+public class CamelEntityManagerSlowOperations implements CamelEntityManagerSlowOperationsMBean, InitializingBean, DisposableBean {
+
+    public static final String OBJECT_NAME = "com.github.fharms.camel.entitymanager:type=SlowOperations";
+
+    private static final Logger LOG = LoggerFactory.getLogger(CamelEntityManagerSlowOperations.class);
+
+    private static final AtomicInteger INSTANCES = new AtomicInteger();
+
+    private final CamelEntityManagerSlowOperationLog log;
+
+    private ObjectName objectName;
+
+    @Autowired
+    public CamelEntityManagerSlowOperations(CamelEntityManagerHandler handler) {
+        this.log = handler.getSlowOperationLog();
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        try {
+            server.registerMBean(this, name);
+        } catch (InstanceAlreadyExistsException e) {
+            name = new ObjectName(OBJECT_NAME + ",id=" + INSTANCES.incrementAndGet());
+            server.registerMBean(this, name);
+        }
+        objectName = name;
+        LOG.debug("Registered Camel entity manager slow operations MBean {}", objectName);
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        if (objectName != null) {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            objectName = null;
+        }
+    }
+
+    public ObjectName getObjectName() {
+        return objectName;
+    }
+
+    /**
+     * @return The slow operations in the buffer, the oldest first
+     */
+    public List<CamelEntityManagerSlowOperation> getSlowOperations() {
+        return log.getSlowOperations();
+    }
+
+    @Override
+    public long getThresholdMillis() {
+        return log.getThresholdMillis();
+    }
+
+    @Override
+    public void setThresholdMillis(long thresholdMillis) {
+        log.setThresholdMillis(thresholdMillis);
+    }
+
+    @Override
+    public int getStackDepth() {
+        return log.getStackDepth();
+    }
+
+    @Override
+    public void setStackDepth(int stackDepth) {
+        log.setStackDepth(stackDepth);
+    }
+
+    @Override
+    public boolean isTimeQueries() {
+        return log.isTimeQueries();
+    }
+
+    @Override
+    public void setTimeQueries(boolean timeQueries) {
+        log.setTimeQueries(timeQueries);
+    }
+
+    @Override
+    public Map<String, Long> getRouteThresholdsMillis() {
+        return log.getRouteThresholdsMillis();
+    }
+
+    @Override
+    public Map<String, Long> getMethodThresholdsMillis() {
+        return log.getMethodThresholdsMillis();
+    }
+
+    @Override
+    public void setRouteThresholdMillis(String routeId, long thresholdMillis) {
+        log.setRouteThresholdMillis(routeId, thresholdMillis);
+    }
+
+    @Override
+    public void setMethodThresholdMillis(String method, long thresholdMillis) {
+        log.setMethodThresholdMillis(method, thresholdMillis);
+    }
+
+    @Override
+    public int getCapacity() {
+        return log.getCapacity();
+    }
+
+    @Override
+    public long getRecordedCount() {
+        return log.getRecordedCount();
+    }
+
+    @Override
+    public String[] dumpSlowOperations() {
+        return log.getSlowOperations().stream()
+                .map(CamelEntityManagerSlowOperation::toString)
+                .toArray(String[]::new);
+    }
+
+    @Override
+    public void clear() {
+        log.clear();
+    }
+}
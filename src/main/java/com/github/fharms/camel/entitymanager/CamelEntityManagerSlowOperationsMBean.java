@@ -0,0 +1,88 @@
+/**
+ * The MIT License
+ * Copyright © 2016 Flemming Harms
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.fharms.camel.entitymanager;
+
+import java.util.Map;
+
+/**
+ * Management interface of {@link CamelEntityManagerSlowOperations}
+ */
+public interface CamelEntityManagerSlowOperationsMBean {
+
+    /**
+     * @return The threshold of the operations without a route or method threshold
+     */
+    long getThresholdMillis();
+
+    void setThresholdMillis(long thresholdMillis);
+
+    /**
+     * @return The number of frames of the stack recorded with the slow operations, 0 if the stack is not recorded
+     */
+    int getStackDepth();
+
+    void setStackDepth(int stackDepth);
+
+    /**
+     * @return True if the execution of queries created by the entity managers is timed, false by default. The timed
+     * queries is wrapped in a proxy, which cannot be cast to the query class of the provider
+     */
+    boolean isTimeQueries();
+
+    void setTimeQueries(boolean timeQueries);
+
+    Map<String, Long> getRouteThresholdsMillis();
+
+    Map<String, Long> getMethodThresholdsMillis();
+
+    /**
+     * Set the threshold of the operations of the exchanges from the route, or remove it if the threshold is negative
+     */
+    void setRouteThresholdMillis(String routeId, long thresholdMillis);
+
+    /**
+     * Set the threshold of the operations invoked by the bean method, named by the class name and the method name
+     * separated by a dot, or remove it if the threshold is negative
+     */
+    void setMethodThresholdMillis(String method, long thresholdMillis);
+
+    /**
+     * @return The number of slow operations the buffer holds
+     */
+    int getCapacity();
+
+    /**
+     * @return The number of slow operations recorded since the start, including the overwritten
+     */
+    long getRecordedCount();
+
+    /**
+     * @return A line per slow operation in the buffer, the oldest first, with the stack if it is recorded
+     */
+    String[] dumpSlowOperations();
+
+    /**
+     * Remove the slow operations from the buffer
+     */
+    void clear();
+}
@@ -0,0 +1,161 @@
+/**
+ * The MIT License
+ * Copyright © 2016 Flemming Harms
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.fharms.camel.entitymanager;
+
+import org.apache.camel.Exchange;
+import org.hibernate.EmptyInterceptor;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Hibernate interceptor prefixing the SQL statements with a comment naming the route, the bean method and the
+ * persistence units of the Camel entity manager bean executing them, so the statements seen in the database can be
+ * mapped back to the routes. Tagging is opt-in and enabled by registering the interceptor with the JPA property
+ * <code>hibernate.ejb.interceptor</code>, or by calling {@link #tag(String)} from an existing interceptor.
+ * <p>
+ * The tags is built once per bean method and route, and the tagged statements is cached per tag, so the same
+ * statement from the same bean method is always the same SQL string and the prepared statement cache still apply.
+ * Statements executed outside a bean method, like the flush when a route transaction commit, is not tagged.
+ * </p>
+ * <p>
+ * Every entity manager factory can register its own tagger, and each tagger is enabled or disabled on its own. The
+ * bean method running on a thread, and the tags derived from it, is shared by the taggers, as it doesn't depend on
+ * the tagger.
+ * </p>
+ */
+public class CamelEntityManagerStatementTagger extends EmptyInterceptor {
+
+    private static final int MAX_CACHED_STATEMENTS = 256;
+
+    private static final ThreadLocal<Tag> CURRENT = new ThreadLocal<>();
+
+    private static final ConcurrentMap<Method, ConcurrentMap<String, Tag>> TAGS = new ConcurrentHashMap<>();
+
+    private static volatile boolean registered;
+
+    private volatile boolean enabled = true;
+
+    public CamelEntityManagerStatementTagger() {
+        registered = true;
+    }
+
+    /**
+     * Is any statement tagger created, the bean methods is only tracked when one is
+     */
+    static boolean isRegistered() {
+        return registered;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Prefix the statement with the tag of the bean method running on the current thread
+     *
+     * @return The tagged statement or the statement if no bean method is running
+     */
+    public static String tag(String sql) {
+        Tag tag = CURRENT.get();
+        return tag != null ? tag.apply(sql) : sql;
+    }
+
+    @Override
+    public String onPrepareStatement(String sql) {
+        return enabled ? tag(sql) : sql;
+    }
+
+    /**
+     * Set the tag of the bean method for the current thread
+     *
+     * @return The previous tag to restore with {@link #exit(Object)}
+     */
+    static Object enter(Method beanMethod, Exchange exchange, String persistenceUnits) {
+        Tag previous = CURRENT.get();
+        String routeId = exchange != null ? CamelEntityManagerEvents.getRouteId(exchange) : null;
+        if (routeId == null) {
+            routeId = "";
+        }
+        CURRENT.set(TAGS.computeIfAbsent(beanMethod, key -> new ConcurrentHashMap<>())
+                .computeIfAbsent(routeId, key -> new Tag(createComment(key, beanMethod, persistenceUnits))));
+        return previous;
+    }
+
+    static void exit(Object previous) {
+        if (previous == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set((Tag) previous);
+        }
+    }
+
+    private static String createComment(String routeId, Method beanMethod, String persistenceUnits) {
+        StringBuilder comment = new StringBuilder("/* ");
+        if (!routeId.isEmpty()) {
+            comment.append("route=").append(escape(routeId)).append(' ');
+        }
+        comment.append("bean=").append(escape(beanMethod.getDeclaringClass().getSimpleName() + "." + beanMethod.getName()));
+        if (persistenceUnits != null && !persistenceUnits.isEmpty()) {
+            comment.append(" unit=").append(escape(persistenceUnits));
+        }
+        return comment.append(" */ ").toString();
+    }
+
+    /**
+     * Keep names from closing the comment
+     */
+    private static String escape(String name) {
+        return name.replace("*/", "*_/").replace("/*", "/_*");
+    }
+
+    /**
+     * The comment of a bean method and route, with the statements tagged by it
+     */
+    private static final class Tag {
+
+        private final String comment;
+
+        private final ConcurrentMap<String, String> statements = new ConcurrentHashMap<>();
+
+        private Tag(String comment) {
+            this.comment = comment;
+        }
+
+        private String apply(String sql) {
+            String tagged = statements.get(sql);
+            if (tagged == null) {
+                tagged = comment + sql;
+                if (statements.size() < MAX_CACHED_STATEMENTS) {
+                    statements.putIfAbsent(sql, tagged);
+                }
+            }
+            return tagged;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/**
+ * The MIT License
+ * Copyright © 2016 Flemming Harms
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.fharms.camel.entitymanager;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+import static java.lang.annotation.ElementType.FIELD;
+
+/**
+ *  Add to the EntityManager field of a read-mostly bean to keep an extended persistence context per thread for the
+ *  reads without a transaction, so reference entities is not reloaded for every exchange. The persistence context is
+ *  bounded to <code>maxEntities</code> entities by detaching the least recently used, and entities older than
+ *  <code>maxAgeMillis</code> is reloaded. It is cleared when an entity type in it is written through any Camel
+ *  entity manager proxy in the JVM, after the transaction of the write completes.
+ *  <p>
+ *  Only find, getReference, contains and JPQL and criteria queries use the extended persistence context. Writes and
+ *  calls in a transaction use the injected or Camel entity manager as before.
+ *  </p>
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({FIELD})
+public @interface CamelExtendedPersistenceContext {
+
+    /**
+     * @return The max number of entities kept in the persistence context of a thread
+     */
+    int maxEntities() default 1000;
+
+    /**
+     * @return The max age in milliseconds of an entity before it is reloaded
+     */
+    long maxAgeMillis() default 60_000;
+}
@@ -0,0 +1,179 @@
+/**
+ * The MIT License
+ * Copyright © 2016 Flemming Harms
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.fharms.camel.entitymanager;
+
+import org.hibernate.Hibernate;
+import org.hibernate.Session;
+import org.hibernate.StatelessSession;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.persistence.EntityManager;
+import java.io.Serializable;
+import java.lang.reflect.Method;
+
+/**
+ * Run the entity operations of the Camel entity manager proxy through a Hibernate {@link StatelessSession}
+ * opened on the JDBC connection of the resolved entity manager.
+ * <p>
+ * With <code>hibernate.jdbc.batch_size</code> the inserts, updates and deletes is batched, and the batch
+ * is executed before find and refresh, before a query is created, when the entity manager is flushed and before the
+ * transaction commit.
+ * </p>
+ * <p>
+ * A stateless session has no merge, so merge selects the entity by its id and updates it if it exists, otherwise
+ * inserts it. The given entity is returned, as there is no persistence context to merge it into.
+ * </p>
+ */
+final class CamelStatelessSessionOperations {
+
+    private CamelStatelessSessionOperations() {
+    }
+
+    static boolean supports(Method method) {
+        switch (method.getName()) {
+            case "persist":
+            case "merge":
+            case "remove":
+            case "refresh":
+                return method.getParameterCount() == 1;
+            case "find":
+                return method.getParameterCount() == 2;
+            case "flush":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Returns true if the method creates a query, which must see the statements batched by the stateless session
+     */
+    static boolean isQuery(Method method) {
+        return method.getName().startsWith("create") && method.getName().endsWith("Query");
+    }
+
+    /**
+     * Execute the statements batched by the stateless session bound to the transaction of the entity manager, if any
+     */
+    static void executeBatch(EntityManager em) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            Object statelessSession = TransactionSynchronizationManager.getResource(em.unwrap(Session.class));
+            if (statelessSession instanceof StatelessSession) {
+                executeBatch((StatelessSession) statelessSession);
+            }
+        }
+    }
+
+    static Object invoke(EntityManager em, Method method, Object[] args) {
+        Session session = em.unwrap(Session.class);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            return invoke(em, transactionalStatelessSession(session), method, args);
+        }
+
+        StatelessSession statelessSession = openStatelessSession(session);
+        try {
+            Object result = invoke(em, statelessSession, method, args);
+            executeBatch(statelessSession);
+            return result;
+        } finally {
+            statelessSession.close();
+        }
+    }
+
+    private static Object invoke(EntityManager em, StatelessSession statelessSession, Method method, Object[] args) {
+        switch (method.getName()) {
+            case "persist":
+                statelessSession.insert(args[0]);
+                return null;
+            case "merge":
+                merge(em, statelessSession, args[0]);
+                return args[0];
+            case "remove":
+                statelessSession.delete(args[0]);
+                return null;
+            case "refresh":
+                executeBatch(statelessSession);
+                statelessSession.refresh(args[0]);
+                return null;
+            case "find":
+                executeBatch(statelessSession);
+                return statelessSession.get((Class<?>) args[0], (Serializable) args[1]);
+            case "flush":
+                executeBatch(statelessSession);
+                em.flush();
+                return null;
+            default:
+                throw new UnsupportedOperationException("Not supported by a stateless session " + method);
+        }
+    }
+
+    private static void merge(EntityManager em, StatelessSession statelessSession, Object entity) {
+        Object id = em.getEntityManagerFactory().getPersistenceUnitUtil().getIdentifier(entity);
+        if (id == null) {
+            statelessSession.insert(entity);
+            return;
+        }
+        executeBatch(statelessSession);
+        if (statelessSession.get(Hibernate.getClass(entity), (Serializable) id) != null) {
+            statelessSession.update(entity);
+        } else {
+            statelessSession.insert(entity);
+        }
+    }
+
+    /**
+     * Get the stateless session bound to the current transaction for the session, or open a new one which is
+     * closed when the transaction completes
+     */
+    private static StatelessSession transactionalStatelessSession(Session session) {
+        StatelessSession statelessSession = (StatelessSession) TransactionSynchronizationManager.getResource(session);
+        if (statelessSession == null) {
+            StatelessSession newStatelessSession = openStatelessSession(session);
+            TransactionSynchronizationManager.bindResource(session, newStatelessSession);
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void beforeCommit(boolean readOnly) {
+                    executeBatch(newStatelessSession);
+                }
+
+                @Override
+                public void afterCompletion(int status) {
+                    TransactionSynchronizationManager.unbindResourceIfPossible(session);
+                    newStatelessSession.close();
+                }
+            });
+            statelessSession = newStatelessSession;
+        }
+        return statelessSession;
+    }
+
+    private static void executeBatch(StatelessSession statelessSession) {
+        ((SessionImplementor) statelessSession).getJdbcCoordinator().executeBatch();
+    }
+
+    private static StatelessSession openStatelessSession(Session session) {
+        return session.getSessionFactory().openStatelessSession(((SessionImplementor) session).connection());
+    }
+}
@@ -26,6 +26,7 @@ import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
 import javax.persistence.Id;
+import javax.persistence.NamedQuery;
 import javax.persistence.Table;
 import java.util.Objects;
 
@@ -34,6 +35,7 @@ import java.util.Objects;
  */
 @Entity
 @Table(name = "DOG")
+@NamedQuery(name = "Dog.findBatch", query = "select d from Dog d where d.race = 'Batch' order by d.id")
 public class Dog {
 
     @Id
@@ -46,6 +48,9 @@ public class Dog {
     @Column(name = "PET_RACE")
     private String race;
 
+    @Column(name = "CLAIMED_UNTIL")
+    private Long claimedUntil;
+
 
     public String getPetName() {
         return petName;
@@ -63,6 +68,14 @@ public class Dog {
         this.race = race;
     }
 
+    public Long getClaimedUntil() {
+        return claimedUntil;
+    }
+
+    public void setClaimedUntil(Long claimedUntil) {
+        this.claimedUntil = claimedUntil;
+    }
+
     public Long getId() {
         return id;
     }
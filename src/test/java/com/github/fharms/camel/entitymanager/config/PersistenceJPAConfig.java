@@ -22,6 +22,20 @@
  */
 package com.github.fharms.camel.entitymanager.config;
 
+import com.github.fharms.camel.entity.Dog;
+import com.github.fharms.camel.entitymanager.CamelEntityManagerBulkhead;
+import com.github.fharms.camel.entitymanager.CamelEntityManagerCacheInvalidation;
+import com.github.fharms.camel.entitymanager.CamelEntityManagerGroupCommit;
+import com.github.fharms.camel.entitymanager.CamelEntityManagerHandler;
+import com.github.fharms.camel.entitymanager.CamelEntityManagerIdempotentRepository;
+import com.github.fharms.camel.entitymanager.CamelEntityManagerPartitionedReader;
+import com.github.fharms.camel.entitymanager.CamelEntityManagerPrefetch;
+import com.github.fharms.camel.entitymanager.CamelEntityManagerRetryPolicy;
+import com.github.fharms.camel.entitymanager.CamelEntityManagerShardRegistry;
+import com.github.fharms.camel.entitymanager.support.CamelEntityManagerConnectionFailure;
+import com.github.fharms.camel.entitymanager.support.CamelEntityManagerStatementCounter;
+import com.github.fharms.camel.route.CamelEntityManagerTestRoutes;
+import org.apache.camel.builder.ExpressionBuilder;
 import org.apache.camel.component.jpa.JpaComponent;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.context.annotation.Bean;
@@ -35,6 +49,8 @@ import org.springframework.transaction.PlatformTransactionManager;
 import org.springframework.transaction.annotation.EnableTransactionManagement;
 
 import javax.persistence.EntityManagerFactory;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Properties;
 
 
@@ -47,26 +63,92 @@ public class PersistenceJPAConfig {
 
     @Bean(name = "emf")
     public LocalContainerEntityManagerFactoryBean entityManagerFactory() {
-        LocalContainerEntityManagerFactoryBean em = new LocalContainerEntityManagerFactoryBean();
-        em.setPackagesToScan("com.github.fharms");
-
-        JpaVendorAdapter vendorAdapter = new HibernateJpaVendorAdapter();
-        em.setJpaVendorAdapter(vendorAdapter);
-        em.setJpaProperties(additionalProperties());
+        return createEntityManagerFactory("test", emfStatementCounter());
+    }
 
-        return em;
+    @Bean(name = "emfStatementCounter")
+    public CamelEntityManagerStatementCounter emfStatementCounter() {
+        return new CamelEntityManagerStatementCounter();
     }
 
     @Bean(name = "emf2")
     public LocalContainerEntityManagerFactoryBean entityManagerFactory2() {
-        LocalContainerEntityManagerFactoryBean em = new LocalContainerEntityManagerFactoryBean();
-        em.setPackagesToScan("com.github.fharms");
+        return createEntityManagerFactory("test");
+    }
 
-        JpaVendorAdapter vendorAdapter = new HibernateJpaVendorAdapter();
-        em.setJpaVendorAdapter(vendorAdapter);
-        em.setJpaProperties(additionalProperties());
+    @Bean(name = "shard1")
+    public LocalContainerEntityManagerFactoryBean shardEntityManagerFactory1() {
+        return createEntityManagerFactory("shard1");
+    }
 
-        return em;
+    @Bean(name = "shard2")
+    public LocalContainerEntityManagerFactoryBean shardEntityManagerFactory2() {
+        return createEntityManagerFactory("shard2");
+    }
+
+    @Bean(name = "replica")
+    public LocalContainerEntityManagerFactoryBean replicaEntityManagerFactory() {
+        return createEntityManagerFactory("replica", replicaConnectionFailure());
+    }
+
+    @Bean(name = "replicaConnectionFailure")
+    public CamelEntityManagerConnectionFailure replicaConnectionFailure() {
+        return new CamelEntityManagerConnectionFailure();
+    }
+
+    @Bean(name = "dogShards")
+    public CamelEntityManagerShardRegistry dogShards(@Qualifier("shard1") EntityManagerFactory shard1, @Qualifier("shard2") EntityManagerFactory shard2) {
+        Map<String, EntityManagerFactory> shards = new HashMap<>();
+        shards.put("shard1", shard1);
+        shards.put("shard2", shard2);
+        return new CamelEntityManagerShardRegistry(shards);
+    }
+
+    @Bean(name = "emf2Bulkhead")
+    public CamelEntityManagerBulkhead emf2Bulkhead() {
+        return new CamelEntityManagerBulkhead("emf2", 1, 100, CamelEntityManagerBulkhead.RejectionPolicy.FAIL);
+    }
+
+    @Bean(name = "dogRetry")
+    public CamelEntityManagerRetryPolicy dogRetry(PlatformTransactionManager transactionManager) {
+        return new CamelEntityManagerRetryPolicy(transactionManager, 3, 10);
+    }
+
+    @Bean(name = "dogExport")
+    public CamelEntityManagerPartitionedReader dogExport(CamelEntityManagerHandler handler, @Qualifier("emf") EntityManagerFactory emf,
+                                                         PlatformTransactionManager transactionManager) {
+        CamelEntityManagerPartitionedReader reader = new CamelEntityManagerPartitionedReader(handler, emf, transactionManager,
+                Dog.class, 4, CamelEntityManagerTestRoutes.DIRECT_EXPORT_CHUNK_TEST.uri());
+        reader.setCondition("e.race = 'Export'");
+        reader.setFetchSize(5);
+        return reader;
+    }
+
+    @Bean(name = "dogIdempotent")
+    public CamelEntityManagerIdempotentRepository dogIdempotent(CamelEntityManagerHandler handler, @Qualifier("emf") EntityManagerFactory emf,
+                                                                PlatformTransactionManager transactionManager) {
+        CamelEntityManagerIdempotentRepository repository = new CamelEntityManagerIdempotentRepository(handler, emf,
+                transactionManager, "dogs");
+        repository.setExpectedKeys(1000);
+        repository.setRecentKeys(5);
+        return repository;
+    }
+
+    @Bean(name = "dogGroupCommit")
+    public CamelEntityManagerGroupCommit dogGroupCommit(CamelEntityManagerHandler handler, @Qualifier("emf") EntityManagerFactory emf,
+                                                        PlatformTransactionManager transactionManager) {
+        return new CamelEntityManagerGroupCommit(handler, emf, transactionManager,
+                CamelEntityManagerTestRoutes.DIRECT_GROUP_COMMIT_WORK_TEST.uri(), 10, 500);
+    }
+
+    @Bean(name = "dogPrefetch")
+    public CamelEntityManagerPrefetch dogPrefetch(CamelEntityManagerHandler handler, @Qualifier("emf") EntityManagerFactory emf) {
+        return new CamelEntityManagerPrefetch(handler, emf, Dog.class, ExpressionBuilder.bodyExpression(), 10);
+    }
+
+    @Bean(name = "dogCacheInvalidation")
+    public CamelEntityManagerCacheInvalidation dogCacheInvalidation(@Qualifier("emf") EntityManagerFactory emf) {
+        return new CamelEntityManagerCacheInvalidation(emf, "emf", CamelEntityManagerTestRoutes.VM_CACHE_INVALIDATION_TEST.uri());
     }
 
     @Bean(name = "transactionManager")
@@ -98,15 +180,33 @@ public class PersistenceJPAConfig {
     }
 
 
-    private Properties additionalProperties() {
+    private LocalContainerEntityManagerFactoryBean createEntityManagerFactory(String database) {
+        return createEntityManagerFactory(database, new CamelEntityManagerStatementCounter());
+    }
+
+    private LocalContainerEntityManagerFactoryBean createEntityManagerFactory(String database, CamelEntityManagerStatementCounter statementCounter) {
+        LocalContainerEntityManagerFactoryBean em = new LocalContainerEntityManagerFactoryBean();
+        em.setPackagesToScan("com.github.fharms", "org.apache.camel.processor.idempotent.jpa");
+
+        JpaVendorAdapter vendorAdapter = new HibernateJpaVendorAdapter();
+        em.setJpaVendorAdapter(vendorAdapter);
+        em.setJpaProperties(additionalProperties(database));
+        em.getJpaPropertyMap().put("hibernate.ejb.interceptor", statementCounter);
+
+        return em;
+    }
+
+    private Properties additionalProperties(String database) {
         Properties properties = new Properties();
         properties.setProperty("hibernate.archive.autodetection" ,"class");
         properties.setProperty("hibernate.dialect" ,"org.hibernate.dialect.H2Dialect");
         properties.setProperty("hibernate.connection.driver_class" ,"org.h2.Driver");
-        properties.setProperty("hibernate.connection.url" ,"jdbc:h2:mem:test;DB_CLOSE_ON_EXIT=TRUE");
+        properties.setProperty("hibernate.connection.url" ,"jdbc:h2:mem:" + database + ";DB_CLOSE_ON_EXIT=TRUE");
         properties.setProperty("hibernate.connection.user" ,"sa");
         properties.setProperty("hibernate.show_sql" ,"false");
         properties.setProperty("hibernate.id.new_generator_mappings", "true");
+        properties.setProperty("hibernate.jdbc.batch_size", "50");
+        properties.setProperty("hibernate.order_inserts", "true");
         properties.setProperty("hibernate.hbm2ddl.auto" ,"update");
         return properties;
     }
@@ -0,0 +1,53 @@
+/**
+ * The MIT License
+ * Copyright © 2016 Flemming Harms
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.fharms.camel.entitymanager.support;
+
+import org.hibernate.exception.JDBCConnectionException;
+
+import java.sql.SQLNonTransientConnectionException;
+
+/**
+ * Statement counter failing the statements with a connection error while failing is set, to simulate a database
+ * failing when the statements is executed. The connection itself is still valid.
+ */
+public class CamelEntityManagerConnectionFailure extends CamelEntityManagerStatementCounter {
+
+    private volatile boolean failing;
+
+    public boolean isFailing() {
+        return failing;
+    }
+
+    public void setFailing(boolean failing) {
+        this.failing = failing;
+    }
+
+    @Override
+    public String onPrepareStatement(String sql) {
+        if (failing) {
+            throw new JDBCConnectionException("Simulated connection failure",
+                    new SQLNonTransientConnectionException("Connection is broken", "08006"), sql);
+        }
+        return super.onPrepareStatement(sql);
+    }
+}
@@ -0,0 +1,92 @@
+/**
+ * The MIT License
+ * Copyright © 2016 Flemming Harms
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.fharms.camel.entitymanager.support;
+
+import com.github.fharms.camel.entitymanager.CamelEntityManagerStatementTagger;
+import org.hibernate.type.Type;
+
+import java.io.Serializable;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+
+/**
+ * Hibernate interceptor counting the statements, flushes and loaded entities of the work done on the current
+ * thread while {@link #count(Callable)} is running. Register an instance per entity manager factory with the JPA
+ * property <code>hibernate.ejb.interceptor</code>, so only the statements of that entity manager factory is counted.
+ * The counts is kept per counter and thread, so tests sending exchanges to routes processing them on the calling
+ * thread, like direct routes, is counted in isolation when run in parallel. The statements is tagged by the
+ * {@link CamelEntityManagerStatementTagger} before they is counted.
+ */
+public class CamelEntityManagerStatementCounter extends CamelEntityManagerStatementTagger {
+
+    private final ThreadLocal<CamelEntityManagerStatementCounts> countsLocal = new ThreadLocal<>();
+
+    /**
+     * Count the statements of the work, typically a <code>template.send(...)</code>
+     *
+     * @return The counts of the work
+     */
+    public CamelEntityManagerStatementCounts count(Callable<?> work) throws Exception {
+        CamelEntityManagerStatementCounts previous = countsLocal.get();
+        CamelEntityManagerStatementCounts counts = new CamelEntityManagerStatementCounts();
+        countsLocal.set(counts);
+        try {
+            work.call();
+            return counts;
+        } finally {
+            if (previous == null) {
+                countsLocal.remove();
+            } else {
+                countsLocal.set(previous);
+            }
+        }
+    }
+
+    @Override
+    public String onPrepareStatement(String sql) {
+        String tagged = super.onPrepareStatement(sql);
+        CamelEntityManagerStatementCounts counts = countsLocal.get();
+        if (counts != null) {
+            counts.statement(tagged);
+        }
+        return tagged;
+    }
+
+    @Override
+    public boolean onLoad(Object entity, Serializable id, Object[] state, String[] propertyNames, Type[] types) {
+        CamelEntityManagerStatementCounts counts = countsLocal.get();
+        if (counts != null) {
+            counts.loaded();
+        }
+        return false;
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public void postFlush(Iterator entities) {
+        CamelEntityManagerStatementCounts counts = countsLocal.get();
+        if (counts != null) {
+            counts.flushed();
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/**
+ * The MIT License
+ * Copyright © 2016 Flemming Harms
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.fharms.camel.entitymanager.support;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The statements, flushes and loaded entities counted by {@link CamelEntityManagerStatementCounter}, with assertions
+ * listing the statements when they fail
+ */
+public class CamelEntityManagerStatementCounts {
+
+    private final List<String> statements = new ArrayList<>();
+
+    private int selects;
+
+    private int inserts;
+
+    private int updates;
+
+    private int deletes;
+
+    private int flushes;
+
+    private int entitiesLoaded;
+
+    void statement(String sql) {
+        statements.add(sql);
+        String statement = sql.trim().toLowerCase(Locale.ROOT);
+        if (statement.startsWith("/*")) {
+            statement = statement.substring(statement.indexOf("*/") + 2).trim();
+        }
+        if (statement.startsWith("select")) {
+            selects++;
+        } else if (statement.startsWith("insert")) {
+            inserts++;
+        } else if (statement.startsWith("update")) {
+            updates++;
+        } else if (statement.startsWith("delete")) {
+            deletes++;
+        }
+    }
+
+    void flushed() {
+        flushes++;
+    }
+
+    void loaded() {
+        entitiesLoaded++;
+    }
+
+    public CamelEntityManagerStatementCounts assertSelects(int expected) {
+        assertEquals(message("selects"), expected, selects);
+        return this;
+    }
+
+    public CamelEntityManagerStatementCounts assertInserts(int expected) {
+        assertEquals(message("inserts"), expected, inserts);
+        return this;
+    }
+
+    public CamelEntityManagerStatementCounts assertUpdates(int expected) {
+        assertEquals(message("updates"), expected, updates);
+        return this;
+    }
+
+    public CamelEntityManagerStatementCounts assertDeletes(int expected) {
+        assertEquals(message("deletes"), expected, deletes);
+        return this;
+    }
+
+    public CamelEntityManagerStatementCounts assertFlushes(int expected) {
+        assertEquals(message("flushes"), expected, flushes);
+        return this;
+    }
+
+    public CamelEntityManagerStatementCounts assertEntitiesLoaded(int expected) {
+        assertEquals(message("entities loaded"), expected, entitiesLoaded);
+        return this;
+    }
+
+    private String message(String count) {
+        return "Unexpected number of " + count + ", the statements was " + statements;
+    }
+
+    public List<String> getStatements() {
+        return statements;
+    }
+
+    public int getSelects() {
+        return selects;
+    }
+
+    public int getInserts() {
+        return inserts;
+    }
+
+    public int getUpdates() {
+        return updates;
+    }
+
+    public int getDeletes() {
+        return deletes;
+    }
+
+    public int getFlushes() {
+        return flushes;
+    }
+
+    public int getEntitiesLoaded() {
+        return entitiesLoaded;
+    }
+}
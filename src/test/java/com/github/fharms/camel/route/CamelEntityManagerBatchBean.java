@@ -0,0 +1,56 @@
+/**
+ * The MIT License
+ * Copyright © 2016 Flemming Harms
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.fharms.camel.route;
+
+import com.github.fharms.camel.entity.Dog;
+import org.apache.camel.Body;
+import org.springframework.stereotype.Component;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import java.util.Collections;
+
+/**
+ * Test bean for testing the entity manager of the JPA consumer shared by the exchanges of a poll
+ */
+@Component
+public class CamelEntityManagerBatchBean {
+
+    @PersistenceContext(unitName = "emf")
+    private EntityManager em;
+
+    public void adoptDog(@Body Dog dog) {
+        Dog puppy = new Dog();
+        puppy.setPetName("Long".equals(dog.getPetName()) ? String.join("", Collections.nCopies(300, "Jr")) : dog.getPetName() + " Jr");
+        puppy.setBreed("Puppy");
+        em.persist(puppy);
+        dog.setBreed("Adopted");
+        if ("Fail".equals(dog.getPetName())) {
+            throw new IllegalStateException("Adoption of " + dog.getPetName() + " failed");
+        }
+    }
+
+    public boolean isManaged(@Body Dog dog) {
+        return em.contains(dog);
+    }
+}
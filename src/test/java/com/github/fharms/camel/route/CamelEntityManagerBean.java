@@ -23,20 +23,29 @@
 package com.github.fharms.camel.route;
 
 import com.github.fharms.camel.entity.Dog;
+import com.github.fharms.camel.entitymanager.CamelBulkEntityManager;
 import com.github.fharms.camel.entitymanager.CamelEntityManagerHandler;
+import com.github.fharms.camel.entitymanager.CamelEntityManagerRetry;
+import com.github.fharms.camel.entitymanager.CamelStatelessSession;
 import com.github.fharms.camel.entitymanager.IgnoreCamelEntityManager;
 import org.apache.camel.Body;
 import org.apache.camel.CamelContext;
 import org.apache.camel.Exchange;
+import org.apache.camel.Header;
 import org.apache.camel.component.jpa.JpaComponent;
+import org.hibernate.jpa.HibernateQuery;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
+import javax.persistence.LockModeType;
+import javax.persistence.OptimisticLockException;
 import javax.persistence.PersistenceContext;
 import javax.persistence.TypedQuery;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.assertEquals;
 
@@ -64,6 +73,13 @@ public class CamelEntityManagerBean {
     @PersistenceContext(unitName = "emf")
     EntityManager em6;
 
+    @PersistenceContext(unitName = "emf")
+    private CamelBulkEntityManager bulkEm;
+
+    @CamelStatelessSession
+    @PersistenceContext(unitName = "emf")
+    private EntityManager statelessEm;
+
     @Autowired
     CamelEntityManagerNestedBean nBean;
 
@@ -72,10 +88,100 @@ public class CamelEntityManagerBean {
         return dogEntity;
     }
 
+    /**
+     * @return True if the dog loaded before the bulk persist is still managed, and the persisted dogs is detached
+     */
+    public boolean persistAllDogs(@Body List<Dog> dogs) {
+        Dog loaded = bulkEm.createQuery("select d from Dog d", Dog.class).setMaxResults(1).getSingleResult();
+        bulkEm.persistAll(dogs);
+        return bulkEm.contains(loaded) && dogs.stream().noneMatch(bulkEm::contains);
+    }
+
+    public int removeAllDogs(@Body List<Long> ids) {
+        return bulkEm.removeAllById(Dog.class, ids);
+    }
+
+    /**
+     * @return The merged dogs, if none of them is left in the persistence context
+     */
+    public List<Dog> mergeAllDogs(@Body List<Dog> dogs) {
+        List<Dog> merged = bulkEm.mergeAll(dogs);
+        if (merged.stream().anyMatch(bulkEm::contains)) {
+            throw new IllegalStateException("The merged dogs should be detached");
+        }
+        return merged;
+    }
+
+    public int bulkUpdateDogs(@Body List<Long> ids) {
+        return bulkEm.bulkUpdate("update Dog d set d.race = 'Mix' where d.id in :ids", "ids", ids);
+    }
+
+    public int bulkDeleteDogs(@Body List<Long> ids) {
+        return bulkEm.bulkDelete("delete from Dog d where d.id in :ids", "ids", ids);
+    }
+
+    public void persistDogs(@Body List<Dog> dogs) {
+        dogs.forEach(em::persist);
+    }
+
+    public void insertDogs(@Body List<Dog> dogs) {
+        dogs.forEach(statelessEm::persist);
+    }
+
+    @CamelStatelessSession
+    public Dog insertAndFindDog(@Body Dog dog) {
+        em.persist(dog);
+        if (em.contains(dog)) {
+            throw new RuntimeException("This is not good!, dog should not be in the persistence context");
+        }
+        return em.find(Dog.class, dog.getId());
+    }
+
+    /**
+     * Merge the new dog, which is inserted, count it with a query and merge it again, which updates it
+     */
+    @CamelStatelessSession
+    public Dog mergeAndCountDog(@Body Dog dog) {
+        em.merge(dog);
+        long count = em.createQuery("select count(d) from Dog d where d.petName = :petName", Long.class)
+                .setParameter("petName", dog.getPetName())
+                .getSingleResult();
+        if (count != 1) {
+            throw new IllegalStateException("The insert of the merged dog is not executed before the query");
+        }
+        dog.setBreed("Merged");
+        em.merge(dog);
+        return em.find(Dog.class, dog.getId());
+    }
+
     public Dog findDog(@Body Long id) {
         return em.find(Dog.class, id);
     }
 
+    @CamelEntityManagerRetry("dogRetry")
+    public Dog persistDogWithConflicts(@Body Dog dog, @Header("conflicts") AtomicInteger conflicts) {
+        Dog attempt = new Dog();
+        attempt.setPetName(dog.getPetName());
+        attempt.setBreed(dog.getRace());
+        em.persist(attempt);
+        em.flush();
+        if (conflicts.getAndDecrement() > 0) {
+            throw new OptimisticLockException("Simulated conflict persisting " + dog.getPetName());
+        }
+        return attempt;
+    }
+
+    public boolean isCamelEntityManager(@Header(CamelEntityManagerHandler.CAMEL_ENTITY_MANAGER) EntityManager camelEm) {
+        return em.equals(camelEm);
+    }
+
+    public Dog persistAndFlushDog(Exchange exchange) {
+        Dog dog = exchange.getIn().getBody(Dog.class);
+        em.persist(dog);
+        em.flush();
+        return dog;
+    }
+
     public void findAnotherDog(Exchange exchange) {
         EntityManager localEm = exchange.getIn().getHeader(CamelEntityManagerHandler.CAMEL_ENTITY_MANAGER, EntityManager.class);
         if (!em.equals(localEm)) {
@@ -92,6 +198,23 @@ public class CamelEntityManagerBean {
         exchange.getIn().setBody(dogQuery.getResultList());
     }
 
+    /**
+     * Count the dogs with the query of Hibernate, unwrapped from the query of the entity manager
+     */
+    public Long countDogsUnwrapped() {
+        return (Long) em.createQuery("select count(d) from Dog d").unwrap(HibernateQuery.class).getHibernateQuery().uniqueResult();
+    }
+
+    public Object findAllDogsWithDeadline(Exchange exchange) {
+        TypedQuery<Dog> dogQuery = em.createQuery("select d from Dog d", Dog.class);
+        dogQuery.getResultList();
+        return dogQuery.getHints().get("javax.persistence.query.timeout");
+    }
+
+    public Dog lockDogWithDeadline(Exchange exchange) {
+        return em.find(Dog.class, exchange.getIn().getBody(Long.class), LockModeType.PESSIMISTIC_WRITE);
+    }
+
     public Integer compareHashCode(Exchange exchange) {
         CamelContext context = exchange.getContext();
         EntityManagerFactory currentEm = em.getEntityManagerFactory();
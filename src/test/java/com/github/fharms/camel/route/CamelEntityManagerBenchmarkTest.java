@@ -0,0 +1,166 @@
+/**
+ * The MIT License
+ * Copyright © 2016 Flemming Harms
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.fharms.camel.route;
+
+import com.github.fharms.camel.entity.Dog;
+import com.github.fharms.camel.entitymanager.CamelEntityManagerHandler;
+import com.github.fharms.camel.entitymanager.IgnoreCamelEntityManager;
+import org.apache.camel.Exchange;
+import org.apache.camel.Produce;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.impl.DefaultExchange;
+import org.apache.camel.test.spring.CamelSpringDelegatingTestContextLoader;
+import org.apache.camel.test.spring.CamelSpringRunner;
+import org.apache.camel.test.spring.CamelTestContextBootstrapper;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.aop.framework.Advised;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationContext;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.BootstrapWith;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceContext;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertNotNull;
+
+/**
+ * Timings of the Camel entity manager, logged for comparison between changes. They is not run by the unit tests, run
+ * them with <code>mvn test -Pbenchmark</code>.
+ */
+@RunWith(CamelSpringRunner.class)
+@BootstrapWith(CamelTestContextBootstrapper.class)
+@ContextConfiguration(classes = CamelEntityManagerTestRoute.CamelContextConfiguration.class, loader = CamelSpringDelegatingTestContextLoader.class)
+public class CamelEntityManagerBenchmarkTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CamelEntityManagerBenchmarkTest.class);
+
+    @Produce
+    private ProducerTemplate template;
+
+    @IgnoreCamelEntityManager
+    @PersistenceContext(unitName = "emf")
+    private EntityManager em;
+
+    @Autowired
+    protected PlatformTransactionManager transactionManager;
+
+    @Autowired
+    protected ApplicationContext applicationContext;
+
+    @After
+    public void cleanup() {
+        new TransactionTemplate(transactionManager).execute(status ->
+                em.createQuery("delete from Dog").executeUpdate());
+        em.close();
+    }
+
+    @Test
+    @DirtiesContext
+    public void benchmarkPointcutOverhead() throws Exception {
+        CamelEntityManagerPointcutBean bean = applicationContext.getBean(CamelEntityManagerPointcutBean.class);
+        CamelEntityManagerPointcutBean target = (CamelEntityManagerPointcutBean) ((Advised) bean).getTargetSource().getTarget();
+        int calls = 1_000_000;
+        long proxyTime = callValues(bean, calls);
+        long targetTime = callValues(target, calls);
+        LOG.info("Overhead per call of the proxy on a bean with 50 methods is {} ns",
+                (proxyTime - targetTime) / calls);
+    }
+
+    @Test
+    @DirtiesContext
+    public void benchmarkStatelessSessionInserts() throws Exception {
+        int dogs = 2000;
+        long persistTime = sendDogs(CamelEntityManagerTestRoutes.DIRECT_PERSIST_DOGS_TEST, "Persist", dogs);
+        long insertTime = sendDogs(CamelEntityManagerTestRoutes.DIRECT_STATELESS_INSERT_TEST, "Insert", dogs);
+        LOG.info("Inserted {} dogs with EntityManager in {} ms and with StatelessSession in {} ms",
+                dogs, persistTime / 1_000_000, insertTime / 1_000_000);
+        assertEquals(2 * dogs, countDogs());
+    }
+
+    @Test
+    @DirtiesContext
+    public void benchmarkMulticastSharingEntityManager() throws Exception {
+        EntityManager camelEm = applicationContext.getBean("emf", EntityManagerFactory.class).createEntityManager();
+        try {
+            int exchanges = 500;
+            long start = System.nanoTime();
+            for (int i = 0; i < exchanges; i++) {
+                Exchange exchange = createExchange(null);
+                exchange.getIn().setHeader(CamelEntityManagerHandler.CAMEL_ENTITY_MANAGER, camelEm);
+                template.send(CamelEntityManagerTestRoutes.DIRECT_MULTICAST_TEST.uri(), exchange);
+            }
+            LOG.info("A 10-way multicast sharing the entity manager takes {} us per exchange",
+                    TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start) / exchanges);
+        } finally {
+            camelEm.close();
+        }
+    }
+
+    private long callValues(CamelEntityManagerPointcutBean bean, int calls) {
+        long sum = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < calls; i++) {
+            sum += bean.value1();
+        }
+        assertEquals(calls, sum);
+        return System.nanoTime() - start;
+    }
+
+    private long sendDogs(CamelEntityManagerTestRoutes route, String petName, int count) {
+        List<Dog> dogs = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Dog dog = new Dog();
+            dog.setPetName(petName + i);
+            dog.setBreed("Beagle");
+            dogs.add(dog);
+        }
+        long start = System.nanoTime();
+        template.send(route.uri(), createExchange(dogs));
+        long time = System.nanoTime() - start;
+        dogs.forEach(dog -> assertNotNull(dog.getId()));
+        return time;
+    }
+
+    private long countDogs() {
+        return em.createQuery("select count(d) from Dog d", Long.class).getSingleResult();
+    }
+
+    private Exchange createExchange(Object body) {
+        DefaultExchange exchange = new DefaultExchange(template.getCamelContext());
+        exchange.getIn().setBody(body);
+        return exchange;
+    }
+}
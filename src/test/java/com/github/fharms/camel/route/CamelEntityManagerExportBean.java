@@ -0,0 +1,75 @@
+/**
+ * The MIT License
+ * Copyright © 2016 Flemming Harms
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.fharms.camel.route;
+
+import com.github.fharms.camel.entity.Dog;
+import com.github.fharms.camel.entitymanager.CamelEntityManagerPartitionedReader;
+import org.apache.camel.Body;
+import org.apache.camel.Header;
+import org.springframework.stereotype.Component;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.stream.Collectors;
+
+/**
+ * Test bean for testing the chunks sent by the partitioned reader
+ */
+@Component
+public class CamelEntityManagerExportBean {
+
+    @PersistenceContext(unitName = "emf")
+    private EntityManager em;
+
+    private final ConcurrentLinkedQueue<List<Long>> chunks = new ConcurrentLinkedQueue<>();
+
+    private final Map<Integer, Set<String>> partitionThreads = new ConcurrentHashMap<>();
+
+    public void exportDogs(@Body List<Dog> dogs, @Header(CamelEntityManagerPartitionedReader.CAMEL_ENTITY_MANAGER_PARTITION) int partition) {
+        for (Dog dog : dogs) {
+            if (!em.contains(dog)) {
+                throw new IllegalStateException("Dog " + dog.getId() + " is not managed by the entity manager of the partition");
+            }
+        }
+        partitionThreads.computeIfAbsent(partition, p -> ConcurrentHashMap.newKeySet()).add(Thread.currentThread().getName());
+        chunks.add(dogs.stream().map(Dog::getId).collect(Collectors.toList()));
+    }
+
+    public ConcurrentLinkedQueue<List<Long>> getChunks() {
+        return chunks;
+    }
+
+    public Map<Integer, Set<String>> getPartitionThreads() {
+        return partitionThreads;
+    }
+
+    public void reset() {
+        chunks.clear();
+        partitionThreads.clear();
+    }
+}
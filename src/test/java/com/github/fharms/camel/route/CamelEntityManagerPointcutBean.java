@@ -0,0 +1,147 @@
+/**
+ * The MIT License
+ * Copyright © 2016 Flemming Harms
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.fharms.camel.route;
+
+import org.apache.camel.Exchange;
+import org.springframework.stereotype.Component;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+
+/**
+ * Test bean with 50 methods where only one can receive the exchange, for measuring the overhead of the proxy, and a
+ * method without Camel annotations invoked by name from a route
+ */
+@Component
+public class CamelEntityManagerPointcutBean {
+
+    @PersistenceContext(unitName = "emf")
+    private EntityManager em;
+
+    public Long countDogs(Exchange exchange) {
+        return em.createQuery("select count(d) from Dog d", Long.class).getSingleResult();
+    }
+
+    public Long countDogsOfRace(String race) {
+        return em.createQuery("select count(d) from Dog d where d.race = :race", Long.class)
+                .setParameter("race", race).getSingleResult();
+    }
+
+    public int value1() { return 1; }
+
+    public int value2() { return 2; }
+
+    public int value3() { return 3; }
+
+    public int value4() { return 4; }
+
+    public int value5() { return 5; }
+
+    public int value6() { return 6; }
+
+    public int value7() { return 7; }
+
+    public int value8() { return 8; }
+
+    public int value9() { return 9; }
+
+    public int value10() { return 10; }
+
+    public int value11() { return 11; }
+
+    public int value12() { return 12; }
+
+    public int value13() { return 13; }
+
+    public int value14() { return 14; }
+
+    public int value15() { return 15; }
+
+    public int value16() { return 16; }
+
+    public int value17() { return 17; }
+
+    public int value18() { return 18; }
+
+    public int value19() { return 19; }
+
+    public int value20() { return 20; }
+
+    public int value21() { return 21; }
+
+    public int value22() { return 22; }
+
+    public int value23() { return 23; }
+
+    public int value24() { return 24; }
+
+    public int value25() { return 25; }
+
+    public int value26() { return 26; }
+
+    public int value27() { return 27; }
+
+    public int value28() { return 28; }
+
+    public int value29() { return 29; }
+
+    public int value30() { return 30; }
+
+    public int value31() { return 31; }
+
+    public int value32() { return 32; }
+
+    public int value33() { return 33; }
+
+    public int value34() { return 34; }
+
+    public int value35() { return 35; }
+
+    public int value36() { return 36; }
+
+    public int value37() { return 37; }
+
+    public int value38() { return 38; }
+
+    public int value39() { return 39; }
+
+    public int value40() { return 40; }
+
+    public int value41() { return 41; }
+
+    public int value42() { return 42; }
+
+    public int value43() { return 43; }
+
+    public int value44() { return 44; }
+
+    public int value45() { return 45; }
+
+    public int value46() { return 46; }
+
+    public int value47() { return 47; }
+
+    public int value48() { return 48; }
+
+    public int value49() { return 49; }
+}
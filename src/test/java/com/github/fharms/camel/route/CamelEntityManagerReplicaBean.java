@@ -0,0 +1,73 @@
+/**
+ * The MIT License
+ * Copyright © 2016 Flemming Harms
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.fharms.camel.route;
+
+import com.github.fharms.camel.entity.Dog;
+import com.github.fharms.camel.entitymanager.CamelEntityManagerReplica;
+import com.github.fharms.camel.entitymanager.ReadOnlyCamelEntityManager;
+import org.apache.camel.Body;
+import org.hibernate.jpa.HibernateQuery;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import java.util.List;
+
+/**
+ * Test bean for testing read replica routing of the {@link EntityManager}
+ */
+@Component
+@Transactional(value = "transactionManager")
+public class CamelEntityManagerReplicaBean {
+
+    @CamelEntityManagerReplica(value = "replica", fallbackOnExecution = true)
+    @PersistenceContext(unitName = "emf")
+    private EntityManager em;
+
+    @Transactional(value = "transactionManager", readOnly = true)
+    public List<Dog> findAllDogs() {
+        return em.createQuery("select d from Dog d", Dog.class).getResultList();
+    }
+
+    /**
+     * Find the dogs with the query of Hibernate, unwrapped from the query of the replica
+     */
+    @SuppressWarnings("unchecked")
+    @Transactional(value = "transactionManager", readOnly = true)
+    public List<Dog> findAllDogsUnwrapped() {
+        return em.createQuery("select d from Dog d", Dog.class).unwrap(HibernateQuery.class).getHibernateQuery().list();
+    }
+
+    @ReadOnlyCamelEntityManager
+    @Transactional(value = "transactionManager", propagation = Propagation.NOT_SUPPORTED)
+    public Dog findDog(@Body Long id) {
+        return em.find(Dog.class, id);
+    }
+
+    @ReadOnlyCamelEntityManager
+    public List<Dog> findAllDogsInReadWriteTransaction() {
+        return em.createQuery("select d from Dog d", Dog.class).getResultList();
+    }
+}
@@ -22,7 +22,17 @@
  */
 package com.github.fharms.camel.route;
 
+import com.github.fharms.camel.entitymanager.CamelEntityManagerBatchPolicy;
+import com.github.fharms.camel.entitymanager.CamelEntityManagerCacheInvalidation;
+import com.github.fharms.camel.entitymanager.CamelEntityManagerGroupCommit;
+import com.github.fharms.camel.entitymanager.CamelEntityManagerHandler;
+import com.github.fharms.camel.entitymanager.CamelEntityManagerIdempotentRepository;
+import com.github.fharms.camel.entitymanager.CamelEntityManagerPartitionedReader;
+import com.github.fharms.camel.entitymanager.CamelEntityManagerPrefetch;
+import com.github.fharms.camel.entitymanager.CamelEntityManagerRoutePolicy;
 import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.processor.aggregate.AggregationStrategy;
 import org.apache.camel.builder.RouteBuilder;
 import org.apache.camel.component.jpa.JpaComponent;
 import org.apache.camel.spring.javaconfig.CamelConfiguration;
@@ -32,12 +42,64 @@ import org.springframework.context.annotation.ComponentScan;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.stereotype.Component;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 @Component
 class CamelEntityManagerTestRoute extends RouteBuilder {
 
     @Autowired
     CamelEntityManagerBean camelEntityManagerBean;
 
+    @Autowired
+    CamelEntityManagerShardBean camelEntityManagerShardBean;
+
+    @Autowired
+    CamelEntityManagerReplicaBean camelEntityManagerReplicaBean;
+
+    @Autowired
+    CamelEntityManagerBulkheadBean camelEntityManagerBulkheadBean;
+
+    @Autowired
+    CamelEntityManagerPointcutBean camelEntityManagerPointcutBean;
+
+    @Autowired
+    CamelEntityManagerRoutePolicy camelEntityManagerRoutePolicy;
+
+    @Autowired
+    CamelEntityManagerBatchBean camelEntityManagerBatchBean;
+
+    @Autowired
+    CamelEntityManagerBatchPolicy camelEntityManagerBatchPolicy;
+
+    @Autowired
+    CamelEntityManagerHandler camelEntityManagerHandler;
+
+    @Autowired
+    CamelEntityManagerExportBean camelEntityManagerExportBean;
+
+    @Autowired
+    CamelEntityManagerPartitionedReader dogExport;
+
+    @Autowired
+    CamelEntityManagerReferenceBean camelEntityManagerReferenceBean;
+
+    @Autowired
+    CamelEntityManagerIdempotentRepository dogIdempotent;
+
+    @Autowired
+    CamelEntityManagerGroupCommit dogGroupCommit;
+
+    @Autowired
+    CamelEntityManagerPrefetch dogPrefetch;
+
+    @Autowired
+    CamelEntityManagerParameterBean camelEntityManagerParameterBean;
+
+    @Autowired
+    CamelEntityManagerCacheInvalidation dogCacheInvalidation;
+
     public void configure() throws Exception {
         from(CamelEntityManagerTestRoutes.DIRECT_PERSIST_TEST.uri())
                 .routeId(CamelEntityManagerTestRoutes.DIRECT_PERSIST_TEST.id())
@@ -49,6 +111,222 @@ class CamelEntityManagerTestRoute extends RouteBuilder {
                 .transacted()
                 .bean(camelEntityManagerBean, "findDog");
 
+        from(CamelEntityManagerTestRoutes.DIRECT_PERSIST_ALL_TEST.uri())
+                .routeId(CamelEntityManagerTestRoutes.DIRECT_PERSIST_ALL_TEST.id())
+                .transacted()
+                .bean(camelEntityManagerBean, "persistAllDogs");
+
+        from(CamelEntityManagerTestRoutes.DIRECT_REMOVE_ALL_TEST.uri())
+                .routeId(CamelEntityManagerTestRoutes.DIRECT_REMOVE_ALL_TEST.id())
+                .transacted()
+                .bean(camelEntityManagerBean, "removeAllDogs");
+
+        from(CamelEntityManagerTestRoutes.DIRECT_MERGE_ALL_TEST.uri())
+                .routeId(CamelEntityManagerTestRoutes.DIRECT_MERGE_ALL_TEST.id())
+                .transacted()
+                .bean(camelEntityManagerBean, "mergeAllDogs");
+
+        from(CamelEntityManagerTestRoutes.DIRECT_BULK_UPDATE_TEST.uri())
+                .routeId(CamelEntityManagerTestRoutes.DIRECT_BULK_UPDATE_TEST.id())
+                .transacted()
+                .bean(camelEntityManagerBean, "bulkUpdateDogs");
+
+        from(CamelEntityManagerTestRoutes.DIRECT_BULK_DELETE_TEST.uri())
+                .routeId(CamelEntityManagerTestRoutes.DIRECT_BULK_DELETE_TEST.id())
+                .transacted()
+                .bean(camelEntityManagerBean, "bulkDeleteDogs");
+
+        from(CamelEntityManagerTestRoutes.DIRECT_PERSIST_DOGS_TEST.uri())
+                .routeId(CamelEntityManagerTestRoutes.DIRECT_PERSIST_DOGS_TEST.id())
+                .transacted()
+                .bean(camelEntityManagerBean, "persistDogs");
+
+        from(CamelEntityManagerTestRoutes.DIRECT_STATELESS_INSERT_TEST.uri())
+                .routeId(CamelEntityManagerTestRoutes.DIRECT_STATELESS_INSERT_TEST.id())
+                .transacted()
+                .bean(camelEntityManagerBean, "insertDogs");
+
+        from(CamelEntityManagerTestRoutes.DIRECT_STATELESS_METHOD_TEST.uri())
+                .routeId(CamelEntityManagerTestRoutes.DIRECT_STATELESS_METHOD_TEST.id())
+                .transacted()
+                .bean(camelEntityManagerBean, "insertAndFindDog");
+
+        from(CamelEntityManagerTestRoutes.DIRECT_STATELESS_MERGE_TEST.uri())
+                .routeId(CamelEntityManagerTestRoutes.DIRECT_STATELESS_MERGE_TEST.id())
+                .transacted()
+                .bean(camelEntityManagerBean, "mergeAndCountDog");
+
+        from(CamelEntityManagerTestRoutes.DIRECT_SHARD_PERSIST_TEST.uri())
+                .routeId(CamelEntityManagerTestRoutes.DIRECT_SHARD_PERSIST_TEST.id())
+                .transacted()
+                .bean(camelEntityManagerShardBean, "persistDog");
+
+        from(CamelEntityManagerTestRoutes.DIRECT_SHARD_ROLLBACK_TEST.uri())
+                .routeId(CamelEntityManagerTestRoutes.DIRECT_SHARD_ROLLBACK_TEST.id())
+                .transacted()
+                .bean(camelEntityManagerShardBean, "forceRollback");
+
+        from(CamelEntityManagerTestRoutes.DIRECT_SHARD_TO_STRING_TEST.uri())
+                .routeId(CamelEntityManagerTestRoutes.DIRECT_SHARD_TO_STRING_TEST.id())
+                .bean(camelEntityManagerShardBean, "describeEntityManager");
+
+        from(CamelEntityManagerTestRoutes.DIRECT_REPLICA_FIND_ALL_TEST.uri())
+                .routeId(CamelEntityManagerTestRoutes.DIRECT_REPLICA_FIND_ALL_TEST.id())
+                .bean(camelEntityManagerReplicaBean, "findAllDogs");
+
+        from(CamelEntityManagerTestRoutes.DIRECT_REPLICA_FIND_TEST.uri())
+                .routeId(CamelEntityManagerTestRoutes.DIRECT_REPLICA_FIND_TEST.id())
+                .bean(camelEntityManagerReplicaBean, "findDog");
+
+        from(CamelEntityManagerTestRoutes.DIRECT_REPLICA_READ_WRITE_TEST.uri())
+                .routeId(CamelEntityManagerTestRoutes.DIRECT_REPLICA_READ_WRITE_TEST.id())
+                .transacted()
+                .bean(camelEntityManagerReplicaBean, "findAllDogsInReadWriteTransaction");
+
+        from(CamelEntityManagerTestRoutes.DIRECT_DEADLINE_QUERY_TEST.uri())
+                .routeId(CamelEntityManagerTestRoutes.DIRECT_DEADLINE_QUERY_TEST.id())
+                .transacted()
+                .bean(camelEntityManagerBean, "findAllDogsWithDeadline");
+
+        from(CamelEntityManagerTestRoutes.DIRECT_DEADLINE_LOCK_TEST.uri())
+                .routeId(CamelEntityManagerTestRoutes.DIRECT_DEADLINE_LOCK_TEST.id())
+                .transacted()
+                .bean(camelEntityManagerBean, "lockDogWithDeadline");
+
+        from(CamelEntityManagerTestRoutes.DIRECT_BULKHEAD_TEST.uri())
+                .routeId(CamelEntityManagerTestRoutes.DIRECT_BULKHEAD_TEST.id())
+                .bean(camelEntityManagerBulkheadBean, "awaitRelease");
+
+        from(CamelEntityManagerTestRoutes.DIRECT_POINTCUT_TEST.uri())
+                .routeId(CamelEntityManagerTestRoutes.DIRECT_POINTCUT_TEST.id())
+                .transacted()
+                .bean(camelEntityManagerPointcutBean, "countDogs");
+
+        from(CamelEntityManagerTestRoutes.DIRECT_POINTCUT_BY_NAME_TEST.uri())
+                .routeId(CamelEntityManagerTestRoutes.DIRECT_POINTCUT_BY_NAME_TEST.id())
+                .transacted()
+                .bean(camelEntityManagerPointcutBean, "countDogsOfRace");
+
+        from(CamelEntityManagerTestRoutes.DIRECT_ROUTE_POLICY_TEST.uri())
+                .routeId(CamelEntityManagerTestRoutes.DIRECT_ROUTE_POLICY_TEST.id())
+                .routePolicy(camelEntityManagerRoutePolicy)
+                .bean(camelEntityManagerBean, "isCamelEntityManager");
+
+        from(CamelEntityManagerTestRoutes.DIRECT_ROUTE_POLICY_ASYNC_TEST.uri())
+                .routeId(CamelEntityManagerTestRoutes.DIRECT_ROUTE_POLICY_ASYNC_TEST.id())
+                .routePolicy(camelEntityManagerRoutePolicy)
+                .delay(10).asyncDelayed()
+                .bean(camelEntityManagerBean, "isCamelEntityManager");
+
+        from(CamelEntityManagerTestRoutes.DIRECT_NO_ROUTE_POLICY_TEST.uri())
+                .routeId(CamelEntityManagerTestRoutes.DIRECT_NO_ROUTE_POLICY_TEST.id())
+                .bean(camelEntityManagerBean, "isCamelEntityManager");
+
+        from(CamelEntityManagerTestRoutes.JPA_BATCH_CONSUMER_TEST.uri())
+                .routeId(CamelEntityManagerTestRoutes.JPA_BATCH_CONSUMER_TEST.id())
+                .autoStartup(false)
+                .routePolicy(camelEntityManagerBatchPolicy)
+                .onException(IllegalStateException.class).handled(true).end()
+                .bean(camelEntityManagerBatchBean, "adoptDog");
+
+        from(CamelEntityManagerTestRoutes.JPA_SAVEPOINT_CONSUMER_TEST.uri())
+                .routeId(CamelEntityManagerTestRoutes.JPA_SAVEPOINT_CONSUMER_TEST.id())
+                .autoStartup(false)
+                .routePolicy(new CamelEntityManagerBatchPolicy(camelEntityManagerHandler, true))
+                .bean(camelEntityManagerBatchBean, "adoptDog");
+
+        from(CamelEntityManagerTestRoutes.DIRECT_RETRY_TEST.uri())
+                .routeId(CamelEntityManagerTestRoutes.DIRECT_RETRY_TEST.id())
+                .transacted()
+                .bean(camelEntityManagerBean, "persistDogWithConflicts");
+
+        from(CamelEntityManagerTestRoutes.DIRECT_PARTITIONED_EXPORT_TEST.uri())
+                .routeId(CamelEntityManagerTestRoutes.DIRECT_PARTITIONED_EXPORT_TEST.id())
+                .process(dogExport);
+
+        from(CamelEntityManagerTestRoutes.DIRECT_EXPORT_CHUNK_TEST.uri())
+                .routeId(CamelEntityManagerTestRoutes.DIRECT_EXPORT_CHUNK_TEST.id())
+                .bean(camelEntityManagerExportBean, "exportDogs");
+
+        from(CamelEntityManagerTestRoutes.DIRECT_EXTENDED_FIND_TEST.uri())
+                .routeId(CamelEntityManagerTestRoutes.DIRECT_EXTENDED_FIND_TEST.id())
+                .bean(camelEntityManagerReferenceBean, "findDog");
+
+        from(CamelEntityManagerTestRoutes.DIRECT_EXTENDED_QUERY_TEST.uri())
+                .routeId(CamelEntityManagerTestRoutes.DIRECT_EXTENDED_QUERY_TEST.id())
+                .bean(camelEntityManagerReferenceBean, "findDogByPetName");
+
+        from(CamelEntityManagerTestRoutes.DIRECT_EXTENDED_CACHED_TEST.uri())
+                .routeId(CamelEntityManagerTestRoutes.DIRECT_EXTENDED_CACHED_TEST.id())
+                .bean(camelEntityManagerReferenceBean, "isCached");
+
+        String[] branches = new String[10];
+        Arrays.fill(branches, CamelEntityManagerTestRoutes.DIRECT_MULTICAST_BRANCH_TEST.uri());
+        from(CamelEntityManagerTestRoutes.DIRECT_MULTICAST_TEST.uri())
+                .routeId(CamelEntityManagerTestRoutes.DIRECT_MULTICAST_TEST.id())
+                .routePolicy(camelEntityManagerRoutePolicy)
+                .transacted()
+                .multicast(new CollectBodiesAggregationStrategy())
+                .to(branches);
+
+        from(CamelEntityManagerTestRoutes.DIRECT_MULTICAST_BRANCH_TEST.uri())
+                .routeId(CamelEntityManagerTestRoutes.DIRECT_MULTICAST_BRANCH_TEST.id())
+                .routePolicy(camelEntityManagerRoutePolicy)
+                .bean(camelEntityManagerBean, "isCamelEntityManager");
+
+        from(CamelEntityManagerTestRoutes.DIRECT_IDEMPOTENT_TEST.uri())
+                .routeId(CamelEntityManagerTestRoutes.DIRECT_IDEMPOTENT_TEST.id())
+                .routePolicy(camelEntityManagerRoutePolicy)
+                .transacted()
+                .idempotentConsumer(header("dogTag"), dogIdempotent).removeOnFailure(false)
+                .bean(camelEntityManagerBean, "persistDog")
+                .filter(header("rollback"))
+                .throwException(new IllegalStateException("Rollback"));
+
+        from(CamelEntityManagerTestRoutes.DIRECT_GROUP_COMMIT_TEST.uri())
+                .routeId(CamelEntityManagerTestRoutes.DIRECT_GROUP_COMMIT_TEST.id())
+                .process(dogGroupCommit);
+
+        from(CamelEntityManagerTestRoutes.DIRECT_GROUP_COMMIT_WORK_TEST.uri())
+                .routeId(CamelEntityManagerTestRoutes.DIRECT_GROUP_COMMIT_WORK_TEST.id())
+                .bean(camelEntityManagerBean, "persistDog")
+                .filter(simple("${body.petName} == 'Fail'"))
+                .throwException(new IllegalStateException("Group commit failed"));
+
+        from(CamelEntityManagerTestRoutes.DIRECT_PREFETCH_TEST.uri())
+                .routeId(CamelEntityManagerTestRoutes.DIRECT_PREFETCH_TEST.id())
+                .routePolicy(camelEntityManagerRoutePolicy)
+                .split(dogPrefetch, new CollectBodiesAggregationStrategy())
+                .bean(camelEntityManagerBean, "findDog");
+
+        from(CamelEntityManagerTestRoutes.DIRECT_SPLIT_TEST.uri())
+                .routeId(CamelEntityManagerTestRoutes.DIRECT_SPLIT_TEST.id())
+                .routePolicy(camelEntityManagerRoutePolicy)
+                .split(body(), new CollectBodiesAggregationStrategy())
+                .bean(camelEntityManagerBean, "findDog");
+
+        from(CamelEntityManagerTestRoutes.DIRECT_PARAMETER_PERSIST_TEST.uri())
+                .routeId(CamelEntityManagerTestRoutes.DIRECT_PARAMETER_PERSIST_TEST.id())
+                .transacted()
+                .bean(camelEntityManagerParameterBean, "persistDog");
+
+        from(CamelEntityManagerTestRoutes.DIRECT_PARAMETER_ENTITY_MANAGER_TEST.uri())
+                .routeId(CamelEntityManagerTestRoutes.DIRECT_PARAMETER_ENTITY_MANAGER_TEST.id())
+                .bean(camelEntityManagerParameterBean, "getEntityManager");
+
+        from(CamelEntityManagerTestRoutes.VM_CACHE_INVALIDATION_TEST.uri())
+                .routeId(CamelEntityManagerTestRoutes.VM_CACHE_INVALIDATION_TEST.id())
+                .process(dogCacheInvalidation);
+
+        from(CamelEntityManagerTestRoutes.DIRECT_FLIGHT_RECORDER_TEST.uri())
+                .routeId(CamelEntityManagerTestRoutes.DIRECT_FLIGHT_RECORDER_TEST.id())
+                .transacted()
+                .bean(camelEntityManagerBean, "persistAndFlushDog");
+
+        from(CamelEntityManagerTestRoutes.DIRECT_FLIGHT_RECORDER_ENTRY_TEST.uri())
+                .routeId(CamelEntityManagerTestRoutes.DIRECT_FLIGHT_RECORDER_ENTRY_TEST.id())
+                .to(CamelEntityManagerTestRoutes.DIRECT_FLIGHT_RECORDER_TEST.uri());
+
         from(CamelEntityManagerTestRoutes.DIRECT_COMPARE_HASHCODE_TEST.uri())
                 .routeId(CamelEntityManagerTestRoutes.DIRECT_COMPARE_HASHCODE_TEST.id())
                 .transacted()
@@ -125,6 +403,22 @@ class CamelEntityManagerTestRoute extends RouteBuilder {
                 .bean(BeanWithNoAnnotation.class, "noTxAnnotationWithExchange");
     }
 
+    /**
+     * Collect the bodies of the sub-exchanges in a list
+     */
+    private static class CollectBodiesAggregationStrategy implements AggregationStrategy {
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Exchange aggregate(Exchange oldExchange, Exchange newExchange) {
+            Exchange result = oldExchange != null ? oldExchange : newExchange;
+            List<Object> bodies = oldExchange != null ? oldExchange.getIn().getBody(List.class) : new ArrayList<>();
+            bodies.add(newExchange.getIn().getBody());
+            result.getIn().setBody(bodies);
+            return result;
+        }
+    }
+
     /**
      * Created by fharms on 24/09/16.
      */
@@ -23,44 +23,106 @@
 package com.github.fharms.camel.route;
 
 import com.github.fharms.camel.entity.Dog;
+import com.github.fharms.camel.entitymanager.CamelEntityManagerBatchPolicy;
+import com.github.fharms.camel.entitymanager.CamelEntityManagerBindings;
+import com.github.fharms.camel.entitymanager.CamelEntityManagerBulkhead;
+import com.github.fharms.camel.entitymanager.CamelEntityManagerCacheInvalidation;
+import com.github.fharms.camel.entitymanager.CamelEntityManagerClaimQueryFactory;
+import com.github.fharms.camel.entitymanager.CamelEntityManagerGroupCommit;
 import com.github.fharms.camel.entitymanager.CamelEntityManagerHandler;
+import com.github.fharms.camel.entitymanager.CamelEntityManagerIdempotentRepository;
+import com.github.fharms.camel.entitymanager.CamelEntityManagerPartitionedReader;
+import com.github.fharms.camel.entitymanager.CamelEntityManagerPrefetch;
+import com.github.fharms.camel.entitymanager.CamelEntityManagerRetryPolicy;
+import com.github.fharms.camel.entitymanager.CamelEntityManagerShardRegistry;
+import com.github.fharms.camel.entitymanager.CamelEntityManagerSlowOperation;
+import com.github.fharms.camel.entitymanager.CamelEntityManagerSlowOperations;
 import com.github.fharms.camel.entitymanager.IgnoreCamelEntityManager;
+import com.github.fharms.camel.entitymanager.support.CamelEntityManagerConnectionFailure;
+import com.github.fharms.camel.entitymanager.support.CamelEntityManagerStatementCounter;
+import com.github.fharms.camel.entitymanager.support.CamelEntityManagerStatementCounts;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.apache.camel.CamelContext;
 import org.apache.camel.CamelExecutionException;
 import org.apache.camel.Exchange;
 import org.apache.camel.Produce;
 import org.apache.camel.ProducerTemplate;
 import org.apache.camel.RuntimeCamelException;
+import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.component.jpa.JpaComponent;
+import org.apache.camel.impl.DefaultCamelContext;
 import org.apache.camel.impl.DefaultExchange;
+import org.apache.camel.impl.SimpleRegistry;
 import org.apache.camel.test.spring.CamelSpringDelegatingTestContextLoader;
 import org.apache.camel.test.spring.CamelSpringRunner;
 import org.apache.camel.test.spring.CamelTestContextBootstrapper;
 import org.hamcrest.Description;
 import org.hamcrest.TypeSafeMatcher;
+import org.hibernate.Session;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 import org.junit.runner.RunWith;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.aop.Advisor;
+import org.springframework.aop.framework.Advised;
+import org.springframework.aop.support.AopUtils;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.context.ApplicationContext;
+import org.springframework.core.Ordered;
 import org.springframework.test.annotation.DirtiesContext;
 import org.springframework.test.context.BootstrapWith;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.transaction.PlatformTransactionManager;
 import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.UnexpectedRollbackException;
+import org.springframework.transaction.interceptor.TransactionInterceptor;
 import org.springframework.transaction.support.TransactionCallback;
 import org.springframework.transaction.support.TransactionTemplate;
 
+import javax.management.Attribute;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.OptimisticLockException;
 import javax.persistence.PersistenceContext;
+import javax.persistence.QueryTimeoutException;
 import javax.persistence.TransactionRequiredException;
 import javax.persistence.TypedQuery;
+import java.lang.management.ManagementFactory;
 import java.lang.reflect.Field;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertFalse;
 import static junit.framework.TestCase.assertNotNull;
+import static junit.framework.TestCase.assertNotSame;
+import static junit.framework.TestCase.assertSame;
+import static junit.framework.TestCase.assertTrue;
 import static org.hamcrest.core.Is.isA;
 import static org.junit.Assert.assertNull;
 
@@ -69,6 +131,8 @@ import static org.junit.Assert.assertNull;
 @ContextConfiguration(classes = CamelEntityManagerTestRoute.CamelContextConfiguration.class, loader = CamelSpringDelegatingTestContextLoader.class)
 public class CamelEntityManagerTestRouteTest {
 
+    private static final Logger LOG = LoggerFactory.getLogger(CamelEntityManagerTestRouteTest.class);
+
     private Dog alphaDoc;
 
     @Produce
@@ -86,6 +150,10 @@ public class CamelEntityManagerTestRouteTest {
     @Autowired
     protected ApplicationContext applicationContext;
 
+    @Autowired
+    @Qualifier("emfStatementCounter")
+    private CamelEntityManagerStatementCounter statementCounter;
+
     @Rule
     public ExpectedException rollbackThrown = ExpectedException.none();
     @Rule
@@ -126,6 +194,1013 @@ public class CamelEntityManagerTestRouteTest {
         assertEquals(dog, dog2);
     }
 
+    @Test
+    @DirtiesContext
+    public void testBulkEntityManager() throws Exception {
+        List<Dog> dogs = new ArrayList<>();
+        for (int i = 0; i < 120; i++) {
+            dogs.add(createDog("Bulk" + i, "Beagle"));
+        }
+        Exchange persisted = template.send(CamelEntityManagerTestRoutes.DIRECT_PERSIST_ALL_TEST.uri(), createExchange(dogs));
+        assertEquals(Boolean.TRUE, persisted.getIn().getBody(Boolean.class));
+        assertEquals(121, countDogs());
+
+        List<Long> ids = dogs.stream().map(Dog::getId).collect(Collectors.toList());
+        Exchange result = template.send(CamelEntityManagerTestRoutes.DIRECT_REMOVE_ALL_TEST.uri(), createExchange(ids));
+        assertEquals(Integer.valueOf(120), result.getIn().getBody(Integer.class));
+        assertEquals(1, countDogs());
+        assertNull(getCamelEntityManagerThreadLocal());
+    }
+
+    @Test
+    @DirtiesContext
+    public void testBulkMergeAll() throws Exception {
+        List<Dog> dogs = new ArrayList<>();
+        for (int i = 0; i < 120; i++) {
+            dogs.add(createDog("Merge" + i, "Beagle"));
+        }
+        Exchange result = template.send(CamelEntityManagerTestRoutes.DIRECT_MERGE_ALL_TEST.uri(), createExchange(dogs));
+        assertNull(result.getException());
+        List<?> merged = result.getIn().getBody(List.class);
+        assertEquals(120, merged.size());
+        for (int i = 0; i < merged.size(); i++) {
+            Dog dog = (Dog) merged.get(i);
+            assertNotNull(dog.getId());
+            assertEquals("Merge" + i, dog.getPetName());
+        }
+        assertEquals(121, countDogs());
+    }
+
+    @Test
+    @DirtiesContext
+    public void testBulkUpdateAndDelete() throws Exception {
+        List<Dog> dogs = new ArrayList<>();
+        for (int i = 0; i < 120; i++) {
+            dogs.add(createDog("Update" + i, "Beagle"));
+        }
+        template.send(CamelEntityManagerTestRoutes.DIRECT_PERSIST_ALL_TEST.uri(), createExchange(dogs));
+        List<Long> ids = dogs.stream().map(Dog::getId).collect(Collectors.toList());
+
+        Exchange result = template.send(CamelEntityManagerTestRoutes.DIRECT_BULK_UPDATE_TEST.uri(), createExchange(ids));
+        assertEquals(Integer.valueOf(120), result.getIn().getBody(Integer.class));
+        assertEquals(120L, (long) em.createQuery("select count(d) from Dog d where d.race = 'Mix'", Long.class).getSingleResult());
+
+        result = template.send(CamelEntityManagerTestRoutes.DIRECT_BULK_DELETE_TEST.uri(), createExchange(ids.subList(0, 100)));
+        assertEquals(Integer.valueOf(100), result.getIn().getBody(Integer.class));
+        assertEquals(21, countDogs());
+        assertNull(getCamelEntityManagerThreadLocal());
+    }
+
+    @Test
+    @DirtiesContext
+    public void testStatelessSessionMethod() throws Exception {
+        Dog dog = createDog("Fiddo", "Beagle");
+        Exchange result = template.send(CamelEntityManagerTestRoutes.DIRECT_STATELESS_METHOD_TEST.uri(), createExchange(dog));
+        assertEquals(dog, result.getIn().getBody(Dog.class));
+        assertEquals(dog, findDog(dog.getId()));
+    }
+
+    @Test
+    @DirtiesContext
+    public void testStatelessSessionMerge() throws Exception {
+        Dog dog = createDog("Merlin", "Beagle");
+        Exchange result = template.send(CamelEntityManagerTestRoutes.DIRECT_STATELESS_MERGE_TEST.uri(), createExchange(dog));
+        assertNull(result.getException());
+        assertEquals("Merged", result.getIn().getBody(Dog.class).getRace());
+        assertEquals("Merged", findDogByPetName("Merlin").getRace());
+    }
+
+    @Test
+    @DirtiesContext
+    public void testStatelessSessionInsert() throws Exception {
+        int dogs = 20;
+        sendDogs(CamelEntityManagerTestRoutes.DIRECT_PERSIST_DOGS_TEST, "Persist", dogs);
+        sendDogs(CamelEntityManagerTestRoutes.DIRECT_STATELESS_INSERT_TEST, "Insert", dogs);
+        assertEquals(2 * dogs + 1, countDogs());
+        assertEquals("Beagle", findDogByPetName("Insert0").getRace());
+    }
+
+    @Test
+    @DirtiesContext
+    public void testPointcutProxy() throws Exception {
+        CamelEntityManagerPointcutBean bean = applicationContext.getBean(CamelEntityManagerPointcutBean.class);
+        CamelEntityManagerPointcutBean target = (CamelEntityManagerPointcutBean) ((Advised) bean).getTargetSource().getTarget();
+        assertFalse(AopUtils.isAopProxy(target));
+        Advised transactionalBean = (Advised) applicationContext.getBean(CamelEntityManagerBean.class);
+        assertFalse(AopUtils.isAopProxy(transactionalBean.getTargetSource().getTarget()));
+        // the bulkhead of emf2, the transaction and the Camel entity manager advisors on a single proxy
+        assertEquals(3, transactionalBean.getAdvisors().length);
+        assertEquals(1, bean.value1());
+
+        Exchange result = template.send(CamelEntityManagerTestRoutes.DIRECT_POINTCUT_TEST.uri(), createExchange(null));
+        assertEquals(Long.valueOf(1), result.getIn().getBody(Long.class));
+
+        // a method without annotations invoked by name from a route is advised, so its bean method is known
+        CamelEntityManagerSlowOperations slowOperations = applicationContext.getBean(CamelEntityManagerSlowOperations.class);
+        slowOperations.setMethodThresholdMillis("CamelEntityManagerPointcutBean.countDogsOfRace", 0);
+        result = template.send(CamelEntityManagerTestRoutes.DIRECT_POINTCUT_BY_NAME_TEST.uri(), createExchange("Terrier"));
+        assertNull(result.getException());
+        assertEquals(Long.valueOf(1), result.getIn().getBody(Long.class));
+        assertEquals(1, slowOperations.getSlowOperations().size());
+        assertEquals(CamelEntityManagerPointcutBean.class.getName() + ".countDogsOfRace",
+                slowOperations.getSlowOperations().get(0).getBeanMethod());
+        slowOperations.clear();
+    }
+
+    @Test
+    @DirtiesContext
+    public void testRoutePolicyBinding() throws Exception {
+        EntityManager camelEm = applicationContext.getBean("emf", EntityManagerFactory.class).createEntityManager();
+        try {
+            Exchange exchange = createExchange(null);
+            exchange.getIn().setHeader(CamelEntityManagerHandler.CAMEL_ENTITY_MANAGER, camelEm);
+            Exchange result = template.send(CamelEntityManagerTestRoutes.DIRECT_ROUTE_POLICY_TEST.uri(), exchange);
+            assertEquals(Boolean.TRUE, result.getIn().getBody(Boolean.class));
+            assertNull(getCamelEntityManagerThreadLocal());
+
+            exchange = createExchange(null);
+            exchange.getIn().setHeader(CamelEntityManagerHandler.CAMEL_ENTITY_MANAGER, camelEm);
+            result = template.send(CamelEntityManagerTestRoutes.DIRECT_NO_ROUTE_POLICY_TEST.uri(), exchange);
+            assertEquals(Boolean.FALSE, result.getIn().getBody(Boolean.class));
+        } finally {
+            camelEm.close();
+        }
+    }
+
+    @Test
+    @DirtiesContext
+    public void testRoutePolicyReleasedOnAnotherThread() throws Exception {
+        EntityManager camelEm = applicationContext.getBean("emf", EntityManagerFactory.class).createEntityManager();
+        try {
+            // The exchange is done on the thread of the delayer, so the binding of this thread is stale
+            Exchange exchange = createExchange(null);
+            exchange.getIn().setHeader(CamelEntityManagerHandler.CAMEL_ENTITY_MANAGER, camelEm);
+            template.send(CamelEntityManagerTestRoutes.DIRECT_ROUTE_POLICY_ASYNC_TEST.uri(), exchange);
+            assertSame(camelEm, getCamelEntityManagerThreadLocal());
+
+            // The stale binding is cleared when the thread binds the next exchange
+            Exchange result = template.send(CamelEntityManagerTestRoutes.DIRECT_ROUTE_POLICY_TEST.uri(), createExchange(null));
+            assertEquals(Boolean.FALSE, result.getIn().getBody(Boolean.class));
+            assertNull(getCamelEntityManagerThreadLocal());
+        } finally {
+            camelEm.close();
+        }
+    }
+
+    @Test
+    @DirtiesContext
+    public void testJpaConsumerBatch() throws Exception {
+        txTemplate.execute((TransactionCallback) status -> {
+            em.persist(createDog("Abby", "Batch"));
+            em.persist(createDog("Fail", "Batch"));
+            em.persist(createDog("Charlie", "Batch"));
+            em.persist(createDog("Long", "Batch"));
+            return null;
+        });
+        CamelContext camelContext = applicationContext.getBean(CamelContext.class);
+        camelContext.startRoute(CamelEntityManagerTestRoutes.JPA_BATCH_CONSUMER_TEST.id());
+        try {
+            long timeout = System.currentTimeMillis() + 10_000;
+            while (findDogByPetName("Charlie Jr") == null && System.currentTimeMillis() < timeout) {
+                Thread.sleep(50);
+            }
+        } finally {
+            camelContext.stopRoute(CamelEntityManagerTestRoutes.JPA_BATCH_CONSUMER_TEST.id());
+        }
+        assertNotNull(findDogByPetName("Abby Jr"));
+        assertNotNull(findDogByPetName("Charlie Jr"));
+        assertEquals("Adopted", findDogByPetName("Abby").getRace());
+        assertEquals("Adopted", findDogByPetName("Charlie").getRace());
+        // the handled failure is committed in its own transaction when the poll is replayed
+        assertNotNull(findDogByPetName("Fail Jr"));
+        assertEquals("Batch", findDogByPetName("Long").getRace());
+        assertEquals(8, countDogs());
+        assertTrue(applicationContext.getBean(CamelEntityManagerBatchPolicy.class).getReplayCount() >= 1);
+        assertNull(getCamelEntityManagerThreadLocal());
+    }
+
+    @Test
+    @DirtiesContext
+    public void testJpaConsumerSavepoints() throws Exception {
+        txTemplate.execute((TransactionCallback) status -> {
+            em.persist(createDog("Abby", "Batch"));
+            em.persist(createDog("Fail", "Batch"));
+            em.persist(createDog("Long", "Batch"));
+            em.persist(createDog("Charlie", "Batch"));
+            return null;
+        });
+        CamelContext camelContext = applicationContext.getBean(CamelContext.class);
+        camelContext.startRoute(CamelEntityManagerTestRoutes.JPA_SAVEPOINT_CONSUMER_TEST.id());
+        try {
+            long timeout = System.currentTimeMillis() + 10_000;
+            while (findDogByPetName("Charlie Jr") == null && System.currentTimeMillis() < timeout) {
+                Thread.sleep(50);
+            }
+        } finally {
+            camelContext.stopRoute(CamelEntityManagerTestRoutes.JPA_SAVEPOINT_CONSUMER_TEST.id());
+        }
+        // the good exchanges is committed by the poll, after the failed exchanges is rolled back to their savepoints
+        assertNotNull(findDogByPetName("Abby Jr"));
+        assertNotNull(findDogByPetName("Charlie Jr"));
+        assertEquals("Adopted", findDogByPetName("Abby").getRace());
+        assertEquals("Adopted", findDogByPetName("Charlie").getRace());
+        assertNull(findDogByPetName("Fail Jr"));
+        assertEquals("Batch", findDogByPetName("Fail").getRace());
+        assertEquals("Batch", findDogByPetName("Long").getRace());
+        assertEquals(7, countDogs());
+        CamelEntityManagerBatchPolicy policy = (CamelEntityManagerBatchPolicy) camelContext
+                .getRoute(CamelEntityManagerTestRoutes.JPA_SAVEPOINT_CONSUMER_TEST.id()).getRouteContext().getRoutePolicyList().get(0);
+        assertEquals(0, policy.getReplayCount());
+        assertTrue(policy.getRollbackCount() >= 2);
+        assertNull(getCamelEntityManagerThreadLocal());
+    }
+
+    @Test
+    @DirtiesContext
+    public void testRetryOnConflict() throws Exception {
+        CamelEntityManagerRetryPolicy retryPolicy = applicationContext.getBean("dogRetry", CamelEntityManagerRetryPolicy.class);
+        Exchange exchange = createExchange(createDog("Fiddo", "Beagle"));
+        exchange.getIn().setHeader("conflicts", new AtomicInteger(2));
+        Exchange result = template.send(CamelEntityManagerTestRoutes.DIRECT_RETRY_TEST.uri(), exchange);
+        assertNull(result.getException());
+        assertEquals("Fiddo", findDogByPetName("Fiddo").getPetName());
+        assertEquals(2, retryPolicy.getConflictCount());
+        assertEquals(2, retryPolicy.getRetryCount());
+        assertEquals(2.0, retryPolicy.getRetryRate());
+
+        exchange = createExchange(createDog("Bold", "Terrier"));
+        exchange.getIn().setHeader("conflicts", new AtomicInteger(3));
+        result = template.send(CamelEntityManagerTestRoutes.DIRECT_RETRY_TEST.uri(), exchange);
+        assertNotNull(result.getException(OptimisticLockException.class));
+        assertNull(findDogByPetName("Bold"));
+        assertEquals(1, retryPolicy.getExhaustedCount());
+        assertEquals(2.5, retryPolicy.getConflictRate());
+    }
+
+    @Test
+    @DirtiesContext
+    public void testPartitionedExport() throws Exception {
+        List<Long> ids = txTemplate.execute(status -> {
+            for (int i = 0; i < 50; i++) {
+                em.persist(createDog("Export" + i, "Export"));
+            }
+            return em.createQuery("select d.id from Dog d where d.race = 'Export' order by d.id", Long.class).getResultList();
+        });
+        CamelEntityManagerPartitionedReader dogExport = applicationContext.getBean("dogExport", CamelEntityManagerPartitionedReader.class);
+        CamelEntityManagerExportBean exportBean = applicationContext.getBean(CamelEntityManagerExportBean.class);
+
+        dogExport.setOrdered(true);
+        Exchange result = template.send(CamelEntityManagerTestRoutes.DIRECT_PARTITIONED_EXPORT_TEST.uri(), createExchange(null));
+        assertNull(result.getException());
+        assertEquals(Long.valueOf(ids.size()), result.getIn().getHeader(CamelEntityManagerPartitionedReader.CAMEL_ENTITY_MANAGER_READ_COUNT, Long.class));
+        assertEquals(ids, exportBean.getChunks().stream().flatMap(List::stream).collect(Collectors.toList()));
+        assertTrue(exportBean.getChunks().stream().allMatch(chunk -> chunk.size() <= dogExport.getFetchSize()));
+        assertEquals(4, exportBean.getPartitionThreads().size());
+        assertEquals(4, exportBean.getPartitionThreads().values().stream().flatMap(Set::stream).distinct().count());
+
+        exportBean.reset();
+        dogExport.setOrdered(false);
+        result = template.send(CamelEntityManagerTestRoutes.DIRECT_PARTITIONED_EXPORT_TEST.uri(), createExchange(null));
+        assertNull(result.getException());
+        List<Long> unordered = exportBean.getChunks().stream().flatMap(List::stream).collect(Collectors.toList());
+        assertEquals(ids.size(), unordered.size());
+        assertEquals(new HashSet<>(ids), new HashSet<>(unordered));
+        assertNull(getCamelEntityManagerThreadLocal());
+    }
+
+    @Test
+    @DirtiesContext
+    public void testExtendedPersistenceContext() throws Exception {
+        Dog rex = createDog("Rex", "Boxer");
+        Dog bella = createDog("Bella", "Poodle");
+        txTemplate.execute((TransactionCallback) status -> {
+            em.persist(rex);
+            em.persist(bella);
+            return null;
+        });
+        Dog skippy = findExtended(alphaDoc.getId());
+        assertSame(skippy, findExtended(alphaDoc.getId()));
+        assertSame(skippy, template.requestBody(CamelEntityManagerTestRoutes.DIRECT_EXTENDED_QUERY_TEST.uri(), "Skippy", Dog.class));
+
+        // the dirty checked update of an entity manager outside the Camel entity managers
+        txTemplate.execute((TransactionCallback) status -> {
+            em.find(Dog.class, alphaDoc.getId()).setBreed("Poodle");
+            return null;
+        });
+        Dog reloaded = findExtended(alphaDoc.getId());
+        assertNotSame(skippy, reloaded);
+        assertEquals("Poodle", reloaded.getRace());
+
+        Dog cachedRex = findExtended(rex.getId());
+        assertTrue(isCachedExtended(cachedRex));
+        template.send(CamelEntityManagerTestRoutes.DIRECT_MERGE_ALL_TEST.uri(),
+                createExchange(Collections.singletonList(createDog("Max", "Boxer"))));
+        assertFalse(isCachedExtended(cachedRex));
+
+        cachedRex = findExtended(rex.getId());
+        template.send(CamelEntityManagerTestRoutes.DIRECT_BULK_UPDATE_TEST.uri(),
+                createExchange(Collections.singletonList(rex.getId())));
+        assertFalse(isCachedExtended(cachedRex));
+        assertEquals("Mix", findExtended(rex.getId()).getRace());
+
+        Dog cachedBella = findExtended(bella.getId());
+        assertTrue(isCachedExtended(cachedBella));
+
+        Thread.sleep(600);
+        assertNotSame(cachedBella, findExtended(bella.getId()));
+
+        // The persistence contexts is closed when the handler is destroyed
+        cachedRex = findExtended(rex.getId());
+        assertTrue(isCachedExtended(cachedRex));
+        applicationContext.getBean(CamelEntityManagerHandler.class).destroy();
+        assertFalse(isCachedExtended(cachedRex));
+    }
+
+    @Test
+    @DirtiesContext
+    public void testStatementCounts() throws Exception {
+        statementCounter.count(() ->
+                template.send(CamelEntityManagerTestRoutes.DIRECT_FIND_TEST.uri(), createExchange(alphaDoc.getId())))
+                .assertSelects(1)
+                .assertInserts(0)
+                .assertUpdates(0)
+                .assertFlushes(1)
+                .assertEntitiesLoaded(1);
+
+        EntityManagerFactory emf = applicationContext.getBean("emf", EntityManagerFactory.class);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<CamelEntityManagerStatementCounts>> futures = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                Dog dog = createDog("Counted" + i, "Boxer");
+                futures.add(executor.submit(() -> {
+                    EntityManager camelEm = emf.createEntityManager();
+                    try {
+                        Exchange exchange = createExchange(dog);
+                        exchange.getIn().setHeader(CamelEntityManagerHandler.CAMEL_ENTITY_MANAGER, camelEm);
+                        return statementCounter.count(() ->
+                                template.send(CamelEntityManagerTestRoutes.DIRECT_PERSIST_TEST.uri(), exchange));
+                    } finally {
+                        camelEm.close();
+                    }
+                }));
+            }
+            for (Future<CamelEntityManagerStatementCounts> future : futures) {
+                future.get(10, TimeUnit.SECONDS)
+                        .assertSelects(0)
+                        .assertInserts(1)
+                        .assertUpdates(0)
+                        .assertFlushes(1)
+                        .assertEntitiesLoaded(0);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    @DirtiesContext
+    public void testMulticastSharesEntityManager() throws Exception {
+        CamelEntityManagerBindings bindings = applicationContext.getBean(CamelEntityManagerBindings.class);
+        EntityManager camelEm = applicationContext.getBean("emf", EntityManagerFactory.class).createEntityManager();
+        try {
+            Exchange exchange = createExchange(null);
+            exchange.getIn().setHeader(CamelEntityManagerHandler.CAMEL_ENTITY_MANAGER, camelEm);
+            Exchange result = template.send(CamelEntityManagerTestRoutes.DIRECT_MULTICAST_TEST.uri(), exchange);
+            assertNull(result.getException());
+            assertEquals(Collections.nCopies(10, Boolean.TRUE), result.getIn().getBody(List.class));
+            assertEquals(1, bindings.getBoundCount());
+            assertEquals(0, bindings.getActiveBindingCount());
+            assertNull(getCamelEntityManagerThreadLocal());
+        } finally {
+            camelEm.close();
+        }
+    }
+
+    @Test
+    @DirtiesContext
+    public void testIdempotentRepository() throws Exception {
+        CamelEntityManagerIdempotentRepository repository = applicationContext.getBean(CamelEntityManagerIdempotentRepository.class);
+        EntityManager camelEm = applicationContext.getBean("emf", EntityManagerFactory.class).createEntityManager();
+        try {
+            for (int i = 0; i < 20; i++) {
+                Exchange exchange = createExchange(createDog("Tag" + i, "Idempotent"));
+                exchange.getIn().setHeader("dogTag", "tag" + i);
+                exchange.getIn().setHeader(CamelEntityManagerHandler.CAMEL_ENTITY_MANAGER, camelEm);
+                assertNull(template.send(CamelEntityManagerTestRoutes.DIRECT_IDEMPOTENT_TEST.uri(), exchange).getException());
+            }
+            assertEquals(21, countDogs());
+            assertEquals(20, countProcessed());
+            assertEquals(0, repository.getDatabaseLookupCount());
+
+            Exchange duplicate = createExchange(createDog("Duplicate", "Idempotent"));
+            duplicate.getIn().setHeader("dogTag", "tag19");
+            duplicate.getIn().setHeader(CamelEntityManagerHandler.CAMEL_ENTITY_MANAGER, camelEm);
+            template.send(CamelEntityManagerTestRoutes.DIRECT_IDEMPOTENT_TEST.uri(), duplicate);
+            assertEquals(21, countDogs());
+            assertEquals(1, repository.getRecentHitCount());
+            assertEquals(0, repository.getDatabaseLookupCount());
+
+            Exchange rollback = createExchange(createDog("Rollback", "Idempotent"));
+            rollback.getIn().setHeader("dogTag", "rollback");
+            rollback.getIn().setHeader("rollback", true);
+            rollback.getIn().setHeader(CamelEntityManagerHandler.CAMEL_ENTITY_MANAGER, camelEm);
+            assertNotNull(template.send(CamelEntityManagerTestRoutes.DIRECT_IDEMPOTENT_TEST.uri(), rollback).getException());
+            assertEquals(21, countDogs());
+            assertEquals(20, countProcessed());
+        } finally {
+            camelEm.close();
+        }
+
+        CamelEntityManagerIdempotentRepository rebuilt = new CamelEntityManagerIdempotentRepository(
+                applicationContext.getBean(CamelEntityManagerHandler.class), applicationContext.getBean("emf", EntityManagerFactory.class),
+                transactionManager, "dogs");
+        rebuilt.setRecentKeys(5);
+        rebuilt.start();
+        try {
+            assertTrue(rebuilt.contains("tag19"));
+            assertEquals(0, rebuilt.getDatabaseLookupCount());
+            assertTrue(rebuilt.contains("tag0"));
+            assertEquals(1, rebuilt.getDatabaseLookupCount());
+            for (int i = 0; i < 100; i++) {
+                assertFalse(rebuilt.contains("new" + i));
+            }
+            assertEquals(rebuilt.getFalsePositiveCount(), rebuilt.getDatabaseLookupCount() - 1);
+            assertTrue(rebuilt.getFalsePositiveRate() < 0.05);
+            assertTrue(rebuilt.getLookupSavings() > 0.9);
+            LOG.info("Idempotent lookups {}, database lookups {}, false positive rate {}, expected false positive rate {}",
+                    rebuilt.getLookupCount(), rebuilt.getDatabaseLookupCount(), rebuilt.getFalsePositiveRate(),
+                    rebuilt.getExpectedFalsePositiveRate());
+
+            // A repository not started yet answers from the table, and the ids of another writer is found when the
+            // repository isn't the single writer
+            CamelEntityManagerIdempotentRepository otherNode = new CamelEntityManagerIdempotentRepository(
+                    applicationContext.getBean(CamelEntityManagerHandler.class), applicationContext.getBean("emf", EntityManagerFactory.class),
+                    transactionManager, "dogs");
+            assertTrue(otherNode.contains("tag0"));
+            assertTrue(otherNode.add("otherNode"));
+            assertFalse(otherNode.add("otherNode"));
+            rebuilt.setSingleWriter(false);
+            assertTrue(rebuilt.contains("otherNode"));
+        } finally {
+            rebuilt.clear();
+            rebuilt.stop();
+        }
+        assertEquals(0, countProcessed());
+    }
+
+    @Test
+    @DirtiesContext
+    public void testPrefetch() throws Exception {
+        EntityManagerFactory emf = applicationContext.getBean("emf", EntityManagerFactory.class);
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < 25; i++) {
+            Dog dog = createDog("Prefetch" + i, "Collie");
+            persistDog(emf, dog);
+            ids.add(dog.getId());
+        }
+        ids.add(ids.get(0));
+
+        EntityManager splitEm = emf.createEntityManager();
+        EntityManager prefetchEm = emf.createEntityManager();
+        try {
+            statementCounter.count(() -> {
+                Exchange exchange = createExchange(ids);
+                exchange.getIn().setHeader(CamelEntityManagerHandler.CAMEL_ENTITY_MANAGER, splitEm);
+                return template.send(CamelEntityManagerTestRoutes.DIRECT_SPLIT_TEST.uri(), exchange);
+            }).assertSelects(25);
+
+            Exchange exchange = createExchange(ids);
+            exchange.getIn().setHeader(CamelEntityManagerHandler.CAMEL_ENTITY_MANAGER, prefetchEm);
+            statementCounter.count(() ->
+                    template.send(CamelEntityManagerTestRoutes.DIRECT_PREFETCH_TEST.uri(), exchange))
+                    .assertSelects(3)
+                    .assertEntitiesLoaded(25);
+            assertNull(exchange.getException());
+            List<?> dogs = exchange.getIn().getBody(List.class);
+            assertEquals(ids, dogs.stream().map(dog -> ((Dog) dog).getId()).collect(Collectors.toList()));
+            assertTrue(prefetchEm.contains(dogs.get(24)));
+
+            CamelEntityManagerPrefetch prefetch = applicationContext.getBean(CamelEntityManagerPrefetch.class);
+            assertEquals(25, prefetch.getPrefetchCount());
+            assertEquals(3, prefetch.getBatchCount());
+        } finally {
+            splitEm.close();
+            prefetchEm.close();
+        }
+    }
+
+    @Test
+    @DirtiesContext
+    public void testEntityManagerParameter() throws Exception {
+        assertFalse(AopUtils.isAopProxy(applicationContext.getBean(CamelEntityManagerParameterBean.class)));
+
+        EntityManagerFactory emf = applicationContext.getBean("emf", EntityManagerFactory.class);
+        EntityManager camelEm = emf.createEntityManager();
+        try {
+            Exchange exchange = createExchange(null);
+            exchange.getIn().setHeader(CamelEntityManagerHandler.CAMEL_ENTITY_MANAGER, camelEm);
+            EntityManager injected = template.send(CamelEntityManagerTestRoutes.DIRECT_PARAMETER_ENTITY_MANAGER_TEST.uri(), exchange)
+                    .getIn().getBody(EntityManager.class);
+            assertSame(camelEm.unwrap(Session.class), injected.unwrap(Session.class));
+
+            // the Camel entity manager of the header joins the transaction of the route
+            exchange = createExchange(createDog("Joined", "Poodle"));
+            exchange.getIn().setHeader(CamelEntityManagerHandler.CAMEL_ENTITY_MANAGER, camelEm);
+            exchange = template.send(CamelEntityManagerTestRoutes.DIRECT_PARAMETER_PERSIST_TEST.uri(), exchange);
+            assertNull(exchange.getException());
+            assertEquals("Joined", findDog(emf, exchange.getIn().getBody(Dog.class).getId()).getPetName());
+        } finally {
+            camelEm.close();
+        }
+
+        Exchange exchange = template.send(CamelEntityManagerTestRoutes.DIRECT_PARAMETER_PERSIST_TEST.uri(),
+                createExchange(createDog("Parameter", "Poodle")));
+        assertNull(exchange.getException());
+        Dog dog = exchange.getIn().getBody(Dog.class);
+        assertNotNull(dog.getId());
+        assertEquals("Parameter", findDog(emf, dog.getId()).getPetName());
+
+        EntityManager shared = template.send(CamelEntityManagerTestRoutes.DIRECT_PARAMETER_ENTITY_MANAGER_TEST.uri(),
+                createExchange(null)).getIn().getBody(EntityManager.class);
+        assertNotNull(shared);
+        assertNotSame(camelEm, shared);
+    }
+
+    @Test
+    @DirtiesContext
+    public void testCacheInvalidation() throws Exception {
+        CamelEntityManagerCacheInvalidation invalidation = applicationContext.getBean(CamelEntityManagerCacheInvalidation.class);
+        // No second level cache provider is on the test classpath, so all entities is published in this test
+        invalidation.setCachedOnly(false);
+        CamelEntityManagerCacheInvalidation otherInvalidation = new CamelEntityManagerCacheInvalidation(
+                applicationContext.getBean("emf2", EntityManagerFactory.class), "emf",
+                CamelEntityManagerTestRoutes.VM_CACHE_INVALIDATION_TEST.uri());
+        DefaultCamelContext otherNode = new DefaultCamelContext();
+        otherNode.setName("otherNode");
+        otherNode.addRoutes(new RouteBuilder() {
+            @Override
+            public void configure() throws Exception {
+                from(CamelEntityManagerTestRoutes.VM_CACHE_INVALIDATION_TEST.uri()).process(otherInvalidation);
+            }
+        });
+        otherNode.start();
+        try {
+            Dog rex = createDog("Rex", "Akita");
+            Dog fido = createDog("Fido", "Akita");
+            txTemplate.execute(status -> {
+                template.send(CamelEntityManagerTestRoutes.DIRECT_PERSIST_TEST.uri(), createExchange(rex));
+                template.send(CamelEntityManagerTestRoutes.DIRECT_PERSIST_TEST.uri(), createExchange(fido));
+                assertEquals(0, invalidation.getPublishedBatchCount());
+                return null;
+            });
+            assertEquals(1, invalidation.getPublishedBatchCount());
+            assertEquals(2, invalidation.getPublishedEntityCount());
+
+            long timeout = System.currentTimeMillis() + 5_000;
+            while ((otherInvalidation.getEvictedEntityCount() < 2 || invalidation.getSkippedBatchCount() < 1)
+                    && System.currentTimeMillis() < timeout) {
+                Thread.sleep(10);
+            }
+            assertEquals(1, otherInvalidation.getReceivedBatchCount());
+            assertEquals(2, otherInvalidation.getEvictedEntityCount());
+            assertEquals(1, invalidation.getReceivedBatchCount());
+            assertEquals(1, invalidation.getSkippedBatchCount());
+            assertEquals(0, invalidation.getEvictedEntityCount());
+
+            txTemplate.execute(status -> {
+                template.send(CamelEntityManagerTestRoutes.DIRECT_PERSIST_TEST.uri(), createExchange(createDog("Rollback", "Akita")));
+                status.setRollbackOnly();
+                return null;
+            });
+            assertEquals(1, invalidation.getPublishedBatchCount());
+
+            // The dirty check of a managed entity is published without a merge
+            txTemplate.execute(status -> {
+                findDogByPetName("Rex").setBreed("Shiba");
+                return null;
+            });
+            assertEquals(2, invalidation.getPublishedBatchCount());
+            assertEquals(3, invalidation.getPublishedEntityCount());
+            timeout = System.currentTimeMillis() + 5_000;
+            while (otherInvalidation.getEvictedEntityCount() < 3 && System.currentTimeMillis() < timeout) {
+                Thread.sleep(10);
+            }
+            assertEquals(3, otherInvalidation.getEvictedEntityCount());
+            assertEquals(0, invalidation.getPublishFailureCount());
+        } finally {
+            invalidation.setCachedOnly(true);
+            otherNode.stop();
+        }
+    }
+
+    @Test
+    @DirtiesContext
+    public void testGroupCommit() throws Exception {
+        CamelEntityManagerGroupCommit groupCommit = applicationContext.getBean(CamelEntityManagerGroupCommit.class);
+        List<Exchange> results = sendConcurrently(CamelEntityManagerTestRoutes.DIRECT_GROUP_COMMIT_TEST.uri(), 20, "Group");
+        for (Exchange result : results) {
+            assertNull(result.getException());
+            assertNotNull(findDogByPetName(result.getIn().getBody(Dog.class).getPetName()));
+        }
+        assertEquals(21, countDogs());
+        assertTrue(groupCommit.getGroupCount() < 20);
+        assertEquals(0, groupCommit.getRollbackCount());
+        LOG.info("20 concurrent exchanges is committed in {} groups", groupCommit.getGroupCount());
+
+        results = sendConcurrently(CamelEntityManagerTestRoutes.DIRECT_GROUP_COMMIT_TEST.uri(), 4, "Fail");
+        assertEquals(1, groupCommit.getRollbackCount());
+        int committed = 0;
+        for (Exchange result : results) {
+            String petName = result.getIn().getBody(Dog.class).getPetName();
+            if ("Fail".equals(petName)) {
+                assertNotNull(result.getException(IllegalStateException.class));
+                assertNull(findDogByPetName(petName));
+            } else if (result.getException() != null) {
+                // joined the group before it failed
+                assertNotNull(result.getException(UnexpectedRollbackException.class));
+                assertNull(findDogByPetName(petName));
+            } else {
+                // arrived after the group failed and is committed in a new group
+                assertNotNull(findDogByPetName(petName));
+                committed++;
+            }
+        }
+        assertEquals(21 + committed, countDogs());
+
+        // an exchange arriving inside the window of a failed group is not rolled back with it
+        long exchanges = groupCommit.getExchangeCount();
+        Future<Exchange> failed = template.asyncSend(CamelEntityManagerTestRoutes.DIRECT_GROUP_COMMIT_TEST.uri(),
+                createExchange(createDog("Fail", "Group")));
+        while (groupCommit.getExchangeCount() == exchanges) {
+            Thread.sleep(1);
+        }
+        Thread.sleep(100);
+        Exchange late = template.send(CamelEntityManagerTestRoutes.DIRECT_GROUP_COMMIT_TEST.uri(),
+                createExchange(createDog("Late", "Group")));
+        assertNotNull(failed.get().getException(IllegalStateException.class));
+        assertNull(late.getException());
+        assertNotNull(findDogByPetName("Late"));
+        assertEquals(2, groupCommit.getRollbackCount());
+        assertNull(getCamelEntityManagerThreadLocal());
+    }
+
+    @Test
+    @DirtiesContext
+    public void testSlowOperations() throws Exception {
+        CamelEntityManagerSlowOperations slowOperations = applicationContext.getBean(CamelEntityManagerSlowOperations.class);
+        template.send(CamelEntityManagerTestRoutes.DIRECT_FLIGHT_RECORDER_TEST.uri(), createExchange(createDog("Fast", "Beagle")));
+        assertEquals(0, slowOperations.getRecordedCount());
+
+        slowOperations.setRouteThresholdMillis(CamelEntityManagerTestRoutes.DIRECT_FLIGHT_RECORDER_TEST.id(), 0);
+        slowOperations.setStackDepth(3);
+        // the threshold and the route id is of the route invoking the bean, not the route the exchange entered
+        template.send(CamelEntityManagerTestRoutes.DIRECT_FLIGHT_RECORDER_ENTRY_TEST.uri(), createExchange(createDog("Slow", "Beagle")));
+        List<CamelEntityManagerSlowOperation> operations = slowOperations.getSlowOperations();
+        assertEquals(2, operations.size());
+        assertEquals("persist", operations.get(0).getOperation());
+        assertEquals(Dog.class.getName(), operations.get(0).getStatement());
+        assertEquals(CamelEntityManagerTestRoutes.DIRECT_FLIGHT_RECORDER_TEST.id(), operations.get(0).getRouteId());
+        assertEquals(CamelEntityManagerBean.class.getName() + ".persistAndFlushDog", operations.get(0).getBeanMethod());
+        assertEquals(3, operations.get(0).getStack().length);
+        assertEquals(CamelEntityManagerBean.class.getName(), operations.get(0).getStack()[0].getClassName());
+        assertEquals("flush", operations.get(1).getOperation());
+        slowOperations.clear();
+
+        slowOperations.setRouteThresholdMillis(CamelEntityManagerTestRoutes.DIRECT_FLIGHT_RECORDER_TEST.id(), -1);
+        slowOperations.setStackDepth(0);
+        slowOperations.setTimeQueries(true);
+        slowOperations.setMethodThresholdMillis("CamelEntityManagerBean.findAllDogs", 0);
+        template.send(CamelEntityManagerTestRoutes.DIRECT_FIND_TEST.uri(), createExchange(alphaDoc.getId()));
+        template.send(CamelEntityManagerTestRoutes.DIRECT_FIND_TEST_WITH_TWO_EM.uri(), createExchange(null));
+        operations = slowOperations.getSlowOperations();
+        assertEquals(Arrays.asList("createQuery", "getResultList"),
+                operations.stream().map(CamelEntityManagerSlowOperation::getOperation).collect(Collectors.toList()));
+        assertEquals("select d from Dog d", operations.get(1).getStatement());
+        assertNull(operations.get(1).getStack());
+        assertEquals(4, slowOperations.getRecordedCount());
+
+        String[] dump = (String[]) ManagementFactory.getPlatformMBeanServer().invoke(slowOperations.getObjectName(),
+                "dumpSlowOperations", null, null);
+        assertEquals(2, dump.length);
+        assertTrue(dump[1].contains("statement=select d from Dog d"));
+        // a timed query unwraps to the query of Hibernate
+        assertEquals(Long.valueOf(3), applicationContext.getBean(CamelEntityManagerBean.class).countDogsUnwrapped());
+        slowOperations.clear();
+        assertTrue(slowOperations.getSlowOperations().isEmpty());
+    }
+
+    @Test
+    @DirtiesContext
+    public void testStatementTagging() throws Exception {
+        String tag = "/* route=" + CamelEntityManagerTestRoutes.DIRECT_FLIGHT_RECORDER_TEST.id()
+                + " bean=CamelEntityManagerBean.persistAndFlushDog unit=emf,emf2 */ ";
+        CamelEntityManagerStatementCounts first = statementCounter.count(() ->
+                template.send(CamelEntityManagerTestRoutes.DIRECT_FLIGHT_RECORDER_TEST.uri(), createExchange(createDog("Tagged", "Beagle"))))
+                .assertInserts(1);
+        String insert = first.getStatements().stream().filter(sql -> sql.contains("insert")).findFirst().get();
+        assertTrue(insert, insert.startsWith(tag + "insert"));
+
+        // tagged with the route invoking the bean, not the route the exchange entered
+        CamelEntityManagerStatementCounts second = statementCounter.count(() ->
+                template.send(CamelEntityManagerTestRoutes.DIRECT_FLIGHT_RECORDER_ENTRY_TEST.uri(), createExchange(createDog("Tagged", "Beagle"))))
+                .assertInserts(1);
+        assertSame(insert, second.getStatements().stream().filter(sql -> sql.contains("insert")).findFirst().get());
+
+        CamelEntityManagerStatementCounts untagged = statementCounter.count(() ->
+                template.send(CamelEntityManagerTestRoutes.DIRECT_FIND_TEST.uri(), createExchange(alphaDoc.getId())))
+                .assertSelects(1);
+        assertTrue(untagged.getStatements().get(0), untagged.getStatements().get(0)
+                .startsWith("/* bean=CamelEntityManagerBean.findDog unit=emf,emf2 */ select"));
+
+        statementCounter.setEnabled(false);
+        CamelEntityManagerStatementCounts disabled = statementCounter.count(() ->
+                template.send(CamelEntityManagerTestRoutes.DIRECT_FIND_TEST.uri(), createExchange(alphaDoc.getId())))
+                .assertSelects(1);
+        assertTrue(disabled.getStatements().get(0), disabled.getStatements().get(0).startsWith("select"));
+    }
+
+    @Test
+    @DirtiesContext
+    public void testFlightRecorderEvents() throws Exception {
+        String prefix = "com.github.fharms.camel.entitymanager.";
+        Path recordingFile = Files.createTempFile("camel-entitymanager", ".jfr");
+        EntityManager camelEm = applicationContext.getBean("emf", EntityManagerFactory.class).createEntityManager();
+        try (Recording recording = new Recording()) {
+            for (String event : new String[]{"Bind", "Join", "Operation", "Flush", "Release"}) {
+                recording.enable(prefix + event);
+            }
+            recording.start();
+            Exchange exchange = createExchange(createDog("Rex", "Boxer"));
+            exchange.getIn().setHeader(CamelEntityManagerHandler.CAMEL_ENTITY_MANAGER, camelEm);
+            // the events is attributed to the route invoking the bean, not the route the exchange entered
+            Exchange result = template.send(CamelEntityManagerTestRoutes.DIRECT_FLIGHT_RECORDER_ENTRY_TEST.uri(), exchange);
+            assertNull(result.getException());
+            recording.stop();
+            recording.dump(recordingFile);
+
+            Map<String, List<RecordedEvent>> events = RecordingFile.readAllEvents(recordingFile).stream()
+                    .filter(event -> exchange.getExchangeId().equals(event.getString("exchangeId")))
+                    .collect(Collectors.groupingBy(event -> event.getEventType().getName().substring(prefix.length())));
+            assertEquals(1, events.get("Bind").size());
+            assertEquals(1, events.get("Join").size());
+            assertEquals(1, events.get("Flush").size());
+            assertEquals(1, events.get("Release").size());
+            assertEquals("persist", events.get("Operation").get(0).getString("operation"));
+            assertEquals("emf,emf2", events.get("Bind").get(0).getString("persistenceUnit"));
+            assertEquals("emf", events.get("Flush").get(0).getString("persistenceUnit"));
+            events.values().stream().flatMap(List::stream).forEach(event -> {
+                assertEquals(CamelEntityManagerTestRoutes.DIRECT_FLIGHT_RECORDER_TEST.id(), event.getString("routeId"));
+                assertEquals(CamelEntityManagerBean.class.getName() + ".persistAndFlushDog", event.getString("beanMethod"));
+            });
+        } finally {
+            camelEm.close();
+            Files.deleteIfExists(recordingFile);
+        }
+    }
+
+    @Test
+    @DirtiesContext
+    public void testCompetingConsumers() throws Exception {
+        int dogs = 60;
+        txTemplate.execute((TransactionCallback) status -> {
+            for (int i = 0; i < dogs; i++) {
+                em.persist(createDog("Claimed" + i, "Claim"));
+            }
+            return null;
+        });
+        CamelEntityManagerBatchPolicy batchPolicy = applicationContext.getBean(CamelEntityManagerBatchPolicy.class);
+        CamelEntityManagerBatchBean batchBean = applicationContext.getBean(CamelEntityManagerBatchBean.class);
+        Map<Long, String> processed = new ConcurrentHashMap<>();
+        AtomicInteger duplicates = new AtomicInteger();
+        AtomicInteger unmanaged = new AtomicInteger();
+
+        List<CamelContext> nodes = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            // Every node has its own query factory, as the nodes of a cluster
+            SimpleRegistry registry = new SimpleRegistry();
+            registry.put("dogClaims", new CamelEntityManagerClaimQueryFactory(Dog.class, "e.race = 'Claim'", 5,
+                    "claimedUntil", 30_000));
+            DefaultCamelContext node = new DefaultCamelContext(registry);
+            node.setName("node" + i);
+            JpaComponent jpa = new JpaComponent();
+            jpa.setEntityManagerFactory(applicationContext.getBean("emf", EntityManagerFactory.class));
+            jpa.setTransactionManager(transactionManager);
+            node.addComponent("jpa", jpa);
+            node.addRoutes(new RouteBuilder() {
+                @Override
+                public void configure() throws Exception {
+                    from("jpa:" + Dog.class.getName() + "?consumer.queryFactory=#dogClaims&maxMessagesPerPoll=5&initialDelay=0&delay=10")
+                            .routePolicy(batchPolicy)
+                            .process(exchange -> {
+                                if (processed.put(exchange.getIn().getBody(Dog.class).getId(), node.getName()) != null) {
+                                    duplicates.incrementAndGet();
+                                }
+                                Thread.sleep(5);
+                            })
+                            .bean(batchBean, "isManaged")
+                            .process(exchange -> {
+                                if (!exchange.getIn().getBody(Boolean.class)) {
+                                    unmanaged.incrementAndGet();
+                                }
+                            });
+                }
+            });
+            nodes.add(node);
+        }
+        try {
+            for (CamelContext node : nodes) {
+                node.start();
+            }
+            long timeout = System.currentTimeMillis() + 20_000;
+            while (processed.size() < dogs && System.currentTimeMillis() < timeout) {
+                Thread.sleep(50);
+            }
+        } finally {
+            for (CamelContext node : nodes) {
+                node.stop();
+            }
+        }
+        LOG.info("Dogs claimed per node {}", processed.values().stream().collect(Collectors.groupingBy(node -> node, Collectors.counting())));
+        assertEquals(dogs, processed.size());
+        assertEquals(0, duplicates.get());
+        assertEquals(0, unmanaged.get());
+        assertTrue(new HashSet<>(processed.values()).size() > 1);
+        assertEquals(0, em.createQuery("select d from Dog d where d.race = 'Claim'").getResultList().size());
+    }
+
+    @Test
+    @DirtiesContext
+    public void testShardRouting() throws Exception {
+        CamelEntityManagerShardRegistry shards = applicationContext.getBean("dogShards", CamelEntityManagerShardRegistry.class);
+        Dog dog1 = createDog("Fiddo", "Beagle");
+        Dog dog2 = createDog("Bold", "Terrier");
+
+        template.send(CamelEntityManagerTestRoutes.DIRECT_SHARD_PERSIST_TEST.uri(), createShardExchange(dog1, "shard1"));
+        template.send(CamelEntityManagerTestRoutes.DIRECT_SHARD_PERSIST_TEST.uri(), createShardExchange(dog2, "shard2"));
+
+        assertEquals(dog1, findDog(shards.getEntityManagerFactory("shard1"), dog1.getId()));
+        assertNull(findDogByPetName(shards.getEntityManagerFactory("shard2"), "Fiddo"));
+        assertEquals(dog2, findDog(shards.getEntityManagerFactory("shard2"), dog2.getId()));
+        assertNull(findDogByPetName("Fiddo"));
+        assertNull(findDogByPetName("Bold"));
+    }
+
+    @Test
+    @DirtiesContext
+    public void testShardObjectMethods() throws Exception {
+        // The object methods is answered without a shard key, and without beginning a transaction on a shard
+        Exchange result = template.send(CamelEntityManagerTestRoutes.DIRECT_SHARD_TO_STRING_TEST.uri(), createExchange(null));
+        assertNull(result.getException());
+        assertTrue(result.getIn().getBody(String.class).startsWith("Camel EntityManager proxy ["));
+    }
+
+    @Test
+    @DirtiesContext
+    public void testShardRollback() throws Exception {
+        CamelEntityManagerShardRegistry shards = applicationContext.getBean("dogShards", CamelEntityManagerShardRegistry.class);
+        Exchange result = template.send(CamelEntityManagerTestRoutes.DIRECT_SHARD_ROLLBACK_TEST.uri(), createShardExchange(createDog("Buddy", "Beagle"), "shard1"));
+        assertNotNull(result.getException());
+        assertNull(findDogByPetName(shards.getEntityManagerFactory("shard1"), "Buddy"));
+    }
+
+    @Test
+    @DirtiesContext
+    public void testReadReplica() throws Exception {
+        EntityManagerFactory replica = applicationContext.getBean("replica", EntityManagerFactory.class);
+        Dog replicaDog = createDog("Replica", "Beagle");
+        persistDog(replica, replicaDog);
+
+        List<Dog> dogs = template.send(CamelEntityManagerTestRoutes.DIRECT_REPLICA_FIND_ALL_TEST.uri(), createExchange(null)).getIn().getBody(List.class);
+        assertEquals(1, dogs.size());
+        assertEquals(replicaDog, dogs.get(0));
+
+        Dog dog = template.send(CamelEntityManagerTestRoutes.DIRECT_REPLICA_FIND_TEST.uri(), createExchange(replicaDog.getId())).getIn().getBody(Dog.class);
+        assertEquals(replicaDog, dog);
+
+        dogs = template.send(CamelEntityManagerTestRoutes.DIRECT_REPLICA_READ_WRITE_TEST.uri(), createExchange(null)).getIn().getBody(List.class);
+        assertEquals(1, dogs.size());
+        assertEquals(alphaDoc, dogs.get(0));
+    }
+
+    @Test
+    @DirtiesContext
+    public void testReadReplicaUnavailable() throws Exception {
+        applicationContext.getBean("replica", EntityManagerFactory.class).close();
+
+        List<Dog> dogs = template.send(CamelEntityManagerTestRoutes.DIRECT_REPLICA_FIND_ALL_TEST.uri(), createExchange(null)).getIn().getBody(List.class);
+        assertEquals(1, dogs.size());
+        assertEquals(alphaDoc, dogs.get(0));
+    }
+
+    @Test
+    @DirtiesContext
+    public void testReadReplicaFailsOnExecution() throws Exception {
+        persistDog(applicationContext.getBean("replica", EntityManagerFactory.class), createDog("Replica", "Beagle"));
+        List<Dog> replicaDogs = applicationContext.getBean(CamelEntityManagerReplicaBean.class).findAllDogsUnwrapped();
+        assertEquals(Collections.singletonList(createDog("Replica", "Beagle")), replicaDogs);
+        applicationContext.getBean("replicaConnectionFailure", CamelEntityManagerConnectionFailure.class).setFailing(true);
+
+        Exchange result = template.send(CamelEntityManagerTestRoutes.DIRECT_REPLICA_FIND_ALL_TEST.uri(), createExchange(null));
+        assertNull(result.getException());
+        List<Dog> dogs = result.getIn().getBody(List.class);
+        assertEquals(1, dogs.size());
+        assertEquals(alphaDoc, dogs.get(0));
+    }
+
+    @Test
+    @DirtiesContext
+    public void testDeadlineQueryTimeout() throws Exception {
+        Exchange exchange = createExchange(null);
+        exchange.getIn().setHeader(CamelEntityManagerHandler.CAMEL_ENTITY_MANAGER_TIMEOUT, 60_000L);
+        Exchange result = template.send(CamelEntityManagerTestRoutes.DIRECT_DEADLINE_QUERY_TEST.uri(), exchange);
+        assertNull(result.getException());
+        Integer timeout = result.getIn().getBody(Integer.class);
+        assertNotNull(timeout);
+        assertEquals(0, timeout % 1000);
+        assertTrue(timeout > 0 && timeout <= 60_000);
+
+        exchange = createExchange(alphaDoc.getId());
+        exchange.getIn().setHeader(CamelEntityManagerHandler.CAMEL_ENTITY_MANAGER_DEADLINE, System.currentTimeMillis() + 60_000L);
+        result = template.send(CamelEntityManagerTestRoutes.DIRECT_DEADLINE_LOCK_TEST.uri(), exchange);
+        assertNull(result.getException());
+        assertEquals(alphaDoc, result.getIn().getBody(Dog.class));
+    }
+
+    @Test
+    @DirtiesContext
+    public void testDeadlineExceeded() throws Exception {
+        Exchange exchange = createExchange(null);
+        exchange.getIn().setHeader(CamelEntityManagerHandler.CAMEL_ENTITY_MANAGER_DEADLINE, System.currentTimeMillis() - 1);
+        Exchange result = template.send(CamelEntityManagerTestRoutes.DIRECT_DEADLINE_QUERY_TEST.uri(), exchange);
+        assertNotNull(result.getException(QueryTimeoutException.class));
+        assertNull(getCamelEntityManagerThreadLocal());
+    }
+
+    @Test
+    @DirtiesContext
+    public void testBulkhead() throws Exception {
+        CamelEntityManagerBulkhead bulkhead = applicationContext.getBean("emf2Bulkhead", CamelEntityManagerBulkhead.class);
+        Advisor[] advisors = ((Advised) applicationContext.getBean(CamelEntityManagerBulkheadBean.class)).getAdvisors();
+        assertEquals(Ordered.HIGHEST_PRECEDENCE, ((Ordered) advisors[0]).getOrder());
+        assertTrue(Arrays.stream(advisors).skip(1).anyMatch(advisor -> advisor.getAdvice() instanceof TransactionInterceptor));
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Exchange> first = executor.submit(() -> template.send(CamelEntityManagerTestRoutes.DIRECT_BULKHEAD_TEST.uri(), createBulkheadExchange(release, entered)));
+            assertTrue(entered.await(10, TimeUnit.SECONDS));
+            assertEquals(0, bulkhead.getAvailablePermits());
+
+            Exchange rejected = template.send(CamelEntityManagerTestRoutes.DIRECT_BULKHEAD_TEST.uri(), createBulkheadExchange(release, new CountDownLatch(1)));
+            assertNotNull(rejected.getException(RejectedExecutionException.class));
+            assertEquals(1, bulkhead.getRejectedCount());
+
+            release.countDown();
+            assertNull(first.get(10, TimeUnit.SECONDS).getException());
+            assertEquals(1, bulkhead.getAvailablePermits());
+            assertEquals(0, bulkhead.getQueueLength());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    @DirtiesContext
+    public void testBindingsMBean() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = applicationContext.getBean(CamelEntityManagerBindings.class).getObjectName();
+        EntityManager camelEm = applicationContext.getBean("emf2", EntityManagerFactory.class).createEntityManager();
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Exchange exchange = createBulkheadExchange(release, entered);
+            exchange.getIn().setHeader(CamelEntityManagerHandler.CAMEL_ENTITY_MANAGER, camelEm);
+            Future<Exchange> bound = executor.submit(() -> template.send(CamelEntityManagerTestRoutes.DIRECT_BULKHEAD_TEST.uri(), exchange));
+            assertTrue(entered.await(10, TimeUnit.SECONDS));
+            assertEquals(1, server.getAttribute(name, "ActiveBindingCount"));
+            assertEquals(1, ((Map<?, ?>) server.getAttribute(name, "ActiveBindingsPerUnit")).get("emf2"));
+            assertEquals(0, server.getAttribute(name, "StuckBindingCount"));
+
+            server.setAttribute(name, new Attribute("StuckThresholdMillis", 0L));
+            assertEquals(1, server.getAttribute(name, "StuckBindingCount"));
+            String[] stuck = (String[]) server.invoke(name, "dumpStuckBindings", null, null);
+            assertEquals(1, stuck.length);
+            assertTrue(stuck[0].contains(exchange.getExchangeId()));
+            assertTrue(stuck[0].contains(CamelEntityManagerBulkheadBean.class.getName() + ".awaitRelease"));
+
+            release.countDown();
+            assertNull(bound.get(10, TimeUnit.SECONDS).getException());
+            assertEquals(0, server.getAttribute(name, "ActiveBindingCount"));
+            assertEquals(0L, server.getAttribute(name, "OldestBindingAgeMillis"));
+            assertEquals(1L, ((Map<?, ?>) server.getAttribute(name, "BoundCountPerUnit")).get("emf2"));
+        } finally {
+            executor.shutdownNow();
+            camelEm.close();
+        }
+    }
+
     @Test
     @DirtiesContext
     public void testEntityManagerInjectFind() throws Exception {
@@ -287,7 +1362,84 @@ public class CamelEntityManagerTestRouteTest {
         return em.find(Dog.class, id);
     }
 
+    private void sendDogs(CamelEntityManagerTestRoutes route, String petName, int count) {
+        List<Dog> dogs = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            dogs.add(createDog(petName + i, "Beagle"));
+        }
+        Exchange result = template.send(route.uri(), createExchange(dogs));
+        assertNull(result.getException());
+        dogs.forEach(dog -> assertNotNull(dog.getId()));
+    }
+
+    private long countDogs() {
+        return em.createQuery("select count(d) from Dog d", Long.class).getSingleResult();
+    }
+
+    /**
+     * Send the exchanges at the same time from their own threads, the last exchange with the pet name lastPetName
+     */
+    private List<Exchange> sendConcurrently(String uri, int exchanges, String lastPetName) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(exchanges);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<Exchange>> futures = new ArrayList<>();
+            for (int i = 0; i < exchanges; i++) {
+                Exchange exchange = createExchange(createDog(i == exchanges - 1 ? lastPetName : lastPetName + i, "Group"));
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    return template.send(uri, exchange);
+                }));
+            }
+            start.countDown();
+            List<Exchange> results = new ArrayList<>();
+            for (Future<Exchange> future : futures) {
+                results.add(future.get(10, TimeUnit.SECONDS));
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private long countProcessed() {
+        return em.createQuery("select count(m) from MessageProcessed m", Long.class).getSingleResult();
+    }
+
+    private void persistDog(EntityManagerFactory emf, Dog dog) {
+        EntityManager otherEm = emf.createEntityManager();
+        try {
+            otherEm.getTransaction().begin();
+            otherEm.persist(dog);
+            otherEm.getTransaction().commit();
+        } finally {
+            otherEm.close();
+        }
+    }
+
+    private Dog findDog(EntityManagerFactory emf, Long id) {
+        EntityManager shardEm = emf.createEntityManager();
+        try {
+            return shardEm.find(Dog.class, id);
+        } finally {
+            shardEm.close();
+        }
+    }
+
+    private Dog findDogByPetName(EntityManagerFactory emf, String petname) {
+        EntityManager shardEm = emf.createEntityManager();
+        try {
+            return findDogByPetName(shardEm, petname);
+        } finally {
+            shardEm.close();
+        }
+    }
+
     private Dog findDogByPetName(String petname) {
+        return findDogByPetName(em, petname);
+    }
+
+    private Dog findDogByPetName(EntityManager em, String petname) {
         TypedQuery<Dog> typedQuery = em.createQuery("select d from Dog d where d.petName = :petname",Dog.class);
         typedQuery.setParameter("petname",petname);
         Dog result = null;
@@ -306,6 +1458,26 @@ public class CamelEntityManagerTestRouteTest {
         return exchange;
     }
 
+    private Dog findExtended(Long id) {
+        return template.requestBody(CamelEntityManagerTestRoutes.DIRECT_EXTENDED_FIND_TEST.uri(), id, Dog.class);
+    }
+
+    private boolean isCachedExtended(Dog dog) {
+        return template.requestBody(CamelEntityManagerTestRoutes.DIRECT_EXTENDED_CACHED_TEST.uri(), dog, Boolean.class);
+    }
+
+    private Exchange createBulkheadExchange(CountDownLatch release, CountDownLatch entered) {
+        Exchange exchange = createExchange(release);
+        exchange.getIn().setHeader(CamelEntityManagerBulkheadBean.ENTERED, entered);
+        return exchange;
+    }
+
+    private Exchange createShardExchange(Object body, String shard) {
+        Exchange exchange = createExchange(body);
+        exchange.getIn().setHeader(CamelEntityManagerShardRegistry.CAMEL_ENTITY_MANAGER_SHARD_KEY, shard);
+        return exchange;
+    }
+
     private Dog createDog(String petName, String race) {
         Dog dog = new Dog();
         dog.setPetName(petName);
@@ -33,7 +33,52 @@ public enum CamelEntityManagerTestRoutes {
     DIRECT_JPN_PRODUCER_TEST("jpa:com.github.fharms.camel.entity.Dog","directJpaProducerTest"),
     DIRECT_JPA_CONSUMER_TEST("jpa:com.github.fharms.camel.entity.Dog","directJpaConsumerTest"),
     DIRECT_FIND_TEST("direct:findTest","directFindTest"),
+    DIRECT_PERSIST_ALL_TEST("direct:persistAllTest","directPersistAllTest"),
+    DIRECT_REMOVE_ALL_TEST("direct:removeAllTest","directRemoveAllTest"),
+    DIRECT_MERGE_ALL_TEST("direct:mergeAllTest","directMergeAllTest"),
+    DIRECT_BULK_UPDATE_TEST("direct:bulkUpdateTest","directBulkUpdateTest"),
+    DIRECT_BULK_DELETE_TEST("direct:bulkDeleteTest","directBulkDeleteTest"),
+    DIRECT_PERSIST_DOGS_TEST("direct:persistDogsTest","directPersistDogsTest"),
+    DIRECT_STATELESS_INSERT_TEST("direct:statelessInsertTest","directStatelessInsertTest"),
+    DIRECT_STATELESS_METHOD_TEST("direct:statelessMethodTest","directStatelessMethodTest"),
+    DIRECT_STATELESS_MERGE_TEST("direct:statelessMergeTest","directStatelessMergeTest"),
     DIRECT_FIND_TEST_WITH_TWO_EM("direct:findTestWithTwoEntityManagers", "findTestWithTwoEntityManagers"),
+    DIRECT_SHARD_PERSIST_TEST("direct:shardPersistTest", "shardPersistTest"),
+    DIRECT_SHARD_ROLLBACK_TEST("direct:shardRollbackTest", "shardRollbackTest"),
+    DIRECT_SHARD_TO_STRING_TEST("direct:shardToStringTest", "shardToStringTest"),
+    DIRECT_REPLICA_FIND_ALL_TEST("direct:replicaFindAllTest", "replicaFindAllTest"),
+    DIRECT_REPLICA_FIND_TEST("direct:replicaFindTest", "replicaFindTest"),
+    DIRECT_REPLICA_READ_WRITE_TEST("direct:replicaReadWriteTest", "replicaReadWriteTest"),
+    DIRECT_DEADLINE_QUERY_TEST("direct:deadlineQueryTest", "deadlineQueryTest"),
+    DIRECT_DEADLINE_LOCK_TEST("direct:deadlineLockTest", "deadlineLockTest"),
+    DIRECT_BULKHEAD_TEST("direct:bulkheadTest", "bulkheadTest"),
+    DIRECT_POINTCUT_TEST("direct:pointcutTest", "pointcutTest"),
+    DIRECT_POINTCUT_BY_NAME_TEST("direct:pointcutByNameTest", "pointcutByNameTest"),
+    DIRECT_ROUTE_POLICY_TEST("direct:routePolicyTest", "routePolicyTest"),
+    DIRECT_ROUTE_POLICY_ASYNC_TEST("direct:routePolicyAsyncTest", "routePolicyAsyncTest"),
+    DIRECT_NO_ROUTE_POLICY_TEST("direct:noRoutePolicyTest", "noRoutePolicyTest"),
+    JPA_BATCH_CONSUMER_TEST("jpa:com.github.fharms.camel.entity.Dog?consumer.namedQuery=Dog.findBatch&consumeDelete=false" +
+            "&maxMessagesPerPoll=3&initialDelay=0&delay=100", "jpaBatchConsumerTest"),
+    JPA_SAVEPOINT_CONSUMER_TEST("jpa:com.github.fharms.camel.entity.Dog?consumer.namedQuery=Dog.findBatch&consumeDelete=false" +
+            "&maxMessagesPerPoll=5&initialDelay=0&delay=100", "jpaSavepointConsumerTest"),
+    DIRECT_RETRY_TEST("direct:retryTest", "retryTest"),
+    DIRECT_PARTITIONED_EXPORT_TEST("direct:partitionedExportTest", "partitionedExportTest"),
+    DIRECT_EXPORT_CHUNK_TEST("direct:exportChunkTest", "exportChunkTest"),
+    DIRECT_EXTENDED_FIND_TEST("direct:extendedFindTest", "extendedFindTest"),
+    DIRECT_EXTENDED_QUERY_TEST("direct:extendedQueryTest", "extendedQueryTest"),
+    DIRECT_EXTENDED_CACHED_TEST("direct:extendedCachedTest", "extendedCachedTest"),
+    DIRECT_MULTICAST_TEST("direct:multicastTest", "multicastTest"),
+    DIRECT_MULTICAST_BRANCH_TEST("direct:multicastBranchTest", "multicastBranchTest"),
+    DIRECT_IDEMPOTENT_TEST("direct:idempotentTest", "idempotentTest"),
+    DIRECT_GROUP_COMMIT_TEST("direct:groupCommitTest", "groupCommitTest"),
+    DIRECT_GROUP_COMMIT_WORK_TEST("direct:groupCommitWorkTest", "groupCommitWorkTest"),
+    DIRECT_PREFETCH_TEST("direct:prefetchTest", "prefetchTest"),
+    DIRECT_SPLIT_TEST("direct:splitTest", "splitTest"),
+    DIRECT_PARAMETER_PERSIST_TEST("direct:parameterPersistTest", "parameterPersistTest"),
+    DIRECT_PARAMETER_ENTITY_MANAGER_TEST("direct:parameterEntityManagerTest", "parameterEntityManagerTest"),
+    VM_CACHE_INVALIDATION_TEST("vm:cacheInvalidationTest?multipleConsumers=true&pollTimeout=100", "cacheInvalidationTest"),
+    DIRECT_FLIGHT_RECORDER_TEST("direct:flightRecorderTest", "flightRecorderTest"),
+    DIRECT_FLIGHT_RECORDER_ENTRY_TEST("direct:flightRecorderEntryTest", "flightRecorderEntryTest"),
     DIRECT_COMPARE_HASHCODE_TEST("direct:compareHashCodeTest", "compareHashCodeTest"),
     DIRECT_NESTED_BEAN_TEST("direct:nestedBeanTest", "nestedBeanTest"),
     DIRECT_ROLLBACK_TEST("direct:rollbackTest", "rollbackTest"),